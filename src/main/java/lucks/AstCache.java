@@ -0,0 +1,695 @@
+package lucks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lucks.visitors.Interpreter;
+
+/**
+ * Resolved programs stored in a binary file next to their script, so an
+ * unchanged script can be run without scanning, parsing and resolving it. The
+ * file starts with the SHA-256 of the source; a cache written for other
+ * content, or by another version of this class, is ignored.
+ * <p>
+ * Besides the tree the file holds what the resolver stored in it: the slot of
+ * every local, the frame layouts and the tail calls. Tokens and slots are
+ * written once and referred to by number afterwards, so shared objects stay
+ * shared; lexemes are numbered the same way.
+ */
+public final class AstCache {
+
+	private static final int MAGIC = 0x4c4f5841; // "LOXA"
+	private static final int VERSION = 3;
+	private static final String SUFFIX = ".ast";
+
+	private static final int NULL = 0;
+	// expressions
+	private static final int BINARY = 1;
+	private static final int UNARY = 2;
+	private static final int LITERAL = 3;
+	private static final int VARIABLE = 4;
+	private static final int GROUPING = 5;
+	private static final int CALL = 6;
+	private static final int SET = 7;
+	private static final int THIS = 8;
+	private static final int SUPER = 9;
+	// statements
+	private static final int EXPRESSION = 20;
+	private static final int PRINT = 21;
+	private static final int BLOCK = 22;
+	private static final int VAR = 23;
+	private static final int FUN_DECL = 24;
+	private static final int RETURN = 25;
+	private static final int IF = 26;
+	private static final int WHILE = 27;
+	private static final int CLASS = 28;
+	// literal values
+	private static final int NIL = 0;
+	private static final int TRUE = 1;
+	private static final int FALSE = 2;
+	private static final int NUMBER = 3;
+	private static final int STRING = 4;
+
+	private static final TokenType[] TOKEN_TYPES = TokenType.values();
+	private static final Slot.Kind[] SLOT_KINDS = Slot.Kind.values();
+
+	private AstCache() {
+	}
+
+	public static Path cacheFile(Path script) {
+		return script.resolveSibling(script.getFileName() + SUFFIX);
+	}
+
+	/**
+	 * The SHA-256 of the file's content.
+	 */
+	public static byte[] hash(Path script) throws IOException {
+		try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ)) {
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(bytes);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads the program cached for a source with {@code hash} and registers the
+	 * layout of the script with the interpreter.
+	 *
+	 * @return the program, or null if there is no usable cache
+	 */
+	public static List<Stmt> load(Path cacheFile, byte[] hash, Interpreter interpreter) {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(cacheFile), 1 << 16)) {
+			DataInputStream data = new DataInputStream(in);
+			if (data.readInt() != MAGIC || data.readInt() != VERSION) return null;
+			byte[] cached = new byte[hash.length];
+			data.readFully(cached);
+			if (!Arrays.equals(cached, hash)) return null;
+			return new Reader(data, interpreter).program();
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | RuntimeException e) {
+			Diagnostics.current().err.printf("ast cache: ignoring %s: %s%n", cacheFile, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a resolved program. The file is replaced atomically, a failure
+	 * only costs the next run the parsing.
+	 */
+	public static void store(Path cacheFile, byte[] hash, List<Stmt> program, Interpreter interpreter) {
+		try {
+			// a name of its own, the same script may be stored by several runs at once
+			Path temp = Files.createTempFile(cacheFile.toAbsolutePath().getParent(),
+			                                 cacheFile.getFileName().toString(), ".tmp");
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16)) {
+				DataOutputStream data = new DataOutputStream(out);
+				data.writeInt(MAGIC);
+				data.writeInt(VERSION);
+				data.write(hash);
+				new Writer(data, interpreter).program(program);
+			}
+			Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Diagnostics.current().err.printf("ast cache: could not write %s: %s%n", cacheFile, e);
+		}
+	}
+
+	private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+		private final DataOutputStream out;
+		private final Interpreter interpreter;
+		private final Map<Token, Integer> tokens = new IdentityHashMap<>();
+		private final Map<Slot, Integer> slots = new IdentityHashMap<>();
+		private final Map<String, Integer> lexemes = new HashMap<>();
+
+		Writer(DataOutputStream out, Interpreter interpreter) {
+			this.out = out;
+			this.interpreter = interpreter;
+		}
+
+		void program(List<Stmt> program) throws IOException {
+			layout(interpreter.getScriptLayout());
+			stmts(program);
+		}
+
+		private void expr(Expr expr) {
+			if (expr == null) {
+				tag(NULL);
+			} else {
+				expr.accept(this);
+			}
+		}
+
+		private void stmt(Stmt stmt) {
+			if (stmt == null) {
+				tag(NULL);
+			} else {
+				stmt.accept(this);
+			}
+		}
+
+		private void stmts(List<? extends Stmt> stmts) throws IOException {
+			out.writeInt(stmts.size());
+			for (Stmt stmt : stmts) {
+				stmt(stmt);
+			}
+		}
+
+		private void tag(int tag) {
+			write(() -> out.writeByte(tag));
+		}
+
+		private void token(Token token) {
+			write(() -> {
+				if (token == null) {
+					out.writeInt(-1);
+					return;
+				}
+				Integer id = tokens.get(token);
+				if (id != null) {
+					out.writeInt(id);
+					return;
+				}
+				out.writeInt(tokens.size());
+				tokens.put(token, tokens.size());
+				out.writeByte(token.getType().ordinal());
+				out.writeInt(token.getLine());
+				lexeme(token.getLexeme());
+				out.writeBoolean(token.getSymbol() != Tokens.NO_SYMBOL);
+			});
+		}
+
+		private void slot(Slot slot) throws IOException {
+			if (slot == null) {
+				out.writeInt(-1);
+				return;
+			}
+			Integer id = slots.get(slot);
+			if (id != null) {
+				out.writeInt(id);
+				return;
+			}
+			out.writeInt(slots.size());
+			slots.put(slot, slots.size());
+			out.writeByte(slot.kind.ordinal());
+			out.writeInt(slot.index);
+			out.writeBoolean(slot.isCaptured());
+		}
+
+		private void slots(Slot[] slots) throws IOException {
+			out.writeInt(slots.length);
+			for (Slot slot : slots) {
+				slot(slot);
+			}
+		}
+
+		private void layout(FrameLayout layout) throws IOException {
+			out.writeInt(layout.size);
+			slots(layout.parameters);
+			slots(layout.captures);
+		}
+
+		private void lexeme(String lexeme) throws IOException {
+			if (lexeme == null) {
+				out.writeInt(-1);
+				return;
+			}
+			Integer id = lexemes.get(lexeme);
+			if (id != null) {
+				out.writeInt(id);
+				return;
+			}
+			out.writeInt(lexemes.size());
+			lexemes.put(lexeme, lexemes.size());
+			string(lexeme);
+		}
+
+		private void string(String value) throws IOException {
+			if (value == null) {
+				out.writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		@Override
+		public Void visitBinary(Expr.Binary expr) {
+			tag(BINARY);
+			expr(expr.left);
+			token(expr.operator);
+			expr(expr.right);
+			return null;
+		}
+
+		@Override
+		public Void visitUnary(Expr.Unary expr) {
+			tag(UNARY);
+			token(expr.operator);
+			expr(expr.expr);
+			return null;
+		}
+
+		@Override
+		public Void visitLiteral(Expr.Literal expr) {
+			tag(LITERAL);
+			write(() -> {
+				Object value = expr.value;
+				if (value == null) {
+					out.writeByte(NIL);
+				} else if (value instanceof Boolean) {
+					out.writeByte((Boolean) value ? TRUE : FALSE);
+				} else if (value instanceof Double) {
+					out.writeByte(NUMBER);
+					out.writeDouble((Double) value);
+				} else {
+					out.writeByte(STRING);
+					string((String) value);
+				}
+			});
+			return null;
+		}
+
+		@Override
+		public Void visitVariable(Expr.Variable expr) {
+			tag(VARIABLE);
+			token(expr.name);
+			write(() -> slot(expr.slot));
+			return null;
+		}
+
+		@Override
+		public Void visitGrouping(Expr.Grouping expr) {
+			tag(GROUPING);
+			expr(expr.expr);
+			return null;
+		}
+
+		@Override
+		public Void visitCall(Expr.Call expr) {
+			tag(CALL);
+			expr(expr.callee);
+			token(expr.paren);
+			write(() -> out.writeInt(expr.arguments.size()));
+			for (Expr argument : expr.arguments) {
+				expr(argument);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitSet(Expr.Set expr) {
+			tag(SET);
+			expr(expr.object);
+			token(expr.name);
+			expr(expr.value);
+			return null;
+		}
+
+		@Override
+		public Void visitThis(Expr.This expr) {
+			tag(THIS);
+			token(expr.keyword);
+			write(() -> slot(expr.slot));
+			return null;
+		}
+
+		@Override
+		public Void visitSuper(Expr.Super expr) {
+			tag(SUPER);
+			token(expr.zuper);
+			token(expr.name);
+			write(() -> {
+				slot(expr.slot);
+				slot(expr.receiver);
+			});
+			return null;
+		}
+
+		@Override
+		public Void visitInline(Expr.Inline expr) {
+			// programs are stored before they are optimized, the call means the same
+			return visitCall(expr.call);
+		}
+
+		@Override
+		public Void visitExpression(Stmt.Expression stmt) {
+			tag(EXPRESSION);
+			expr(stmt.expression);
+			return null;
+		}
+
+		@Override
+		public Void visitPrint(Stmt.Print stmt) {
+			tag(PRINT);
+			expr(stmt.expression);
+			return null;
+		}
+
+		@Override
+		public Void visitBlock(Stmt.Block stmt) {
+			tag(BLOCK);
+			write(() -> stmts(stmt.stmts));
+			return null;
+		}
+
+		@Override
+		public Void visitVar(Stmt.Var stmt) {
+			tag(VAR);
+			token(stmt.name);
+			write(() -> slot(stmt.slot));
+			expr(stmt.initializer);
+			return null;
+		}
+
+		@Override
+		public Void visitFunDecl(Stmt.FunDecl stmt) {
+			tag(FUN_DECL);
+			token(stmt.name);
+			write(() -> {
+				out.writeInt(stmt.parameters.size());
+				for (Token parameter : stmt.parameters) {
+					token(parameter);
+				}
+				stmts(stmt.body);
+				slot(stmt.slot);
+				layout(stmt.layout);
+			});
+			return null;
+		}
+
+		@Override
+		public Void visitReturn(Stmt.Return stmt) {
+			tag(RETURN);
+			token(stmt.keyword);
+			expr(stmt.value);
+			write(() -> out.writeBoolean(stmt.isTailCall));
+			return null;
+		}
+
+		@Override
+		public Void visitIf(Stmt.If stmt) {
+			tag(IF);
+			expr(stmt.cond);
+			stmt(stmt.thenBranch);
+			stmt(stmt.elseBranch);
+			return null;
+		}
+
+		@Override
+		public Void visitWhile(Stmt.While stmt) {
+			tag(WHILE);
+			expr(stmt.cond);
+			stmt(stmt.body);
+			return null;
+		}
+
+		@Override
+		public Void visitClass(Stmt.Class stmt) {
+			tag(CLASS);
+			token(stmt.name);
+			token(stmt.superClass);
+			write(() -> {
+				stmts(stmt.methods);
+				slot(stmt.slot);
+				slot(stmt.superClassSlot);
+				slot(stmt.superSlot);
+			});
+			return null;
+		}
+
+		/**
+		 * The visitors can not throw IOException, it is tunneled through.
+		 */
+		private void write(Output output) {
+			try {
+				output.write();
+			} catch (IOException e) {
+				throw new CacheException(e);
+			}
+		}
+	}
+
+	private interface Output {
+		void write() throws IOException;
+	}
+
+	private static class CacheException extends RuntimeException {
+		CacheException(IOException cause) {
+			super(cause);
+		}
+	}
+
+	private static class Reader {
+
+		private final DataInputStream in;
+		private final Interpreter interpreter;
+		private final List<Token> tokens = new ArrayList<>();
+		private final List<Slot> slots = new ArrayList<>();
+		private final List<String> lexemes = new ArrayList<>();
+
+		Reader(DataInputStream in, Interpreter interpreter) {
+			this.in = in;
+			this.interpreter = interpreter;
+		}
+
+		List<Stmt> program() throws IOException {
+			interpreter.resolveScript(layout());
+			return stmts();
+		}
+
+		private List<Stmt> stmts() throws IOException {
+			int size = in.readInt();
+			List<Stmt> stmts = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				stmts.add(stmt());
+			}
+			return stmts;
+		}
+
+		private Token token() throws IOException {
+			int id = in.readInt();
+			if (id < 0) return null;
+			if (id < tokens.size()) return tokens.get(id);
+
+			TokenType type = TOKEN_TYPES[in.readUnsignedByte()];
+			int line = in.readInt();
+			String lexeme = lexeme();
+			int symbol = in.readBoolean() ? Symbols.intern(lexeme) : Tokens.NO_SYMBOL;
+			Token token = new Token(type, lexeme, Tokens.literal(type, lexeme), line, symbol);
+			tokens.add(token);
+			return token;
+		}
+
+		private Slot slot() throws IOException {
+			int id = in.readInt();
+			if (id < 0) return null;
+			if (id < slots.size()) return slots.get(id);
+
+			Slot slot = new Slot(SLOT_KINDS[in.readUnsignedByte()], in.readInt());
+			if (in.readBoolean()) slot.markCaptured();
+			slots.add(slot);
+			return slot;
+		}
+
+		private Slot[] slotArray() throws IOException {
+			Slot[] slots = new Slot[in.readInt()];
+			for (int i = 0; i < slots.length; i++) {
+				slots[i] = slot();
+			}
+			return slots;
+		}
+
+		private FrameLayout layout() throws IOException {
+			int size = in.readInt();
+			Slot[] parameters = slotArray();
+			return new FrameLayout(size, parameters, slotArray());
+		}
+
+		private String lexeme() throws IOException {
+			int id = in.readInt();
+			if (id < 0) return null;
+			if (id < lexemes.size()) return lexemes.get(id);
+
+			String lexeme = string();
+			lexemes.add(lexeme);
+			return lexeme;
+		}
+
+		private String string() throws IOException {
+			int length = in.readInt();
+			if (length < 0) return null;
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private Expr expr() throws IOException {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+				case NULL:
+					return null;
+				case BINARY: {
+					Expr left = expr();
+					Token operator = token();
+					return new Expr.Binary(left, operator, expr());
+				}
+				case UNARY: {
+					Token operator = token();
+					return new Expr.Unary(operator, expr());
+				}
+				case LITERAL:
+					return new Expr.Literal(literal());
+				case VARIABLE: {
+					Expr.Variable expr = new Expr.Variable(token());
+					expr.slot = slot();
+					return expr;
+				}
+				case GROUPING:
+					return new Expr.Grouping(expr());
+				case CALL: {
+					Expr callee = expr();
+					Token paren = token();
+					int size = in.readInt();
+					List<Expr> arguments = new ArrayList<>(size);
+					for (int i = 0; i < size; i++) {
+						arguments.add(expr());
+					}
+					return new Expr.Call(callee, paren, arguments);
+				}
+				case SET: {
+					Expr object = expr();
+					Token name = token();
+					return new Expr.Set(object, name, expr());
+				}
+				case THIS: {
+					Expr.This expr = new Expr.This(token());
+					expr.slot = slot();
+					return expr;
+				}
+				case SUPER: {
+					Token zuper = token();
+					Expr.Super expr = new Expr.Super(zuper, token());
+					expr.slot = slot();
+					expr.receiver = slot();
+					return expr;
+				}
+				default:
+					throw new IOException("unknown expression " + tag);
+			}
+		}
+
+		private Object literal() throws IOException {
+			int kind = in.readUnsignedByte();
+			switch (kind) {
+				case NIL:
+					return null;
+				case TRUE:
+					return true;
+				case FALSE:
+					return false;
+				case NUMBER:
+					return in.readDouble();
+				case STRING:
+					return string();
+				default:
+					throw new IOException("unknown literal " + kind);
+			}
+		}
+
+		private Stmt stmt() throws IOException {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+				case NULL:
+					return null;
+				case EXPRESSION:
+					return new Stmt.Expression(expr());
+				case PRINT:
+					return new Stmt.Print(expr());
+				case BLOCK:
+					return new Stmt.Block(stmts());
+				case VAR: {
+					Token name = token();
+					Slot slot = slot();
+					Stmt.Var stmt = new Stmt.Var(name, expr());
+					stmt.slot = slot;
+					return stmt;
+				}
+				case FUN_DECL:
+					return funDecl();
+				case RETURN: {
+					Token keyword = token();
+					Stmt.Return stmt = new Stmt.Return(keyword, expr());
+					stmt.isTailCall = in.readBoolean();
+					return stmt;
+				}
+				case IF: {
+					Expr cond = expr();
+					Stmt thenBranch = stmt();
+					return new Stmt.If(cond, thenBranch, stmt());
+				}
+				case WHILE: {
+					Expr cond = expr();
+					return new Stmt.While(cond, stmt());
+				}
+				case CLASS: {
+					Token name = token();
+					Token superClass = token();
+					int size = in.readInt();
+					List<Stmt.FunDecl> methods = new ArrayList<>(size);
+					for (int i = 0; i < size; i++) {
+						int method = in.readUnsignedByte();
+						if (method != FUN_DECL) throw new IOException("unknown method " + method);
+						methods.add(funDecl());
+					}
+					Stmt.Class stmt = new Stmt.Class(name, superClass, methods);
+					stmt.slot = slot();
+					stmt.superClassSlot = slot();
+					stmt.superSlot = slot();
+					return stmt;
+				}
+				default:
+					throw new IOException("unknown statement " + tag);
+			}
+		}
+
+		private Stmt.FunDecl funDecl() throws IOException {
+			Token name = token();
+			int size = in.readInt();
+			List<Token> parameters = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				parameters.add(token());
+			}
+			Stmt.FunDecl fun = new Stmt.FunDecl(name, parameters, stmts());
+			fun.slot = slot();
+			fun.layout = layout();
+			return fun;
+		}
+	}
+}
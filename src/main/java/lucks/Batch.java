@@ -0,0 +1,122 @@
+package lucks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lucks.visitors.Interpreter;
+
+/**
+ * Runs many scripts at once on a pool of threads. Every script gets an
+ * interpreter, diagnostics and output of its own, which are printed in the
+ * order of the scripts, each with its exit status and run time.
+ */
+final class Batch {
+
+	private final int threads;
+
+	Batch(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Runs the scripts and prints their results.
+	 *
+	 * @return 0 if every script succeeded, 1 otherwise
+	 */
+	int run(List<Path> scripts) {
+		AtomicInteger workers = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+			Thread thread = new Thread(task, "lox-batch-" + workers.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		long start = System.nanoTime();
+		List<Future<Result>> results = new ArrayList<>(scripts.size());
+		for (Path script : scripts) {
+			results.add(pool.submit(() -> runScript(script)));
+		}
+
+		int failed = 0;
+		long total = 0;
+		for (Future<Result> future : results) {
+			Result result = join(future);
+			System.out.printf("== %s: exit %d, %.1f ms%n", result.script, result.status, result.nanos / 1e6);
+			System.out.print(result.output);
+			if (result.status != 0) failed++;
+			total += result.nanos;
+		}
+		pool.shutdown();
+
+		System.out.printf("-- %d scripts, %d failed, %.1f ms on %d threads, %.1f ms in scripts%n",
+		                  scripts.size(), failed, (System.nanoTime() - start) / 1e6, threads, total / 1e6);
+		return failed == 0 ? 0 : 1;
+	}
+
+	private static Result join(Future<Result> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs a script in the current thread, capturing what it prints and the
+	 * errors it reports.
+	 */
+	private static Result runScript(Path script) throws UnsupportedEncodingException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(output, false, "UTF-8");
+		Diagnostics diagnostics = new Diagnostics(out);
+		Diagnostics.use(diagnostics);
+
+		Interpreter interpreter = Lox.newInterpreter();
+		interpreter.setOut(out);
+
+		long start = System.nanoTime();
+		int status;
+		try {
+			status = Lox.runScript(script, interpreter);
+		} catch (IOException e) {
+			out.println("Could not read " + script + ": " + e);
+			status = 74;
+		} catch (StackOverflowError e) {
+			out.println("Stack overflow.");
+			status = 70;
+		}
+		long nanos = System.nanoTime() - start;
+
+		out.flush();
+		return new Result(script, status, nanos, new String(output.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	private static final class Result {
+		final Path script;
+		final int status;
+		final long nanos;
+		// what the script printed and the errors it reported, interleaved as they happened
+		final String output;
+
+		Result(Path script, int status, long nanos, String output) {
+			this.script = script;
+			this.status = status;
+			this.nanos = nanos;
+			this.output = output;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package lucks;
+
+/**
+ * Base of the functions the interpreter defines as globals. Errors in their
+ * arguments are raised as {@link BuiltinError}s, the call reports them at its
+ * line.
+ */
+public abstract class Builtin implements LoxCallable {
+
+	private final String name;
+	private final int arity;
+
+	protected Builtin(String name, int arity) {
+		this.name = name;
+		this.arity = arity;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int arity() {
+		return arity;
+	}
+
+	@Override
+	public String toString() {
+		return "<builtin " + name + ">";
+	}
+}
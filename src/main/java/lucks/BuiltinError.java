@@ -0,0 +1,12 @@
+package lucks;
+
+/**
+ * An error raised by a {@link Builtin}, which does not know where it was
+ * called from. The call turns it into a {@link RuntimeError} at its line.
+ */
+public class BuiltinError extends RuntimeException {
+
+	public BuiltinError(String msg) {
+		super(msg, null, false, false);
+	}
+}
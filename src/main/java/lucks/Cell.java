@@ -0,0 +1,13 @@
+package lucks;
+
+/**
+ * Heap box for a local variable captured by a closure, and for a global.
+ */
+public final class Cell {
+
+	public Object value;
+
+	public Cell(Object value) {
+		this.value = value;
+	}
+}
@@ -0,0 +1,105 @@
+package lucks;
+
+import lucks.visitors.Interpreter;
+
+/**
+ * The builtins working on {@link LoxArray}s and {@link LoxMap}s:
+ * <pre>
+ * array()              a new, empty array
+ * push(array, value)   appends the value
+ * pop(array)           removes the last element and returns it
+ * get(array, index)    the element at the index
+ * set(array, index, v) replaces the element at the index, returns v
+ * slice(array, from, to) a new array of the elements from up to to
+ * map()                a new, empty map
+ * get(map, key)        the value of the key, nil if there is none
+ * put(map, key, v)     sets the value of the key, returns v
+ * has(map, key)        whether the map holds the key
+ * remove(map, key)     removes the key, returns its value
+ * keys(map)            an array of the keys, in no particular order
+ * length(collection)   the number of elements or entries
+ * </pre>
+ * Indices are integral numbers counted from 0.
+ */
+@Global
+public final class CollectionFunctions {
+
+	private CollectionFunctions() {
+	}
+
+	public static LoxArray array() {
+		return new LoxArray();
+	}
+
+	public static void push(LoxArray array, Object value) {
+		array.add(value);
+	}
+
+	public static Object pop(LoxArray array) {
+		if (array.size() == 0) throw new BuiltinError("Can't pop from an empty array.");
+		return array.removeLast();
+	}
+
+	public static Object get(Object collection, Object key) {
+		if (collection instanceof LoxMap) return ((LoxMap) collection).get(key);
+		LoxArray array = array(collection);
+		return array.get(index(key, array.size() - 1));
+	}
+
+	public static Object set(LoxArray array, Object index, Object value) {
+		array.set(index(index, array.size() - 1), value);
+		return value;
+	}
+
+	public static LoxArray slice(LoxArray array, Object from, Object to) {
+		int end = index(to, array.size());
+		return array.slice(index(from, end), end);
+	}
+
+	public static LoxMap map() {
+		return new LoxMap();
+	}
+
+	public static Object put(LoxMap map, Object key, Object value) {
+		map.put(key, value);
+		return value;
+	}
+
+	public static boolean has(LoxMap map, Object key) {
+		return map.containsKey(key);
+	}
+
+	public static Object remove(LoxMap map, Object key) {
+		return map.remove(key);
+	}
+
+	public static LoxArray keys(LoxMap map) {
+		return map.keys();
+	}
+
+	public static int length(Object collection) {
+		if (collection instanceof LoxMap) return ((LoxMap) collection).size();
+		return array(collection).size();
+	}
+
+	private static LoxArray array(Object value) {
+		if (!(value instanceof LoxArray)) {
+			throw new BuiltinError("Expected an array, was " + Interpreter.stringify(value) + ".");
+		}
+		return (LoxArray) value;
+	}
+
+	/**
+	 * Checks that {@code value} is an index from 0 up to {@code max}.
+	 */
+	private static int index(Object value, int max) {
+		if (!(value instanceof Double) || (Double) value % 1 != 0) {
+			throw new BuiltinError("Index must be an integer, was " + Interpreter.stringify(value) + ".");
+		}
+		double index = (Double) value;
+		if (index < 0 || index > max) {
+			throw new BuiltinError("Index " + Interpreter.stringify(value) + " out of bounds.");
+		}
+		return (int) index;
+	}
+}
@@ -0,0 +1,16 @@
+package lucks;
+
+/**
+ * How a statement finished. Statements pass anything but {@link #NORMAL} up to
+ * the construct that handles it, a return value is kept by the interpreter
+ * until the function call picks it up.
+ * <p>
+ * {@link #TAIL_CALL} is a return of a call to another Lox function, the
+ * interpreter holds the callee and its arguments and the returning function
+ * runs it in its own loop instead of nesting the call.
+ */
+public enum Completion {
+	NORMAL,
+	RETURN,
+	TAIL_CALL
+}
@@ -0,0 +1,22 @@
+package lucks;
+
+import lucks.visitors.Interpreter;
+
+/**
+ * The builtins {@code clock()}, the current time in milliseconds, and
+ * {@code str(value)}, a value as it would be printed.
+ */
+@Global
+public final class CoreFunctions {
+
+	private CoreFunctions() {
+	}
+
+	public static double clock() {
+		return System.currentTimeMillis();
+	}
+
+	public static String str(Object value) {
+		return Interpreter.stringify(value);
+	}
+}
@@ -0,0 +1,40 @@
+package lucks;
+
+import java.io.PrintStream;
+
+/**
+ * The errors of the scripts run by one thread: where they are printed and
+ * whether there were any. {@link Lox#error} reports to the diagnostics of the
+ * current thread, so scripts run in parallel keep their errors apart.
+ */
+public final class Diagnostics {
+
+	private static final ThreadLocal<Diagnostics> current =
+					ThreadLocal.withInitial(() -> new Diagnostics(System.err));
+
+	final PrintStream err;
+	boolean hadError;
+	boolean hadRuntimeError;
+
+	public Diagnostics(PrintStream err) {
+		this.err = err;
+	}
+
+	/**
+	 * Where the errors are printed, and the warnings of the interpreter itself.
+	 */
+	public PrintStream getErr() {
+		return err;
+	}
+
+	public static Diagnostics current() {
+		return current.get();
+	}
+
+	/**
+	 * Reports the errors of the current thread to {@code diagnostics} from now on.
+	 */
+	public static void use(Diagnostics diagnostics) {
+		current.set(diagnostics);
+	}
+}
@@ -1,62 +1,80 @@
 package lucks;
 
-import java.util.HashMap;
-import java.util.Map;
-
+/**
+ * The global variables, kept by symbol. Locals are stored in {@link Frame}s.
+ * <p>
+ * Every global lives in a {@link Cell} of its own, which stays the same once
+ * the variable is defined, so code that uses a global repeatedly can look the
+ * cell up once and then read and write it directly.
+ * <p>
+ * Once the globals are {@link #share shared} by interpreters on other threads,
+ * defining a new one replaces the table by an extended copy, so lookups never
+ * see it half updated. The values in the cells are not synchronized.
+ */
 public class Environment {
 
-	private final Environment enclosing;
-
-	public Environment() {
-		this.enclosing = null;
-	}
+	private volatile SymbolMap<Cell> data = new SymbolMap<>();
+	private boolean shared;
 
-	public Environment(Environment enclosing) {
-		this.enclosing = enclosing;
+	public void define(int symbol, Object value) {
+		Cell cell = data.get(symbol);
+		if (cell != null) {
+			cell.value = value;
+			return;
+		}
+		synchronized (this) {
+			cell = data.get(symbol);
+			if (cell != null) {
+				cell.value = value;
+			} else if (shared) {
+				SymbolMap<Cell> copy = new SymbolMap<>(data);
+				copy.put(symbol, new Cell(value));
+				data = copy;
+			} else {
+				data.put(symbol, new Cell(value));
+			}
+		}
 	}
 
-	private final Map<String, Object> data = new HashMap<>();
-
-	public void define(String name, Object value) {
-		data.put(name, value);
+	/**
+	 * Prepares the globals to be used from other threads.
+	 */
+	public synchronized void share() {
+		shared = true;
 	}
 
 	public void assign(Token name, Object value) {
-		if (data.containsKey(name.getLexeme())) {
-			data.put(name.getLexeme(), value);
-			return;
+		Cell cell = data.get(name.getSymbol());
+		if (cell == null) {
+			throw new RuntimeError(name, String.format("Undefined variable '%s'", name.getLexeme()));
 		}
-
-		throw new RuntimeError(name, String.format("Undefined variable '%s'", name.getLexeme()));
+		cell.value = value;
 	}
 
 	public Object get(Token name) {
-		String identifier = name.getLexeme();
-		if (data.containsKey(identifier)) {
-			return data.get(identifier);
-		}
-
-		throw new RuntimeError(name, String.format("Undefined variable '%s'.", identifier));
-	}
-
-	public Object get(String name) {
-		return data.get(name);
-	}
-
-	private Environment ancestor(Integer distance) {
-		if (distance == 0) return this;
-		else return enclosing.ancestor(distance - 1);
+		return cell(name).value;
 	}
 
-	public Object getAt(Token name, Integer distance) {
-		return ancestor(distance).get(name);
+	public Object get(int symbol) {
+		Cell cell = data.get(symbol);
+		return cell != null ? cell.value : null;
 	}
 
-	public Object getAt(String name, Integer distance) {
-		return ancestor(distance).get(name);
+	/**
+	 * The cell of a defined global.
+	 */
+	public Cell cell(Token name) {
+		Cell cell = data.get(name.getSymbol());
+		if (cell == null) {
+			throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.getLexeme()));
+		}
+		return cell;
 	}
 
-	public void assignAt(Integer distance, Token name, Object value) {
-		ancestor(distance).assign(name, value);
+	/**
+	 * The cell of the global {@code symbol}, null if it is not defined.
+	 */
+	public Cell findCell(int symbol) {
+		return data.get(symbol);
 	}
 }
@@ -65,6 +65,8 @@ public abstract class Expr {
 
 	public static class Variable extends Expr {
 		public final Token name;
+		// set by the resolver
+		public Slot slot;
 
 		public Variable(Token name) {
 			this.name = name;
@@ -141,6 +143,8 @@ public abstract class Expr {
 
 	public static class This extends Expr {
 		public final Token keyword;
+		// set by the resolver
+		public Slot slot;
 
 		public This(Token keyword) {
 			this.keyword = keyword;
@@ -159,6 +163,9 @@ public abstract class Expr {
 	public static class Super extends Expr {
 		public final Token zuper;
 		public final Token name;
+		// set by the resolver
+		public Slot slot;
+		public Slot receiver;
 
 		public Super(Token zuper, Token name) {
 			this.zuper = zuper;
@@ -175,6 +182,29 @@ public abstract class Expr {
 		}
 	}
 
+	public static class Inline extends Expr {
+		public final Call call;
+		public final Stmt.FunDecl function;
+		public final List<Variable> parameters;
+		public final Expr body;
+
+		public Inline(Call call, Stmt.FunDecl function, List<Variable> parameters, Expr body) {
+			this.call = call;
+			this.function = function;
+			this.parameters = parameters;
+			this.body = body;
+		}
+
+		public <T> T accept(Expr.Visitor<T> visitor) {
+			return visitor.visitInline(this);
+		}
+
+		@Override
+		public String toString() {
+			return "Inline{" + "call=" + call + ", " + "function=" + function + ", " + "parameters=" + parameters + ", " + "body=" + body + "}";
+		}
+	}
+
 
 	public interface Visitor<T> {
 		T visitBinary(Expr.Binary expr);
@@ -186,5 +216,6 @@ public abstract class Expr {
 		T visitSet(Expr.Set expr);
 		T visitThis(Expr.This expr);
 		T visitSuper(Expr.Super expr);
+		T visitInline(Expr.Inline expr);
 	}
 }
@@ -0,0 +1,68 @@
+package lucks;
+
+/**
+ * Locals of one function call. All blocks of the function share the frame,
+ * their variables have distinct slots, so entering a block allocates nothing.
+ */
+public final class Frame {
+
+	public static final Cell[] NO_UPVALUES = new Cell[0];
+
+	private final Object[] slots;
+	private final Cell[] upvalues;
+
+	public Frame(int size, Cell[] upvalues) {
+		this.slots = new Object[size];
+		this.upvalues = upvalues;
+	}
+
+	public Object get(Slot slot) {
+		if (!slot.isCaptured()) return slots[slot.index];
+
+		Cell cell = slot.kind == Slot.Kind.UPVALUE ? upvalues[slot.index] : (Cell) slots[slot.index];
+		return cell.value;
+	}
+
+	public void set(Slot slot, Object value) {
+		if (!slot.isCaptured()) {
+			slots[slot.index] = value;
+		} else if (slot.kind == Slot.Kind.UPVALUE) {
+			upvalues[slot.index].value = value;
+		} else {
+			((Cell) slots[slot.index]).value = value;
+		}
+	}
+
+	/**
+	 * Reads a local that is not captured, for callers that checked the slot once.
+	 */
+	public Object getLocal(int index) {
+		return slots[index];
+	}
+
+	public void setLocal(int index, Object value) {
+		slots[index] = value;
+	}
+
+	/**
+	 * Initializes a local when its declaration is executed, captured locals get
+	 * a fresh cell each time.
+	 */
+	public void define(Slot slot, Object value) {
+		slots[slot.index] = slot.isCaptured() ? new Cell(value) : value;
+	}
+
+	/**
+	 * The cells a closure created in this frame shares with it.
+	 */
+	public Cell[] capture(Slot[] captures) {
+		if (captures.length == 0) return NO_UPVALUES;
+
+		Cell[] cells = new Cell[captures.length];
+		for (int i = 0; i < captures.length; i++) {
+			Slot slot = captures[i];
+			cells[i] = slot.kind == Slot.Kind.UPVALUE ? upvalues[slot.index] : (Cell) slots[slot.index];
+		}
+		return cells;
+	}
+}
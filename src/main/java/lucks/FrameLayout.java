@@ -0,0 +1,19 @@
+package lucks;
+
+/**
+ * What the resolver found out about a function: how many slots its frame needs,
+ * where the parameters go (for methods "this" comes first) and which variables
+ * of the enclosing function its closures capture, as slots of that function.
+ */
+public final class FrameLayout {
+
+	public final int size;
+	public final Slot[] parameters;
+	public final Slot[] captures;
+
+	public FrameLayout(int size, Slot[] parameters, Slot[] captures) {
+		this.size = size;
+		this.parameters = parameters;
+		this.captures = captures;
+	}
+}
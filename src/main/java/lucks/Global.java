@@ -0,0 +1,21 @@
+package lucks;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a public static method to be defined as a Lox function by
+ * {@link Natives#define}. On a class it marks all of its public static
+ * methods.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Global {
+
+	/**
+	 * The name of the Lox function, that of the method by default.
+	 */
+	String value() default "";
+}
@@ -0,0 +1,130 @@
+package lucks;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * The body of a function declared at the top of the program, which is only
+ * parsed when the function is first called. Until then the parser just knows
+ * the range of its tokens; in strict mode it parses and resolves the body
+ * up front to report all errors before running, and only optimizing it is
+ * put off.
+ * <p>
+ * The passes that would have run over the body register with {@link #then}
+ * and run on the first call: resolving and optimizing it, or in strict mode
+ * only optimizing it. Meanwhile the layout of a function not parsed yet only
+ * holds its captures, so closures can be created: the resolver leaves nothing
+ * else for such a function to capture than the "super" of its class. Reading the statements parses them; errors found then
+ * are reported and raised as a {@link RuntimeError} of the call. Preparing is
+ * synchronized, functions may first be called by several threads at once.
+ */
+public final class LazyBody extends AbstractList<Stmt> {
+
+	private enum State {
+		PENDING, PREPARING, READY, FAILED
+	}
+
+	private final Tokens tokens;
+	private final Token name;
+	// the tokens of the body, up to the closing brace
+	private final int start;
+	private final int end;
+	private List<Stmt> stmts;
+	private List<UnaryOperator<List<Stmt>>> passes = new ArrayList<>();
+	private volatile State state = State.PENDING;
+
+	/**
+	 * A body still to be parsed from {@code tokens}, {@code end} being the
+	 * index of its closing brace.
+	 */
+	LazyBody(Tokens tokens, Token name, int start, int end) {
+		this.tokens = tokens;
+		this.name = name;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * A body parsed already, whose passes are still to run.
+	 */
+	LazyBody(Token name, List<Stmt> stmts) {
+		this(null, name, -1, -1);
+		this.stmts = stmts;
+	}
+
+	/**
+	 * Whether the body of {@code fun} is yet to be parsed and resolved.
+	 */
+	public static boolean isPending(Stmt.FunDecl fun) {
+		return fun.body instanceof LazyBody && ((LazyBody) fun.body).state == State.PENDING;
+	}
+
+	/**
+	 * Whether the body of {@code fun} is yet to be parsed, so it cannot be
+	 * resolved either.
+	 */
+	public static boolean isUnparsed(Stmt.FunDecl fun) {
+		return isPending(fun) && ((LazyBody) fun.body).stmts == null;
+	}
+
+	/**
+	 * The statements of {@code fun} as parsed, without running the passes
+	 * still pending on them.
+	 */
+	public static List<Stmt> parsed(Stmt.FunDecl fun) {
+		return fun.body instanceof LazyBody ? ((LazyBody) fun.body).stmts : fun.body;
+	}
+
+	/**
+	 * Runs {@code pass} over the statements once they are parsed, in the order
+	 * the passes were added. The statements it returns replace the body.
+	 */
+	public void then(UnaryOperator<List<Stmt>> pass) {
+		passes.add(pass);
+	}
+
+	/**
+	 * Parses the body and runs the passes, if that did not happen yet.
+	 */
+	public synchronized void prepare() {
+		if (state == State.PENDING) {
+			state = State.PREPARING;
+			// errors are counted apart from the thread's, which tasks share
+			Diagnostics outer = Diagnostics.current();
+			Diagnostics diagnostics = new Diagnostics(outer.err);
+			Diagnostics.use(diagnostics);
+			try {
+				if (stmts == null) stmts = new Parser(tokens, start, end).parse();
+				for (UnaryOperator<List<Stmt>> pass : passes) {
+					if (diagnostics.hadError) break;
+					stmts = pass.apply(stmts);
+				}
+				state = diagnostics.hadError ? State.FAILED : State.READY;
+			} finally {
+				Diagnostics.use(outer);
+				passes = null;
+			}
+		}
+		if (state == State.FAILED) {
+			throw new RuntimeError(name, "Invalid body of '" + name.getLexeme() + "'.");
+		}
+	}
+
+	private List<Stmt> stmts() {
+		// the passes read the statements while they are prepared, in the same thread
+		if (state != State.READY) prepare();
+		return stmts;
+	}
+
+	@Override
+	public Stmt get(int index) {
+		return stmts().get(index);
+	}
+
+	@Override
+	public int size() {
+		return stmts().size();
+	}
+}
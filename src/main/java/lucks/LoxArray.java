@@ -0,0 +1,118 @@
+package lucks;
+
+import java.util.Arrays;
+
+import lucks.visitors.Interpreter;
+
+/**
+ * A growable array. As long as it only holds numbers they are stored unboxed
+ * in a {@code double[]}; the first element of another type moves all of them
+ * to an {@code Object[]}, where they stay. Indices are checked by the
+ * builtins in {@link CollectionFunctions}.
+ */
+public final class LoxArray {
+
+	private static final double[] NO_NUMBERS = new double[0];
+	private static final int MIN_CAPACITY = 8;
+
+	// the elements while all are numbers, null afterwards
+	private double[] numbers;
+	private Object[] values;
+	private int size;
+
+	public LoxArray() {
+		this.numbers = NO_NUMBERS;
+	}
+
+	private LoxArray(double[] numbers, Object[] values, int size) {
+		this.numbers = numbers;
+		this.values = values;
+		this.size = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Whether the elements are stored as plain doubles.
+	 */
+	public boolean isNumeric() {
+		return numbers != null;
+	}
+
+	public Object get(int index) {
+		return numbers != null ? (Object) numbers[index] : values[index];
+	}
+
+	public void set(int index, Object value) {
+		if (numbers != null) {
+			if (value instanceof Double) {
+				numbers[index] = (Double) value;
+				return;
+			}
+			box();
+		}
+		values[index] = value;
+	}
+
+	public void add(Object value) {
+		if (numbers != null) {
+			if (value instanceof Double) {
+				if (size == numbers.length) numbers = Arrays.copyOf(numbers, grow(size));
+				numbers[size++] = (Double) value;
+				return;
+			}
+			box();
+		}
+		if (size == values.length) values = Arrays.copyOf(values, grow(size));
+		values[size++] = value;
+	}
+
+	/**
+	 * Removes the last element, of which there must be one.
+	 */
+	public Object removeLast() {
+		Object last = get(--size);
+		if (values != null) values[size] = null;
+		return last;
+	}
+
+	/**
+	 * A new array of the elements from {@code from} up to {@code to}, stored
+	 * the same way as this one.
+	 */
+	public LoxArray slice(int from, int to) {
+		if (numbers != null) {
+			return new LoxArray(Arrays.copyOfRange(numbers, from, to), null, to - from);
+		}
+		return new LoxArray(null, Arrays.copyOfRange(values, from, to), to - from);
+	}
+
+	private void box() {
+		values = new Object[Math.max(numbers.length, MIN_CAPACITY)];
+		for (int i = 0; i < size; i++) {
+			values[i] = numbers[i];
+		}
+		numbers = null;
+	}
+
+	private static int grow(int size) {
+		return Math.max(MIN_CAPACITY, size + (size >> 1));
+	}
+
+	@Override
+	public String toString() {
+		if (!PrintGuard.enter(this)) return "[...]";
+		try {
+			StringBuilder builder = new StringBuilder("[");
+			for (int i = 0; i < size; i++) {
+				if (i > 0) builder.append(", ");
+				builder.append(Interpreter.stringify(get(i)));
+			}
+			return builder.append(']').toString();
+		} finally {
+			PrintGuard.exit(this);
+		}
+	}
+}
@@ -1,13 +1,37 @@
 package lucks;
 
-import java.util.List;
-
 import lucks.visitors.Interpreter;
 
+/**
+ * Something that can be called from Lox. Calls with up to {@link #MAX_FAST_ARITY}
+ * arguments go through the {@code callN} methods, which pass the values
+ * directly; implementations override the ones matching their arity so these
+ * calls do not collect the arguments at all. The array version is used for
+ * longer argument lists and is where the defaults end up.
+ */
 public interface LoxCallable {
 
+	int MAX_FAST_ARITY = 3;
+
+	Object[] NO_ARGUMENTS = new Object[0];
+
 	int arity();
 
-	Object call(Interpreter interpreter, List<Object> arguments);
+	Object call(Interpreter interpreter, Object[] arguments);
+
+	default Object call0(Interpreter interpreter) {
+		return call(interpreter, NO_ARGUMENTS);
+	}
+
+	default Object call1(Interpreter interpreter, Object a) {
+		return call(interpreter, new Object[] {a});
+	}
+
+	default Object call2(Interpreter interpreter, Object a, Object b) {
+		return call(interpreter, new Object[] {a, b});
+	}
 
+	default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+		return call(interpreter, new Object[] {a, b, c});
+	}
 }
@@ -2,24 +2,27 @@ package lucks;
 
 import lucks.visitors.Interpreter;
 
-import java.util.List;
-import java.util.Map;
-
 public class LoxClass implements LoxCallable {
 
 	private final String name;
-	private final LoxClass superClass;
-	private final Map<String, LoxFunction> methods;
+	private final SymbolMap<LoxFunction> methods;
 	private final LoxFunction constructor;
+	private final Shape instanceShape = Shape.root();
 
-	public LoxClass(String name, LoxClass superClass, Map<String, LoxFunction> methods) {
+	/**
+	 * @param methods the methods declared by the class, keyed by symbol
+	 */
+	public LoxClass(String name, LoxClass superClass, SymbolMap<LoxFunction> methods) {
 		this.name = name;
-		this.superClass = superClass;
-		this.methods = methods;
-		this.constructor = methods.values().stream()
-						.filter(LoxFunction::isConstructor)
-						.findAny()
-						.orElse(null);
+		// inherited methods are copied down, a lookup never walks the superclasses
+		if (superClass != null) {
+			SymbolMap<LoxFunction> all = new SymbolMap<>(superClass.methods);
+			methods.forEach(all::put);
+			this.methods = all;
+		} else {
+			this.methods = methods;
+		}
+		this.constructor = methods.get(Symbols.INIT);
 	}
 
 	@Override
@@ -30,35 +33,59 @@ public class LoxClass implements LoxCallable {
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
+	public Object call(Interpreter interpreter, Object[] arguments) {
 		LoxInstance instance = new LoxInstance(this);
 		if (constructor != null) {
-			constructor.bind(instance).call(interpreter, arguments);
+			constructor.callMethod(interpreter, instance, arguments);
 		}
 		return instance;
 	}
 
+	@Override
+	public Object call0(Interpreter interpreter) {
+		LoxInstance instance = new LoxInstance(this);
+		if (constructor != null) {
+			constructor.callMethod0(interpreter, instance);
+		}
+		return instance;
+	}
+
+	// a class without constructor takes no arguments, so the others always have one
+
+	@Override
+	public Object call1(Interpreter interpreter, Object a) {
+		return constructor.callMethod1(interpreter, new LoxInstance(this), a);
+	}
+
+	@Override
+	public Object call2(Interpreter interpreter, Object a, Object b) {
+		return constructor.callMethod2(interpreter, new LoxInstance(this), a, b);
+	}
+
+	@Override
+	public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+		return constructor.callMethod3(interpreter, new LoxInstance(this), a, b, c);
+	}
+
 	@Override
 	public int arity() {
 		return constructor != null ? constructor.arity() : 0;
 	}
 
 
-	public LoxFunction findMethod(String name) {
-		LoxFunction loxFunction = methods.get(name);
-		if (loxFunction != null) {
-			return loxFunction;
-		}
-
-		if (superClass != null) {
-			return superClass.findMethod(name);
-		}
+	public LoxFunction findMethod(int symbol) {
+		return methods.get(symbol);
+	}
 
-		return null;
+	/**
+	 * The root shape of this class' instances.
+	 */
+	public Shape getInstanceShape() {
+		return instanceShape;
 	}
 
-	public LoxFunction findMethod(LoxInstance instance, String name) {
-		LoxFunction method = findMethod(name);
+	public LoxFunction findMethod(LoxInstance instance, int symbol) {
+		LoxFunction method = findMethod(symbol);
 		if (method != null) {
 			return method.bind(instance);
 		}
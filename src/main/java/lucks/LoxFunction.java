@@ -1,23 +1,73 @@
 package lucks;
 
-import java.util.List;
-
+import lucks.jit.Deoptimization;
+import lucks.jit.JitCode;
+import lucks.jit.JitCompiler;
+import lucks.nodes.NodeBuilder;
+import lucks.nodes.StmtNode;
 import lucks.visitors.Interpreter;
 
+/**
+ * Functions and methods. Each call gets a fresh {@link Frame} laid out as the
+ * resolver computed, variables of enclosing functions are reached through the
+ * cells captured when the closure was created. A method receives its instance
+ * in the first slot, in front of the parameters; {@link #bind} only attaches
+ * the receiver and is needed when a method is used as a value.
+ * <p>
+ * The arguments of short calls are stored into the frame as they are passed,
+ * longer argument lists come as an array.
+ * <p>
+ * Tail calls come back from the body as {@link Completion#TAIL_CALL} and are
+ * run in a loop here, a function calling itself this way reuses its frame.
+ * Methods tail called by name come with the instance they were called on.
+ * Running out of stack is reported as a {@link RuntimeError} of the function
+ * the stack ran out in.
+ * <p>
+ * A {@link LazyBody} is parsed on the first call, which completes the layout.
+ * When the program runs as nodes, the nodes of the body are built on the first
+ * call as well and kept with the function, and with the methods bound from it.
+ * Interpreters forked for other threads build nodes of their own.
+ */
 public class LoxFunction implements LoxCallable {
 
 	private final Stmt.FunDecl fun;
-	private final Environment environment;
+	private FrameLayout layout;
+	// set to null once parsed, after the layout, which other threads then see
+	private volatile LazyBody unparsed;
+	private final Cell[] upvalues;
+	private final boolean isMethod;
 	private final boolean isConstructor;
+	private final LoxInstance receiver;
+	private BoundBody body;
+	// updated by all threads calling the function without synchronization: a
+	// lost update of the count only puts compiling off, compiling twice is
+	// harmless, and the code is published through the volatile field
+	private int callCount;
+	private volatile JitCode compiled;
+	private volatile boolean notCompilable;
+
+	public LoxFunction(Stmt.FunDecl stmt, FrameLayout layout, Cell[] upvalues) {
+		this(stmt, layout, upvalues, false, false, null, null);
+	}
 
-	public LoxFunction(Stmt.FunDecl stmt, Environment environment) {
-		this(stmt, environment, false);
+	/**
+	 * Creates a method of a class.
+	 */
+	public LoxFunction(Stmt.FunDecl method, FrameLayout layout, Cell[] upvalues, boolean isConstructor) {
+		this(method, layout, upvalues, true, isConstructor, null, null);
 	}
 
-	public LoxFunction(Stmt.FunDecl method, Environment environment, boolean isConstructor) {
-		this.fun = method;
-		this.environment = environment;
+	private LoxFunction(Stmt.FunDecl fun, FrameLayout layout, Cell[] upvalues, boolean isMethod,
+	                    boolean isConstructor, LoxInstance receiver, BoundBody body) {
+		this.fun = fun;
+		this.layout = layout;
+		// the body may have been parsed for another closure, the layout is taken over once
+		this.unparsed = fun.body instanceof LazyBody ? (LazyBody) fun.body : null;
+		this.upvalues = upvalues;
+		this.isMethod = isMethod;
 		this.isConstructor = isConstructor;
+		this.receiver = receiver;
+		this.body = body;
 	}
 
 	@Override
@@ -26,22 +76,194 @@ public class LoxFunction implements LoxCallable {
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
-		Environment callEnv = new Environment(environment);
-		for (int i = 0; i < arguments.size(); i++) {
-			callEnv.define(fun.parameters.get(i).getLexeme(), arguments.get(i));
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		if (runsCompiled(interpreter)) return callCompiled(interpreter, arguments);
+		return callMethod(interpreter, receiver, arguments);
+	}
+
+	@Override
+	public Object call0(Interpreter interpreter) {
+		if (runsCompiled(interpreter)) return callCompiled(interpreter, NO_ARGUMENTS);
+		return callMethod0(interpreter, receiver);
+	}
+
+	@Override
+	public Object call1(Interpreter interpreter, Object a) {
+		if (runsCompiled(interpreter)) return callCompiled(interpreter, new Object[] {a});
+		return callMethod1(interpreter, receiver, a);
+	}
+
+	@Override
+	public Object call2(Interpreter interpreter, Object a, Object b) {
+		if (runsCompiled(interpreter)) return callCompiled(interpreter, new Object[] {a, b});
+		return callMethod2(interpreter, receiver, a, b);
+	}
+
+	@Override
+	public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+		if (runsCompiled(interpreter)) return callCompiled(interpreter, new Object[] {a, b, c});
+		return callMethod3(interpreter, receiver, a, b, c);
+	}
+
+	/**
+	 * Calls this method with {@code instance} as "this", without binding it
+	 * first. For plain functions the instance is ignored.
+	 */
+	public Object callMethod(Interpreter interpreter, LoxInstance instance, Object[] arguments) {
+		Frame frame = enter(instance);
+		defineArguments(frame, arguments);
+		return run(interpreter, frame, instance);
+	}
+
+	public Object callMethod0(Interpreter interpreter, LoxInstance instance) {
+		return run(interpreter, enter(instance), instance);
+	}
+
+	public Object callMethod1(Interpreter interpreter, LoxInstance instance, Object a) {
+		Frame frame = enter(instance);
+		frame.define(parameter(0), a);
+		return run(interpreter, frame, instance);
+	}
+
+	public Object callMethod2(Interpreter interpreter, LoxInstance instance, Object a, Object b) {
+		Frame frame = enter(instance);
+		frame.define(parameter(0), a);
+		frame.define(parameter(1), b);
+		return run(interpreter, frame, instance);
+	}
+
+	public Object callMethod3(Interpreter interpreter, LoxInstance instance, Object a, Object b, Object c) {
+		Frame frame = enter(instance);
+		frame.define(parameter(0), a);
+		frame.define(parameter(1), b);
+		frame.define(parameter(2), c);
+		return run(interpreter, frame, instance);
+	}
+
+	private Frame enter(LoxInstance instance) {
+		if (unparsed != null) parse();
+		Frame frame = new Frame(layout.size, upvalues);
+		if (isMethod) {
+			frame.define(layout.parameters[0], instance);
+		}
+		return frame;
+	}
+
+	private void parse() {
+		LazyBody pending = unparsed;
+		if (pending == null) return;
+		pending.prepare();
+		layout = fun.layout;
+		unparsed = null;
+	}
+
+	private Slot parameter(int i) {
+		return layout.parameters[isMethod ? i + 1 : i];
+	}
+
+	private void defineArguments(Frame frame, Object[] arguments) {
+		for (int i = 0; i < arguments.length; i++) {
+			frame.define(parameter(i), arguments[i]);
 		}
+	}
 
-		Object resultValue = null;
+	private Object run(Interpreter interpreter, Frame frame, LoxInstance instance) {
+		Object result = execute(interpreter, frame);
+		return isConstructor ? instance : result;
+	}
+
+	/**
+	 * Runs the body in {@code frame}, which already holds the arguments,
+	 * followed by the tail calls it ends with.
+	 */
+	private Object execute(Interpreter interpreter, Frame frame) {
+		LoxFunction function = this;
 		try {
-			interpreter.executeBlock(fun.body, callEnv);
-		} catch (Return ret) {
-			resultValue = ret.getVal();
+			while (true) {
+				Completion completion = function.executeBody(interpreter, frame);
+				if (completion == Completion.RETURN) return interpreter.takeReturnValue();
+				if (completion != Completion.TAIL_CALL) return null;
+
+				LoxFunction callee = interpreter.takeTailCallee();
+				LoxInstance instance = interpreter.takeTailReceiver();
+				Object[] arguments = interpreter.takeTailArguments();
+				if (callee.unparsed != null) callee.parse();
+				// the locals of the same closure are all declared again before use
+				if (callee.fun != function.fun || callee.upvalues != function.upvalues) {
+					frame = new Frame(callee.layout.size, callee.upvalues);
+				}
+				if (callee.isMethod) {
+					frame.define(callee.layout.parameters[0], instance != null ? instance : callee.receiver);
+				}
+				callee.defineArguments(frame, arguments);
+				function = callee;
+			}
+		} catch (StackOverflowError e) {
+			throw stackOverflow(function);
 		}
-		if (isConstructor()) {
-			resultValue = environment.get("this");
+	}
+
+	private static RuntimeError stackOverflow(LoxFunction function) {
+		return new RuntimeError(function.fun.name, "Stack overflow in '" + function.fun.name.getLexeme() + "'.");
+	}
+
+	private Completion executeBody(Interpreter interpreter, Frame frame) {
+		NodeBuilder nodes = interpreter.getNodes();
+		if (nodes == null) return interpreter.executeBody(fun, frame);
+
+		BoundBody bound = body;
+		if (bound != null && bound.nodes == nodes) return bound.body.execute(frame);
+		StmtNode built = nodes.body(fun);
+		if (bound == null) body = new BoundBody(nodes, built);
+		return built.execute(frame);
+	}
+
+	private boolean runsCompiled(Interpreter interpreter) {
+		JitCompiler jit = interpreter.getJit();
+		if (jit == null || notCompilable) return false;
+
+		if (compiled == null && ++callCount >= JitCompiler.THRESHOLD) {
+			compileWith(jit);
 		}
-		return resultValue;
+		return compiled != null && isStillBound(interpreter);
+	}
+
+	private Object callCompiled(Interpreter interpreter, Object[] arguments) {
+		// another thread may have dropped the code since it was checked
+		JitCode code = compiled;
+		double[] values = numbers(arguments);
+		if (code != null && values != null) {
+			try {
+				return code.invoke(values);
+			} catch (Deoptimization e) {
+				compiled = null;
+				notCompilable = true;
+			} catch (StackOverflowError e) {
+				throw stackOverflow(this);
+			}
+		}
+		return callMethod(interpreter, receiver, arguments);
+	}
+
+	private void compileWith(JitCompiler jit) {
+		// compiled code calls itself directly, which only matches globals; a
+		// local function referring to itself would capture its own variable
+		JitCode code = !isMethod && upvalues.length == 0 ? jit.compile(fun) : null;
+		compiled = code;
+		notCompilable = code == null;
+	}
+
+	private boolean isStillBound(Interpreter interpreter) {
+		return interpreter.getGlobals().get(fun.name.getSymbol()) == this;
+	}
+
+	private static double[] numbers(Object[] arguments) {
+		double[] values = new double[arguments.length];
+		for (int i = 0; i < arguments.length; i++) {
+			if (!(arguments[i] instanceof Double)) return null;
+			values[i] = (Double) arguments[i];
+		}
+		return values;
 	}
 
 	@Override
@@ -50,12 +272,31 @@ public class LoxFunction implements LoxCallable {
 	}
 
 	public LoxFunction bind(LoxInstance loxInstance) {
-		Environment environment = new Environment(this.environment);
-		environment.define("this", loxInstance);
-		return new LoxFunction(fun, environment, isConstructor);
+		return new LoxFunction(fun, layout, upvalues, true, isConstructor, loxInstance, body);
 	}
 
 	public boolean isConstructor() {
 		return isConstructor;
 	}
+
+	/**
+	 * The nodes of the body, built by {@code nodes}.
+	 */
+	private static final class BoundBody {
+		final NodeBuilder nodes;
+		final StmtNode body;
+
+		BoundBody(NodeBuilder nodes, StmtNode body) {
+			this.nodes = nodes;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Whether this is the plain function created from {@code declaration}. The
+	 * optimizer may have rebuilt the declaration, its name token stays the same.
+	 */
+	public boolean isDeclaredBy(Stmt.FunDecl declaration) {
+		return fun.name == declaration.name && receiver == null;
+	}
 }
@@ -1,15 +1,26 @@
 package lucks;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+/**
+ * Fields are stored in an array laid out by the instance's {@link Shape}. Past
+ * {@link Shape#MAX_FIELDS} fields the instance switches to a hash map and no
+ * longer has a shape.
+ */
 public class LoxInstance {
 
+	private static final Object[] NO_VALUES = new Object[0];
+
 	private final LoxClass loxClass;
-	private final Map<String, Object> fields = new HashMap<>();
+	private Shape shape;
+	private Object[] values;
+	private SymbolMap<Object> dictionary;
 
 	public LoxInstance(LoxClass loxClass) {
 		this.loxClass = loxClass;
+		this.shape = loxClass.getInstanceShape();
+		int capacity = shape.capacity();
+		this.values = capacity > 0 ? new Object[capacity] : NO_VALUES;
 	}
 
 	@Override
@@ -19,22 +30,87 @@ public class LoxInstance {
 						'}';
 	}
 
+	public LoxClass getLoxClass() {
+		return loxClass;
+	}
+
+	/**
+	 * The current shape, or null once the fields are kept in a hash map.
+	 */
+	public Shape getShape() {
+		return shape;
+	}
+
+	public Object getField(int index) {
+		return values[index];
+	}
+
+	public void setField(int index, Object value) {
+		values[index] = value;
+	}
+
+	/**
+	 * Adds the field at {@code index}, moving the instance to {@code next}, which
+	 * must be the transition of the current shape for that field.
+	 */
+	public void addField(Shape next, int index, Object value) {
+		if (index >= values.length) {
+			values = Arrays.copyOf(values, next.capacity());
+		}
+		values[index] = value;
+		shape = next;
+	}
+
 	public Object get(Token name) {
-		String field = name.getLexeme();
-		Object val = fields.get(field);
+		Object val = getField(name);
 		if (val != null) {
 			return val;
 		}
 
-		LoxFunction method = loxClass.findMethod(this, field);
+		LoxFunction method = loxClass.findMethod(this, name.getSymbol());
 		if (method != null) {
 			return method;
 		}
 
-		throw new RuntimeError(name, "Undefined property: " + field);
+		throw new RuntimeError(name, "Undefined property: " + name.getLexeme());
+	}
+
+	/**
+	 * The value of a field, null if it is not set or nil.
+	 */
+	public Object getField(Token name) {
+		int field = name.getSymbol();
+		if (dictionary != null) return dictionary.get(field);
+
+		int index = shape.indexOf(field);
+		return index >= 0 ? values[index] : null;
 	}
 
 	public void put(Token name, Object value) {
-		fields.put(name.getLexeme(), value);
+		int field = name.getSymbol();
+		if (dictionary != null) {
+			dictionary.put(field, value);
+			return;
+		}
+
+		int index = shape.indexOf(field);
+		if (index >= 0) {
+			values[index] = value;
+		} else if (shape.size() < Shape.MAX_FIELDS) {
+			addField(shape.withField(field), shape.size(), value);
+		} else {
+			toDictionary();
+			dictionary.put(field, value);
+		}
+	}
+
+	private void toDictionary() {
+		int[] symbols = shape.symbols();
+		dictionary = new SymbolMap<>();
+		for (int i = 0; i < symbols.length; i++) {
+			dictionary.put(symbols[i], values[i]);
+		}
+		shape = null;
+		values = NO_VALUES;
 	}
 }
@@ -0,0 +1,186 @@
+package lucks;
+
+import lucks.visitors.Interpreter;
+
+/**
+ * A hash map with the keys compared as by {@link Interpreter#isEqual}: numbers
+ * and strings by value, everything else by identity. {@link Rope}s are
+ * flattened to their strings to be used as keys.
+ * <p>
+ * Entries are stored by open addressing with linear probing, in parallel
+ * arrays of keys, values and key hashes; removal shifts the following entries
+ * back instead of leaving tombstones. Numbers are compared by their bits and
+ * strings through their cached hash first, without calling {@code equals} on
+ * the keys of colliding entries.
+ */
+public final class LoxMap {
+
+	private static final int MIN_CAPACITY = 8;
+	// stands for the key nil, empty slots have no key
+	private static final Object NIL = new Object();
+
+	private Object[] keys;
+	private Object[] values;
+	private int[] hashes;
+	private int size;
+
+	public LoxMap() {
+		allocate(MIN_CAPACITY);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The value of {@code key}, null if there is none.
+	 */
+	public Object get(Object key) {
+		int slot = find(key);
+		return slot >= 0 ? values[slot] : null;
+	}
+
+	public boolean containsKey(Object key) {
+		return find(key) >= 0;
+	}
+
+	public void put(Object key, Object value) {
+		if (key == null) key = NIL;
+		key = Rope.flatten(key);
+		int hash = hash(key);
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+		for (Object k; (k = keys[slot]) != null; slot = (slot + 1) & mask) {
+			if (hashes[slot] == hash && matches(k, key)) {
+				values[slot] = value;
+				return;
+			}
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		hashes[slot] = hash;
+		if (++size * 4 >= keys.length * 3) resize(keys.length * 2);
+	}
+
+	/**
+	 * Removes the entry of {@code key}, returning its value, null if there is none.
+	 */
+	public Object remove(Object key) {
+		int slot = find(key);
+		if (slot < 0) return null;
+
+		Object value = values[slot];
+		int mask = keys.length - 1;
+		// move back the entries that would not be found across the gap
+		int gap = slot;
+		for (int next = (gap + 1) & mask; keys[next] != null; next = (next + 1) & mask) {
+			int home = hashes[next] & mask;
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				hashes[gap] = hashes[next];
+				gap = next;
+			}
+		}
+		keys[gap] = null;
+		values[gap] = null;
+		size--;
+		return value;
+	}
+
+	/**
+	 * The keys, in no particular order.
+	 */
+	public LoxArray keys() {
+		LoxArray result = new LoxArray();
+		for (Object key : keys) {
+			if (key != null) result.add(key == NIL ? null : key);
+		}
+		return result;
+	}
+
+	private int find(Object key) {
+		if (key instanceof Double) return findNumber((Double) key);
+		if (key == null) key = NIL;
+		key = Rope.flatten(key);
+		int hash = hash(key);
+		int mask = keys.length - 1;
+		for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+			if (hashes[slot] == hash && matches(keys[slot], key)) return slot;
+		}
+		return -1;
+	}
+
+	private int findNumber(double key) {
+		long bits = Double.doubleToLongBits(key);
+		int hash = mix(Long.hashCode(bits));
+		int mask = keys.length - 1;
+		for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+			Object k = keys[slot];
+			if (hashes[slot] == hash && k instanceof Double && Double.doubleToLongBits((Double) k) == bits) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean matches(Object key, Object other) {
+		if (key == other) return true;
+		if (key instanceof String || key instanceof Double || key instanceof Boolean) return key.equals(other);
+		return false;
+	}
+
+	private static int hash(Object key) {
+		if (key instanceof String || key instanceof Double || key instanceof Boolean) return mix(key.hashCode());
+		return mix(System.identityHashCode(key));
+	}
+
+	/**
+	 * Spreads the bits of {@code hash}, the hashes of small integral numbers
+	 * differ only in their upper bits.
+	 */
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private void resize(int capacity) {
+		Object[] oldKeys = keys;
+		Object[] oldValues = values;
+		int[] oldHashes = hashes;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == null) continue;
+			int slot = oldHashes[i] & mask;
+			while (keys[slot] != null) slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+			hashes[slot] = oldHashes[i];
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new Object[capacity];
+		values = new Object[capacity];
+		hashes = new int[capacity];
+	}
+
+	@Override
+	public String toString() {
+		if (!PrintGuard.enter(this)) return "{...}";
+		try {
+			StringBuilder builder = new StringBuilder("{");
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == null) continue;
+				if (builder.length() > 1) builder.append(", ");
+				builder.append(Interpreter.stringify(keys[i] == NIL ? null : keys[i]))
+				       .append(": ")
+				       .append(Interpreter.stringify(values[i]));
+			}
+			return builder.append('}').toString();
+		} finally {
+			PrintGuard.exit(this);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package lucks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lucks.visitors.Interpreter;
+
+/**
+ * Defines static Java methods marked with {@link Global} as Lox functions.
+ * <p>
+ * Each method is bound once to a {@link MethodHandle} taking the interpreter
+ * and the Lox values, with the conversions of its parameter and return types
+ * built into the handle, so a call neither reflects nor looks at the types of
+ * the method. Supported are:
+ * <ul>
+ * <li>{@code double} and {@code int} for numbers, {@code boolean}, and
+ * {@code String} for strings, {@link Rope}s being flattened,</li>
+ * <li>{@link LoxArray}, {@link LoxMap}, {@link LoxCallable} and {@link Task},
+ * which are checked,</li>
+ * <li>{@code Object} for any value,</li>
+ * <li>an {@link Interpreter} as the first parameter, which is passed the
+ * calling interpreter and does not count as an argument.</li>
+ * </ul>
+ * Numbers are returned as doubles, {@code void} as nil. Arguments of the wrong
+ * type raise a {@link BuiltinError}.
+ */
+public final class Natives {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodHandle TO_NUMBER = converter("toNumber", double.class);
+	private static final MethodHandle TO_INT = converter("toInt", int.class);
+	private static final MethodHandle TO_BOOLEAN = converter("toBoolean", boolean.class);
+	private static final MethodHandle TO_STRING = converter("toStringValue", String.class);
+	private static final MethodHandle CHECK = converter("check", Object.class, Class.class, String.class);
+
+	// the functions are bound once per class, every interpreter defines the same
+	private static final ClassValue<List<Builtin>> functions = new ClassValue<List<Builtin>>() {
+		@Override
+		protected List<Builtin> computeValue(Class<?> type) {
+			return bindAll(type);
+		}
+	};
+
+	private Natives() {
+	}
+
+	/**
+	 * Defines the marked methods of {@code type} in {@code globals}.
+	 */
+	public static void define(Environment globals, Class<?> type) {
+		for (Builtin function : functions.get(type)) {
+			globals.define(Symbols.intern(function.getName()), function);
+		}
+	}
+
+	private static List<Builtin> bindAll(Class<?> type) {
+		boolean all = type.isAnnotationPresent(Global.class);
+		List<Builtin> bound = new ArrayList<>();
+		for (Method method : type.getDeclaredMethods()) {
+			Global global = method.getAnnotation(Global.class);
+			if (global == null && !all) continue;
+			int modifiers = method.getModifiers();
+			if (!Modifier.isStatic(modifiers) || !Modifier.isPublic(modifiers)) {
+				if (global == null) continue;
+				throw new IllegalArgumentException(method + " must be public and static.");
+			}
+
+			String name = global != null && !global.value().isEmpty() ? global.value() : method.getName();
+			bound.add(bind(name, method));
+		}
+		return Collections.unmodifiableList(bound);
+	}
+
+	/**
+	 * The Lox function calling {@code method}.
+	 */
+	public static Builtin bind(String name, Method method) {
+		MethodHandle handle;
+		try {
+			handle = LOOKUP.unreflect(method);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(method + " is not accessible.", e);
+		}
+
+		Class<?>[] parameters = method.getParameterTypes();
+		boolean takesInterpreter = parameters.length > 0 && parameters[0] == Interpreter.class;
+		int first = takesInterpreter ? 1 : 0;
+		for (int i = first; i < parameters.length; i++) {
+			MethodHandle converter = converterTo(parameters[i], method);
+			if (converter != null) {
+				handle = MethodHandles.filterArguments(handle, i, converter);
+			}
+		}
+		if (!takesInterpreter) {
+			handle = MethodHandles.dropArguments(handle, 0, Interpreter.class);
+		}
+
+		Class<?> returned = method.getReturnType();
+		if (returned == int.class || returned == long.class || returned == float.class) {
+			handle = handle.asType(handle.type().changeReturnType(double.class));
+		}
+		int arity = parameters.length - first;
+		handle = handle.asType(MethodType.genericMethodType(arity).insertParameterTypes(0, Interpreter.class));
+		return new NativeFunction(name, arity, handle);
+	}
+
+	private static MethodHandle converterTo(Class<?> type, Method method) {
+		if (type == Object.class) return null;
+		if (type == double.class) return TO_NUMBER;
+		if (type == int.class) return TO_INT;
+		if (type == boolean.class) return TO_BOOLEAN;
+		if (type == String.class) return TO_STRING;
+		if (type == LoxArray.class) return check(type, "an array");
+		if (type == LoxMap.class) return check(type, "a map");
+		if (type == LoxCallable.class) return check(type, "a function");
+		if (type == Task.class) return check(type, "a task");
+		throw new IllegalArgumentException(method + " takes a " + type.getSimpleName() + ", which Lox does not have.");
+	}
+
+	private static MethodHandle check(Class<?> type, String description) {
+		MethodHandle check = MethodHandles.insertArguments(CHECK, 1, type, description);
+		return check.asType(check.type().changeReturnType(type));
+	}
+
+	private static MethodHandle converter(String name, Class<?> returned, Class<?>... extra) {
+		MethodType type = MethodType.methodType(returned, Object.class, extra);
+		try {
+			return LOOKUP.findStatic(Natives.class, name, type);
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static double toNumber(Object value) {
+		if (!(value instanceof Double)) throw expected("a number", value);
+		return (Double) value;
+	}
+
+	private static int toInt(Object value) {
+		double number = toNumber(value);
+		if (number != (int) number) throw expected("an integer", value);
+		return (int) number;
+	}
+
+	private static boolean toBoolean(Object value) {
+		if (!(value instanceof Boolean)) throw expected("a boolean", value);
+		return (Boolean) value;
+	}
+
+	private static String toStringValue(Object value) {
+		if (!Rope.isString(value)) throw expected("a string", value);
+		return value.toString();
+	}
+
+	private static Object check(Object value, Class<?> type, String description) {
+		if (!type.isInstance(value)) throw expected(description, value);
+		return value;
+	}
+
+	private static BuiltinError expected(String description, Object value) {
+		return new BuiltinError("Expected " + description + ", was " + Interpreter.stringify(value) + ".");
+	}
+
+	/**
+	 * Calls the handle of a method, which takes the interpreter and
+	 * {@code arity} objects and returns an object.
+	 */
+	private static final class NativeFunction extends Builtin {
+
+		private final MethodHandle handle;
+		// takes the arguments as an array, for the calls with more than three
+		private final MethodHandle spreader;
+
+		NativeFunction(String name, int arity, MethodHandle handle) {
+			super(name, arity);
+			this.handle = handle;
+			this.spreader = handle.asSpreader(Object[].class, arity);
+		}
+
+		@Override
+		public Object call(Interpreter interpreter, Object[] arguments) {
+			switch (arguments.length) {
+				case 0:
+					return call0(interpreter);
+				case 1:
+					return call1(interpreter, arguments[0]);
+				case 2:
+					return call2(interpreter, arguments[0], arguments[1]);
+				case 3:
+					return call3(interpreter, arguments[0], arguments[1], arguments[2]);
+				default:
+					try {
+						return (Object) spreader.invokeExact(interpreter, arguments);
+					} catch (Throwable e) {
+						throw rethrow(e);
+					}
+			}
+		}
+
+		@Override
+		public Object call0(Interpreter interpreter) {
+			try {
+				return (Object) handle.invokeExact(interpreter);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		@Override
+		public Object call1(Interpreter interpreter, Object a) {
+			try {
+				return (Object) handle.invokeExact(interpreter, a);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		@Override
+		public Object call2(Interpreter interpreter, Object a, Object b) {
+			try {
+				return (Object) handle.invokeExact(interpreter, a, b);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		@Override
+		public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+			try {
+				return (Object) handle.invokeExact(interpreter, a, b, c);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		private static RuntimeException rethrow(Throwable e) {
+			if (e instanceof RuntimeException) throw (RuntimeException) e;
+			if (e instanceof Error) throw (Error) e;
+			throw new IllegalStateException(e);
+		}
+	}
+}
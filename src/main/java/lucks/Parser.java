@@ -1,8 +1,5 @@
 package lucks;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
-
 import java.util.*;
 
 import static java.util.Arrays.asList;
@@ -10,10 +7,28 @@ import static lucks.TokenType.*;
 
 public class Parser {
 
-	private static final Map<TokenType, Integer> priorities = new HashMap<>();
-	private static final Map<TokenType, Boolean> leftAssoc = new HashMap<>();
 	public static final int MAX_FUN_ARGS = 8;
 
+	/**
+	 * When the bodies of the functions and methods declared at the top of the
+	 * program are parsed, see {@link LazyBody}.
+	 */
+	public enum Mode {
+		/** all bodies are parsed and resolved up front */
+		EAGER,
+		/** the bodies are only matched for braces, and parsed on the first call */
+		LAZY,
+		/** all bodies are parsed and resolved up front, only optimizing them waits for the first call */
+		STRICT
+	}
+
+	// binding power of the binary operators by token type ordinal, 0 for other tokens
+	private static final int[] priorities = new int[TokenType.values().length];
+	private static final boolean[] leftAssoc = new boolean[TokenType.values().length];
+	// the tokens a statement can start with, where parsing resumes after an error
+	private static final EnumSet<TokenType> statementStarts =
+					EnumSet.of(CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN);
+
 	static {
 		TokenType[][] pdef = {
 						{EQUAL},
@@ -27,25 +42,46 @@ public class Parser {
 						// grouping
 		};
 
-		ArrayList<Object> operators = Lists.newArrayList();
 		for (int i = 0; i < pdef.length; i++) {
 			for (TokenType type : pdef[i]) {
-				priorities.put(type, i + 1);
-				operators.add(type);
-				leftAssoc.put(type, true);
+				priorities[type.ordinal()] = i + 1;
+				leftAssoc[type.ordinal()] = true;
 			}
 		}
-		leftAssoc.put(EQUAL, false);
-
-		ops = operators.toArray(new TokenType[operators.size()]);
+		leftAssoc[EQUAL.ordinal()] = false;
 	}
 
-	private final List<Token> tokens;
+	private final Tokens tokens;
+	private final Mode mode;
+	// the index of the token ending the input, EOF or the closing brace of a lazy body
+	private final int last;
 	private int current;
-	private static TokenType[] ops;
+	// how many blocks enclose the current token
+	private int nesting;
+	// the token last handed out, so asking twice yields the same object
+	private int tokenIndex = -1;
+	private Token token;
+
+	public Parser(Tokens tokens) {
+		this(tokens, Mode.EAGER);
+	}
 
-	public Parser(List<Token> tokens) {
+	public Parser(Tokens tokens, Mode mode) {
 		this.tokens = tokens;
+		this.mode = mode;
+		this.last = tokens.size() - 1;
+	}
+
+	/**
+	 * A parser for the statements of a lazy body, the tokens from {@code start}
+	 * up to the closing brace at {@code end}.
+	 */
+	Parser(Tokens tokens, int start, int end) {
+		this.tokens = tokens;
+		this.mode = Mode.EAGER;
+		this.last = end;
+		this.current = start;
+		this.nesting = 1;
 	}
 
 	public List<Stmt> parse() {
@@ -92,7 +128,7 @@ public class Parser {
 		}
 		consume(LEFT_BRACE, " before class body");
 
-		List<Stmt.FunDecl> methods = new LinkedList<>();
+		List<Stmt.FunDecl> methods = new ArrayList<>();
 		while (!match(RIGHT_BRACE)) {
 			methods.add(funDeclaration("method"));
 		}
@@ -104,7 +140,7 @@ public class Parser {
 		Token name = consume(IDENTIFIER, " for " + kind);
 
 		consume(LEFT_PAREN);
-		List<Token> params = new LinkedList<>();
+		List<Token> params = new ArrayList<>();
 		if (!check(RIGHT_PAREN)) {
 			do {
 				params.add(consume(IDENTIFIER));
@@ -119,18 +155,56 @@ public class Parser {
 		}
 
 		consume(LEFT_BRACE);
-		List<Stmt> body = block();
+		List<Stmt> body = mode == Mode.EAGER || nesting > 0 ? block() : lazyBody(name);
 		return new Stmt.FunDecl(name, params, body);
 	}
 
+	/**
+	 * The body of a function at the top of the program, following its opening
+	 * brace. Functions in blocks may capture the locals around them, they are
+	 * always parsed.
+	 */
+	private List<Stmt> lazyBody(Token name) {
+		if (mode == Mode.STRICT) return new LazyBody(name, block());
+
+		int start = current;
+		int depth = 1;
+		while (!isAtEnd()) {
+			TokenType type = tokens.getType(current);
+			if (type == LEFT_BRACE) {
+				depth++;
+			} else if (type == RIGHT_BRACE && --depth == 0) {
+				break;
+			}
+			current++;
+		}
+		consume(RIGHT_BRACE);
+		return new LazyBody(tokens, name, start, current - 1);
+	}
+
 	private Stmt statement() {
-		if (match(PRINT)) return parsePrintStmt();
-		if (match(RETURN)) return parseReturnStmt();
-		if (match(IF)) return parseIfStmt();
-		if (match(WHILE)) return parseWhileStmt();
-		if (match(FOR)) return parseForStmt();
-		else if (match(LEFT_BRACE)) return parseBlock();
-		else return parseExprStmt();
+		switch (peekType()) {
+			case PRINT:
+				advance();
+				return parsePrintStmt();
+			case RETURN:
+				advance();
+				return parseReturnStmt();
+			case IF:
+				advance();
+				return parseIfStmt();
+			case WHILE:
+				advance();
+				return parseWhileStmt();
+			case FOR:
+				advance();
+				return parseForStmt();
+			case LEFT_BRACE:
+				advance();
+				return parseBlock();
+			default:
+				return parseExprStmt();
+		}
 	}
 
 	private Stmt parseBlock() {
@@ -138,10 +212,12 @@ public class Parser {
 	}
 
 	private List<Stmt> block() {
+		nesting++;
 		List<Stmt> stmts = new ArrayList<>();
 		while (!isAtEnd() && !check(RIGHT_BRACE)) {
 			stmts.add(declaration());
 		}
+		nesting--;
 		consume(RIGHT_BRACE);
 		return stmts;
 	}
@@ -239,10 +315,10 @@ public class Parser {
 	private Expr expression(int priority) {
 		Expr expr = unary();
 
-		while (peekType(ops)) {
-			TokenType opType = peek().getType();
-			Integer nextPrio = priorities.get(opType);
-			if (nextPrio < priority || (nextPrio == priority && leftAssoc.get(opType)))
+		while (!isAtEnd()) {
+			TokenType opType = tokens.getType(current);
+			int nextPrio = priorities[opType.ordinal()];
+			if (nextPrio == 0 || nextPrio < priority || (nextPrio == priority && leftAssoc[opType.ordinal()]))
 				break;
 
 			if (opType == EQUAL) {
@@ -252,7 +328,8 @@ public class Parser {
 				}
 			}
 
-			Token operator = advance();
+			advance();
+			Token operator = previous();
 			Expr rhs = expression(nextPrio);
 			if (opType == EQUAL && expr instanceof Expr.Binary && ((Expr.Binary) expr).right instanceof Expr.Variable) {
 				Expr.Binary lhs = (Expr.Binary) expr;
@@ -299,33 +376,42 @@ public class Parser {
 	}
 
 	private Expr primary() {
-		if (match(TRUE)) return new Expr.Literal(true);
-		if (match(FALSE)) return new Expr.Literal(false);
-		if (match(NIL)) return new Expr.Literal(null);
-		if (match(THIS)) return new Expr.This(previous());
-
-		if (match(NUMBER, STRING)) {
-			return new Expr.Literal(previous().getLiteral());
-		}
-
-		if (match(LEFT_PAREN)) {
-			Expr expr = expression(0);
-			consume(RIGHT_PAREN);
-			return new Expr.Grouping(expr);
-		}
-
-		if (match(SUPER)) {
-			Token keyword = previous();
-			consume(DOT);
-			Token name = consume(IDENTIFIER);
-			return new Expr.Super(keyword, name);
-		}
-
-		if (match(IDENTIFIER)) {
-			return new Expr.Variable(previous());
+		switch (peekType()) {
+			case TRUE:
+				advance();
+				return new Expr.Literal(true);
+			case FALSE:
+				advance();
+				return new Expr.Literal(false);
+			case NIL:
+				advance();
+				return new Expr.Literal(null);
+			case THIS:
+				advance();
+				return new Expr.This(previous());
+			case NUMBER:
+			case STRING:
+				advance();
+				return new Expr.Literal(previous().getLiteral());
+			case LEFT_PAREN: {
+				advance();
+				Expr expr = expression(0);
+				consume(RIGHT_PAREN);
+				return new Expr.Grouping(expr);
+			}
+			case SUPER: {
+				advance();
+				Token keyword = previous();
+				consume(DOT);
+				Token name = consume(IDENTIFIER);
+				return new Expr.Super(keyword, name);
+			}
+			case IDENTIFIER:
+				advance();
+				return new Expr.Variable(previous());
+			default:
+				throw error(peek(), "Expression expected.");
 		}
-
-		throw error(peek(), "Expression expected.");
 	}
 
 	private Token consume(TokenType tokenType) {
@@ -338,7 +424,7 @@ public class Parser {
 		} else {
 			throw error(peek(), String.format("expected %s, but was %s" + s,
 			                                  tokenType,
-			                                  peek().getType()));
+			                                  tokens.getType(current)));
 		}
 	}
 
@@ -347,55 +433,53 @@ public class Parser {
 		return new ParseError(token, msg);
 	}
 
-	private boolean match(TokenType... types) {
-		boolean ret = peekType(types);
+	private boolean match(TokenType type) {
+		boolean ret = check(type);
 		if (ret) advance();
 		return ret;
 	}
 
-	private boolean peekType(TokenType... types) {
-		for (TokenType type : types) {
-			if (check(type)) {
-				return true;
-			}
-		}
-
-		return false;
+	private boolean match(TokenType type, TokenType other) {
+		boolean ret = check(type) || check(other);
+		if (ret) advance();
+		return ret;
 	}
 
-	private Token advance() {
+	private void advance() {
 		if (!isAtEnd()) current++;
-		return previous();
 	}
 
 	private boolean check(TokenType type) {
-		return !isAtEnd() && peek().getType() == type;
+		return !isAtEnd() && tokens.getType(current) == type;
+	}
+
+	private TokenType peekType() {
+		return tokens.getType(current);
 	}
 
 	private boolean isAtEnd() {
-		return current == tokens.size() - 1;
+		return current == last;
 	}
 
 	private Token peek() {
-		return tokens.get(current);
+		return token(current);
 	}
 
 	private Token previous() {
-		return tokens.get(current - 1);
+		return token(current - 1);
+	}
+
+	private Token token(int index) {
+		if (index != tokenIndex) {
+			token = tokens.get(index);
+			tokenIndex = index;
+		}
+		return token;
 	}
 
 	private void synchronize() {
-		HashSet<TokenType> target = Sets.newHashSet(
-						CLASS,
-						FUN,
-						VAR,
-						FOR,
-						IF,
-						WHILE,
-						PRINT,
-						RETURN
-		);
-		while (!isAtEnd() && (previous().getType() != SEMICOLON || !target.contains(peek().getType()))) {
+		while (!isAtEnd() && (tokens.getType(current - 1) != SEMICOLON
+		                      || !statementStarts.contains(tokens.getType(current)))) {
 			advance();
 		}
 	}
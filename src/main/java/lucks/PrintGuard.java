@@ -0,0 +1,29 @@
+package lucks;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * The collections being printed by the current thread, so a collection that
+ * contains itself is printed as a placeholder instead of endlessly.
+ */
+final class PrintGuard {
+
+	private static final ThreadLocal<Set<Object>> printing =
+					ThreadLocal.withInitial(() -> Collections.newSetFromMap(new IdentityHashMap<>()));
+
+	private PrintGuard() {
+	}
+
+	/**
+	 * Starts printing {@code collection}, false if it is being printed already.
+	 */
+	static boolean enter(Object collection) {
+		return printing.get().add(collection);
+	}
+
+	static void exit(Object collection) {
+		printing.get().remove(collection);
+	}
+}
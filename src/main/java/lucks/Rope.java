@@ -0,0 +1,108 @@
+package lucks;
+
+/**
+ * A string built by concatenation, which Lox code cannot tell from a
+ * {@link String}. Its characters are the first {@code length} ones of a
+ * builder that several ropes may share: appending to the rope that ends where
+ * the builder does extends the builder in place, so building a string piece
+ * by piece, as in {@code s = s + line}, copies each piece only once. Other
+ * concatenations copy both sides into a new builder.
+ * <p>
+ * Printing, comparing and hashing a rope, and passing it to a builtin, work
+ * on the flat string, which is made on the first use and kept.
+ */
+public final class Rope implements CharSequence {
+
+	// concatenations shorter than this give plain strings
+	private static final int MIN_LENGTH = 256;
+
+	private final StringBuilder chars;
+	private final int length;
+	private String flat;
+
+	private Rope(StringBuilder chars, int length) {
+		this.chars = chars;
+		this.length = length;
+	}
+
+	/**
+	 * Whether {@code value} is a Lox string, a {@link String} or a rope.
+	 */
+	public static boolean isString(Object value) {
+		return value instanceof String || value instanceof Rope;
+	}
+
+	/**
+	 * The concatenation of two Lox strings.
+	 */
+	public static Object concat(Object left, Object right) {
+		CharSequence first = (CharSequence) left;
+		CharSequence second = (CharSequence) right;
+		int length = first.length() + second.length();
+		if (first instanceof Rope) {
+			Rope rope = (Rope) first;
+			// flattened before locking, a rope on the right has a builder of its own
+			String tail = second.toString();
+			synchronized (rope.chars) {
+				if (rope.length == rope.chars.length()) {
+					rope.chars.append(tail);
+					return new Rope(rope.chars, length);
+				}
+			}
+		}
+		if (length < MIN_LENGTH) {
+			return first.toString().concat(second.toString());
+		}
+		// room to append as much again, unless doubling would overflow
+		StringBuilder chars = new StringBuilder(length <= Integer.MAX_VALUE / 2 ? length * 2 : length);
+		append(chars, first);
+		append(chars, second);
+		return new Rope(chars, length);
+	}
+
+	private static void append(StringBuilder chars, CharSequence string) {
+		if (string instanceof Rope) {
+			Rope rope = (Rope) string;
+			synchronized (rope.chars) {
+				chars.append(rope.chars, 0, rope.length);
+			}
+		} else {
+			chars.append((String) string);
+		}
+	}
+
+	/**
+	 * The flat string of a Lox string, other values are returned unchanged.
+	 */
+	public static Object flatten(Object value) {
+		return value instanceof Rope ? value.toString() : value;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index >= length) throw new IndexOutOfBoundsException(String.valueOf(index));
+		return toString().charAt(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return toString().subSequence(start, end);
+	}
+
+	@Override
+	public String toString() {
+		String result = flat;
+		if (result == null) {
+			synchronized (chars) {
+				result = chars.substring(0, length);
+			}
+			flat = result;
+		}
+		return result;
+	}
+}
@@ -3,9 +3,21 @@ package lucks;
 public class RuntimeError extends RuntimeException {
 
 	public final Token token;
+	private final int line;
 
 	public RuntimeError(Token token, String msg) {
 		super(msg);
 		this.token = token;
+		this.line = token.getLine();
+	}
+
+	public RuntimeError(int line, String msg) {
+		super(msg);
+		this.token = null;
+		this.line = line;
+	}
+
+	public int getLine() {
+		return line;
 	}
 }
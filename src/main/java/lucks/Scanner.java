@@ -1,43 +1,81 @@
 package lucks;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 
 /**
+ * Splits a source into {@link Tokens}. The source can be any character
+ * sequence; files are mapped into memory and decoded from there, readers are
+ * drained into a buffer, so neither is turned into a String first.
+ *
  * @author Johannes Herr
  */
 public class Scanner {
 
-	private final List<Token> tokens = new LinkedList<>();
-	private final String content;
+	private final CharSequence content;
+	private final Tokens tokens;
 	private int pos = 0;
 	private int line = 1;
 
-	private static final Map<String, TokenType> map = new HashMap<>();
+	private static final SymbolMap<TokenType> keywords = new SymbolMap<>();
 	static {
-		map.put("if", TokenType.IF);
-		map.put("else", TokenType.ELSE);
-		map.put("while", TokenType.WHILE);
-		map.put("for", TokenType.FOR);
-		map.put("fun", TokenType.FUN);
-		map.put("class", TokenType.CLASS);
-		map.put("nil", TokenType.NIL);
-		map.put("and", TokenType.AND);
-		map.put("or", TokenType.OR);
-		map.put("print", TokenType.PRINT);
-		map.put("return", TokenType.RETURN);
-		map.put("super", TokenType.SUPER);
-		map.put("this", TokenType.THIS);
-		map.put("true", TokenType.TRUE);
-		map.put("false", TokenType.FALSE);
-		map.put("var", TokenType.VAR);
-	}
-
-	public Scanner(String content) {
+		keywords.put(Symbols.intern("if"), TokenType.IF);
+		keywords.put(Symbols.intern("else"), TokenType.ELSE);
+		keywords.put(Symbols.intern("while"), TokenType.WHILE);
+		keywords.put(Symbols.intern("for"), TokenType.FOR);
+		keywords.put(Symbols.intern("fun"), TokenType.FUN);
+		keywords.put(Symbols.intern("class"), TokenType.CLASS);
+		keywords.put(Symbols.intern("nil"), TokenType.NIL);
+		keywords.put(Symbols.intern("and"), TokenType.AND);
+		keywords.put(Symbols.intern("or"), TokenType.OR);
+		keywords.put(Symbols.intern("print"), TokenType.PRINT);
+		keywords.put(Symbols.intern("return"), TokenType.RETURN);
+		keywords.put(Symbols.intern("super"), TokenType.SUPER);
+		keywords.put(Symbols.intern("this"), TokenType.THIS);
+		keywords.put(Symbols.intern("true"), TokenType.TRUE);
+		keywords.put(Symbols.intern("false"), TokenType.FALSE);
+		keywords.put(Symbols.intern("var"), TokenType.VAR);
+	}
+
+	public Scanner(CharSequence content) {
 		this.content = content;
+		this.tokens = new Tokens(content);
+	}
+
+	public Scanner(Reader reader) throws IOException {
+		this(readAll(reader));
+	}
+
+	/**
+	 * Scans a UTF-8 encoded file.
+	 */
+	public static Scanner forFile(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new Scanner(StandardCharsets.UTF_8.decode(bytes));
+		}
+	}
+
+	private static CharSequence readAll(Reader reader) throws IOException {
+		char[] buffer = new char[8192];
+		int length = 0;
+		int read;
+		while ((read = reader.read(buffer, length, buffer.length - length)) != -1) {
+			length += read;
+			if (length == buffer.length) {
+				char[] larger = new char[buffer.length * 2];
+				System.arraycopy(buffer, 0, larger, 0, length);
+				buffer = larger;
+			}
+		}
+		return CharBuffer.wrap(buffer, 0, length);
 	}
 
 	// 21:54-
@@ -47,11 +85,11 @@ public class Scanner {
 		TokenType[] values = TokenType.values();
 		for (int i = split.length + dbl.length * 2; i < values.length; i++) {
 			TokenType tokenType = values[i];
-			System.out.println(String.format("\tmap.put(\"%s\", TokenType.%s);", tokenType.toString().toLowerCase(), tokenType));
+			System.out.println(String.format("\tkeywords.put(Symbols.intern(\"%s\"), TokenType.%s);", tokenType.toString().toLowerCase(), tokenType));
 		}
 	}
 
-	public List<Token> scanTokens() {
+	public Tokens scanTokens() {
 
 		while (!isAtEOF()) {
 			char c = peek();
@@ -77,7 +115,7 @@ public class Scanner {
 					if (match('/')) {
 						while (!isAtEOF() && peek() != '\n') consume();
 					} else {
-						tokens.add(new Token(TokenType.SLASH, null, null, line));
+						tokens.add(TokenType.SLASH, pos - 1, 1, line, Tokens.NO_SYMBOL);
 					} 
 					break;
 
@@ -111,7 +149,7 @@ public class Scanner {
 			}
 		}
 
-		tokens.add(new Token(TokenType.EOF, null, null, line));
+		tokens.add(TokenType.EOF, pos, 0, line, Tokens.NO_SYMBOL);
 
 		return tokens;
 	}
@@ -121,8 +159,9 @@ public class Scanner {
 
 		while (!isAtEOF() && (isAlpha(peek()) || isDigit(peek()) || peek() == '_')) consume();
 
-		String val = content.substring(start, pos);
-		tokens.add(new Token(map.getOrDefault(val, TokenType.IDENTIFIER), val, null, line));
+		int symbol = Symbols.intern(content, start, pos - start);
+		TokenType keyword = keywords.get(symbol);
+		tokens.add(keyword != null ? keyword : TokenType.IDENTIFIER, start, pos - start, line, symbol);
 	}
 
 	private boolean isAlpha(char c) {
@@ -141,8 +180,7 @@ public class Scanner {
 		} else {
 			consume('"');
 		}
-		String lit = content.substring(start, pos);
-		tokens.add(new Token(TokenType.STRING, lit, lit.substring(1, lit.length() - 1), line));
+		tokens.add(TokenType.STRING, start, pos - start, line, Tokens.NO_SYMBOL);
 	}
 
 	private void scanNumber() {
@@ -152,8 +190,7 @@ public class Scanner {
 			consume();
 			while (isDigit()) consume();
 		}
-		String lit = content.substring(start, pos);
-		tokens.add(new Token(TokenType.NUMBER, lit, Double.parseDouble(lit), line));
+		tokens.add(TokenType.NUMBER, start, pos - start, line, Tokens.NO_SYMBOL);
 	}
 
 	private boolean isDigit() {
@@ -165,20 +202,19 @@ public class Scanner {
 	}
 
 	private void addToken(TokenType type) {
-		char c = consume();
-		tokens.add(new Token(type, String.valueOf(c), null, line));
+		tokens.add(type, pos, 1, line, Tokens.NO_SYMBOL);
+		consume();
 	}
 
 	private void addDblToken(TokenType simple, char next, TokenType dbl) {
-		char c1 = consume();
-		Token token;
+		int start = pos;
+		consume();
 		if (match(next)) {
-			char c2 = consume();
-			token = new Token(dbl, c1 + "" + c2, null, line);
+			consume();
+			tokens.add(dbl, start, 2, line, Tokens.NO_SYMBOL);
 		} else {
-			token = new Token(simple, String.valueOf(c1), null, line);
+			tokens.add(simple, start, 1, line, Tokens.NO_SYMBOL);
 		}
-		tokens.add(token);
 	}
 
 	private boolean match(char next) {
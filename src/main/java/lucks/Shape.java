@@ -0,0 +1,73 @@
+package lucks;
+
+import java.util.Arrays;
+
+/**
+ * Hidden class of a {@link LoxInstance}: the symbols of its fields in the order
+ * they were added, which gives each field a fixed index into the instance's
+ * value array. Instances that get the same fields in the same order share a
+ * shape, the shapes of a class form a tree of transitions from its root.
+ */
+public final class Shape {
+
+	/**
+	 * Instances with more fields keep them in a hash map instead, so using an
+	 * instance as a dictionary does not create a long chain of shapes.
+	 */
+	public static final int MAX_FIELDS = 64;
+
+	private final Shape root;
+	private final int[] symbols;
+	private final SymbolMap<Shape> transitions = new SymbolMap<>();
+	// largest shape reached from the root, the initial size of new instances
+	private int capacity;
+
+	private Shape(Shape root, int[] symbols) {
+		this.root = root != null ? root : this;
+		this.symbols = symbols;
+	}
+
+	public static Shape root() {
+		return new Shape(null, new int[0]);
+	}
+
+	public int size() {
+		return symbols.length;
+	}
+
+	public int indexOf(int symbol) {
+		for (int i = 0; i < symbols.length; i++) {
+			if (symbols[i] == symbol) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * The shape after adding {@code symbol}, which gets index {@link #size()}.
+	 */
+	public synchronized Shape withField(int symbol) {
+		Shape next = transitions.get(symbol);
+		if (next == null) {
+			int[] extended = Arrays.copyOf(symbols, symbols.length + 1);
+			extended[symbols.length] = symbol;
+			next = new Shape(root, extended);
+			transitions.put(symbol, next);
+			root.capacity = Math.max(root.capacity, extended.length);
+		}
+		return next;
+	}
+
+	/**
+	 * The number of fields to make room for in a new instance.
+	 */
+	public int capacity() {
+		return root.capacity;
+	}
+
+	/**
+	 * The symbols of the fields by index, not to be modified.
+	 */
+	public int[] symbols() {
+		return symbols;
+	}
+}
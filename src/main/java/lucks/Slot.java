@@ -0,0 +1,41 @@
+package lucks;
+
+/**
+ * Resolved location of a local variable. Locals live in the frame of the
+ * function declaring them, at an index handed out by the
+ * {@link lucks.visitors.Resolver}. Variables of enclosing functions are reached
+ * through the upvalues of the closure.
+ * <p>
+ * A local that is captured by an inner function is kept in a {@link Cell},
+ * which the closure shares with the frame. All references to a local share one
+ * slot, so marking it as captured affects all of them.
+ */
+public final class Slot {
+
+	public enum Kind {
+		LOCAL, UPVALUE
+	}
+
+	public final Kind kind;
+	public final int index;
+	private boolean captured;
+
+	public Slot(Kind kind, int index) {
+		this.kind = kind;
+		this.index = index;
+		this.captured = kind == Kind.UPVALUE;
+	}
+
+	public boolean isCaptured() {
+		return captured;
+	}
+
+	public void markCaptured() {
+		captured = true;
+	}
+
+	@Override
+	public String toString() {
+		return "Slot{" + "kind=" + kind + ", index=" + index + ", captured=" + captured + "}";
+	}
+}
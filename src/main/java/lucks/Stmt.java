@@ -60,6 +60,8 @@ public abstract class Stmt {
 	public static class Var extends Stmt {
 		public final Token name;
 		public final Expr initializer;
+		// set by the resolver
+		public Slot slot;
 
 		public Var(Token name, Expr initializer) {
 			this.name = name;
@@ -80,6 +82,9 @@ public abstract class Stmt {
 		public final Token name;
 		public final List<Token> parameters;
 		public final List<Stmt> body;
+		// set by the resolver
+		public Slot slot;
+		public FrameLayout layout;
 
 		public FunDecl(Token name, List<Token> parameters, List<Stmt> body) {
 			this.name = name;
@@ -100,6 +105,8 @@ public abstract class Stmt {
 	public static class Return extends Stmt {
 		public final Token keyword;
 		public final Expr value;
+		// set by the resolver
+		public boolean isTailCall;
 
 		public Return(Token keyword, Expr value) {
 			this.keyword = keyword;
@@ -160,6 +167,10 @@ public abstract class Stmt {
 		public final Token name;
 		public final Token superClass;
 		public final List<FunDecl> methods;
+		// set by the resolver
+		public Slot slot;
+		public Slot superClassSlot;
+		public Slot superSlot;
 
 		public Class(Token name, Token superClass, List<FunDecl> methods) {
 			this.name = name;
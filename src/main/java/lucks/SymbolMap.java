@@ -0,0 +1,105 @@
+package lucks;
+
+import java.util.Arrays;
+
+/**
+ * Map from {@link Symbols symbol} ids to values, using open addressing with
+ * linear probing over plain arrays. Lookups compare ints only.
+ */
+public final class SymbolMap<V> {
+
+	private static final int EMPTY = -1;
+
+	private int[] keys;
+	private Object[] values;
+	private int size;
+
+	public SymbolMap() {
+		this(8);
+	}
+
+	/**
+	 * @param capacity a power of two
+	 */
+	private SymbolMap(int capacity) {
+		keys = new int[capacity];
+		values = new Object[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	public SymbolMap(SymbolMap<? extends V> other) {
+		keys = other.keys.clone();
+		values = other.values.clone();
+		size = other.size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int mask = keys.length - 1;
+		for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+			int k = keys[i];
+			if (k == key) return (V) values[i];
+			if (k == EMPTY) return null;
+		}
+	}
+
+	public boolean containsKey(int key) {
+		int mask = keys.length - 1;
+		for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+			int k = keys[i];
+			if (k == key) return true;
+			if (k == EMPTY) return false;
+		}
+	}
+
+	public void put(int key, V value) {
+		int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		while (keys[i] != EMPTY) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) grow();
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(Entry<? super V> action) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) action.accept(keys[i], (V) values[i]);
+		}
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				@SuppressWarnings("unchecked")
+				V value = (V) oldValues[i];
+				put(oldKeys[i], value);
+			}
+		}
+	}
+
+	private static int mix(int key) {
+		// ids are dense, spread neighbours apart a little
+		return key * 0x9E3779B9 >>> 16 ^ key;
+	}
+
+	public interface Entry<V> {
+		void accept(int key, V value);
+	}
+}
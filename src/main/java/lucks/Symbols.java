@@ -0,0 +1,101 @@
+package lucks;
+
+import java.util.Arrays;
+
+/**
+ * Global table of names. Every identifier is interned once by the
+ * {@link Scanner} and from then on known by a small integer id, which is what
+ * environments, shapes and method tables are keyed by.
+ * <p>
+ * Interning is synchronized. {@link #name} is not: the names are published
+ * through a volatile array, which is written again after every new name, so
+ * threads that got an id from another one find its name.
+ */
+public final class Symbols {
+
+	private static final int EMPTY = -1;
+
+	private static volatile String[] names = new String[256];
+	private static int[] hashes = new int[256];
+	private static int[] table = newTable(512);
+	private static int count;
+
+	public static final int THIS = intern("this");
+	public static final int SUPER = intern("super");
+	public static final int INIT = intern("init");
+
+	private Symbols() {
+	}
+
+	public static int intern(String name) {
+		return intern(name, 0, name.length());
+	}
+
+	/**
+	 * The id of the characters from {@code start} to {@code start + length},
+	 * which are only copied if the name is new.
+	 */
+	public static synchronized int intern(CharSequence source, int start, int length) {
+		int hash = hash(source, start, length);
+		int mask = table.length - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			int id = table[i];
+			if (id == EMPTY) {
+				return add(source.subSequence(start, start + length).toString(), hash, i);
+			}
+			if (hashes[id] == hash && matches(names[id], source, start, length)) return id;
+		}
+	}
+
+	public static String name(int id) {
+		return names[id];
+	}
+
+	private static int add(String name, int hash, int index) {
+		String[] current = names;
+		if (count == current.length) {
+			current = Arrays.copyOf(current, count * 2);
+			hashes = Arrays.copyOf(hashes, count * 2);
+		}
+		int id = count++;
+		current[id] = name;
+		names = current;
+		hashes[id] = hash;
+		table[index] = id;
+		if (count * 2 > table.length) rehash();
+		return id;
+	}
+
+	private static void rehash() {
+		int[] larger = newTable(table.length * 2);
+		int mask = larger.length - 1;
+		for (int id = 0; id < count; id++) {
+			int i = hashes[id] & mask;
+			while (larger[i] != EMPTY) i = (i + 1) & mask;
+			larger[i] = id;
+		}
+		table = larger;
+	}
+
+	private static int[] newTable(int size) {
+		int[] table = new int[size];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	private static int hash(CharSequence source, int start, int length) {
+		int hash = 0;
+		for (int i = start; i < start + length; i++) {
+			hash = 31 * hash + source.charAt(i);
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean matches(String name, CharSequence source, int start, int length) {
+		if (name.length() != length) return false;
+		for (int i = 0; i < length; i++) {
+			if (name.charAt(i) != source.charAt(start + i)) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,110 @@
+package lucks;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lucks.visitors.Interpreter;
+
+/**
+ * A function running on a thread of its own, with an interpreter forked from
+ * the one that spawned it. Tasks run on virtual threads where the JVM has
+ * them (Java 21 on), so there can be many thousands of them. Older JVMs,
+ * including the JDK 17 the project builds with, run them on a bounded pool of
+ * platform threads, where the tasks beyond {@link #MAX_THREADS} wait in a
+ * queue; joining a task that has not started yet runs it in the joining
+ * thread, so tasks waiting for each other cannot use up the pool.
+ * <p>
+ * A runtime error the function ends with is raised again by {@link #join}.
+ * Errors found while parsing a lazy body go to the diagnostics of the
+ * spawning thread.
+ */
+public final class Task {
+
+	/**
+	 * The size of the pool of platform threads, if there are no virtual threads.
+	 */
+	public static final int MAX_THREADS = 256;
+
+	private static final ExecutorService executor = createExecutor();
+
+	private final FutureTask<Object> future;
+
+	private Task(FutureTask<Object> future) {
+		this.future = future;
+	}
+
+	/**
+	 * Starts calling {@code function} without arguments in a fork of {@code interpreter}.
+	 */
+	public static Task spawn(Interpreter interpreter, LoxCallable function) {
+		Interpreter fork = interpreter.fork();
+		Diagnostics diagnostics = Diagnostics.current();
+		FutureTask<Object> future = new FutureTask<>(() -> {
+			Diagnostics previous = Diagnostics.current();
+			Diagnostics.use(diagnostics);
+			try {
+				return function.call0(fork);
+			} finally {
+				Diagnostics.use(previous);
+			}
+		});
+		executor.execute(future);
+		return new Task(future);
+	}
+
+	/**
+	 * Waits for the task to finish and returns its result, or raises the error
+	 * it ended with.
+	 */
+	public Object join() {
+		// does nothing if a thread of the executor started the task already
+		future.run();
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BuiltinError("Interrupted while joining a task.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof StackOverflowError) throw new BuiltinError("Stack overflow in task.");
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	/**
+	 * A virtual thread per task if the JVM has them, which is looked up
+	 * reflectively as the sources target Java 8.
+	 */
+	private static ExecutorService createExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			AtomicInteger threads = new AtomicInteger();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(
+							MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+				Thread thread = new Thread(task, "lox-task-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			pool.allowCoreThreadTimeOut(true);
+			return pool;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "<task>";
+	}
+}
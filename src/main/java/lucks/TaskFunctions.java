@@ -0,0 +1,36 @@
+package lucks;
+
+import lucks.visitors.Interpreter;
+
+/**
+ * The builtins running functions concurrently:
+ * <pre>
+ * spawn(function)  starts calling the function, which takes no arguments, in a {@link Task}
+ * join(task)       waits for the task and returns the result of the function
+ * done(task)       whether the task has finished
+ * </pre>
+ * Tasks share the globals and the objects passed to them; access to them is
+ * not synchronized.
+ */
+@Global
+public final class TaskFunctions {
+
+	private TaskFunctions() {
+	}
+
+	public static Task spawn(Interpreter interpreter, LoxCallable function) {
+		if (function.arity() != 0) {
+			throw new BuiltinError("Can only spawn functions without parameters, " + function + " has " +
+			                       function.arity() + ".");
+		}
+		return Task.spawn(interpreter, function);
+	}
+
+	public static Object join(Task task) {
+		return task.join();
+	}
+
+	public static boolean done(Task task) {
+		return task.isDone();
+	}
+}
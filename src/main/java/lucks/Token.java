@@ -8,12 +8,17 @@ public class Token {
 	private final String lexeme;
 	private final Object literal;
 	private final int line;
+	private final int symbol;
 
-	public Token(TokenType type, String lexeme, Object literal, int line) {
+	/**
+	 * @param symbol the interned name for identifiers and keywords, otherwise {@link Tokens#NO_SYMBOL}
+	 */
+	public Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
 		this.type = type;
 		this.lexeme = lexeme;
 		this.literal = literal;
 		this.line = line;
+		this.symbol = symbol;
 	}
 
 	public TokenType getType() {
@@ -32,6 +37,10 @@ public class Token {
 		return line;
 	}
 
+	public int getSymbol() {
+		return symbol;
+	}
+
 	@Override
 	public String toString() {
 		return "Token{" +
@@ -0,0 +1,86 @@
+package lucks;
+
+import java.util.Arrays;
+
+/**
+ * The tokens of a source, stored as parallel arrays of type, offset, length,
+ * line and symbol instead of one object per token. Lexemes and literals stay
+ * in the source until the parser asks for a {@link Token}, which is only done
+ * for the tokens that end up in the AST or in an error message.
+ */
+public final class Tokens {
+
+	private static final TokenType[] TYPES = TokenType.values();
+
+	/**
+	 * Symbol of tokens that are not names.
+	 */
+	public static final int NO_SYMBOL = -1;
+
+	private final CharSequence source;
+	private int[] types = new int[256];
+	private int[] offsets = new int[256];
+	private int[] lengths = new int[256];
+	private int[] lines = new int[256];
+	private int[] symbols = new int[256];
+	private int size;
+
+	Tokens(CharSequence source) {
+		this.source = source;
+	}
+
+	void add(TokenType type, int offset, int length, int line, int symbol) {
+		if (size == types.length) {
+			int capacity = size * 2;
+			types = Arrays.copyOf(types, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			symbols = Arrays.copyOf(symbols, capacity);
+		}
+		types[size] = type.ordinal();
+		offsets[size] = offset;
+		lengths[size] = length;
+		lines[size] = line;
+		symbols[size] = symbol;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public TokenType getType(int index) {
+		return TYPES[types[index]];
+	}
+
+	public int getLine(int index) {
+		return lines[index];
+	}
+
+	public String getLexeme(int index) {
+		if (symbols[index] != NO_SYMBOL) return Symbols.name(symbols[index]);
+		if (types[index] == TokenType.EOF.ordinal()) return null;
+		return source.subSequence(offsets[index], offsets[index] + lengths[index]).toString();
+	}
+
+	/**
+	 * Creates the token at {@code index}, every call returns a new object.
+	 */
+	public Token get(int index) {
+		TokenType type = getType(index);
+		String lexeme = getLexeme(index);
+		return new Token(type, lexeme, literal(type, lexeme), lines[index], symbols[index]);
+	}
+
+	static Object literal(TokenType type, String lexeme) {
+		switch (type) {
+			case NUMBER:
+				return Double.parseDouble(lexeme);
+			case STRING:
+				return lexeme.substring(1, lexeme.length() - 1);
+			default:
+				return null;
+		}
+	}
+}
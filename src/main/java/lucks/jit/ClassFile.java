@@ -0,0 +1,331 @@
+package lucks.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer for JVM class files, just enough for the {@link JitCompiler}.
+ * Classes are written in version 49 (Java 5) so no stack map frames have to be
+ * computed, the JVM verifies them by type inference instead.
+ */
+class ClassFile {
+
+	private static final int VERSION = 49;
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_STATIC = 0x0008;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final Map<String, Integer> poolIndex = new HashMap<>();
+	private int poolCount = 1;
+
+	private final String name;
+	private final int thisClass;
+	private final int superClass;
+	private final int[] interfaces;
+	private final List<byte[]> methods = new ArrayList<>();
+
+	ClassFile(String name, String superName, String... interfaceNames) {
+		this.name = name;
+		this.thisClass = classRef(name);
+		this.superClass = classRef(superName);
+		this.interfaces = new int[interfaceNames.length];
+		for (int i = 0; i < interfaceNames.length; i++) {
+			interfaces[i] = classRef(interfaceNames[i]);
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int utf8(String value) {
+		return constant("U" + value, out -> {
+			out.writeByte(CONSTANT_UTF8);
+			out.writeUTF(value);
+		}, 1);
+	}
+
+	int classRef(String internalName) {
+		int nameIndex = utf8(internalName);
+		return constant("C" + internalName, out -> {
+			out.writeByte(CONSTANT_CLASS);
+			out.writeShort(nameIndex);
+		}, 1);
+	}
+
+	int doubleConstant(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		return constant("D" + bits, out -> {
+			out.writeByte(CONSTANT_DOUBLE);
+			out.writeLong(bits);
+		}, 2);
+	}
+
+	int methodRef(String owner, String name, String descriptor) {
+		return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+	}
+
+	int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+	}
+
+	private int memberRef(int tag, String owner, String name, String descriptor) {
+		int ownerIndex = classRef(owner);
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		int nameAndType = constant("N" + name + ":" + descriptor, out -> {
+			out.writeByte(CONSTANT_NAME_AND_TYPE);
+			out.writeShort(nameIndex);
+			out.writeShort(descriptorIndex);
+		}, 1);
+		return constant(tag + owner + "." + name + ":" + descriptor, out -> {
+			out.writeByte(tag);
+			out.writeShort(ownerIndex);
+			out.writeShort(nameAndType);
+		}, 1);
+	}
+
+	void addMethod(String name, String descriptor, boolean isStatic, Code code) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		int codeIndex = utf8("Code");
+		byte[] instructions = code.toByteArray();
+		try {
+			out.writeShort(ACC_PUBLIC | (isStatic ? ACC_STATIC : 0));
+			out.writeShort(nameIndex);
+			out.writeShort(descriptorIndex);
+			out.writeShort(1);
+			out.writeShort(codeIndex);
+			out.writeInt(12 + instructions.length);
+			out.writeShort(code.getMaxStack());
+			out.writeShort(code.getMaxLocals());
+			out.writeInt(instructions.length);
+			out.write(instructions);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		methods.add(bytes.toByteArray());
+	}
+
+	byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(VERSION);
+			out.writeShort(poolCount);
+			poolOut.flush();
+			pool.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(interfaces.length);
+			for (int anInterface : interfaces) {
+				out.writeShort(anInterface);
+			}
+			out.writeShort(0); // fields
+			out.writeShort(methods.size());
+			for (byte[] method : methods) {
+				out.write(method);
+			}
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private int constant(String key, PoolEntry entry, int size) {
+		Integer index = poolIndex.get(key);
+		if (index != null) return index;
+
+		try {
+			entry.write(poolOut);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		index = poolCount;
+		poolCount += size;
+		poolIndex.put(key, index);
+		return index;
+	}
+
+	private interface PoolEntry {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * Instruction buffer of a single method. Keeps track of the operand stack
+	 * depth so the maximum can be written into the Code attribute.
+	 */
+	static class Code {
+
+		static final int ICONST_0 = 0x03;
+		static final int ICONST_1 = 0x04;
+		static final int DCONST_0 = 0x0e;
+		static final int DCONST_1 = 0x0f;
+		static final int BIPUSH = 0x10;
+		static final int SIPUSH = 0x11;
+		static final int LDC2_W = 0x14;
+		static final int DLOAD = 0x18;
+		static final int ALOAD_0 = 0x2a;
+		static final int ALOAD_1 = 0x2b;
+		static final int DALOAD = 0x31;
+		static final int DSTORE = 0x39;
+		static final int POP = 0x57;
+		static final int POP2 = 0x58;
+		static final int DUP2 = 0x5c;
+		static final int DADD = 0x63;
+		static final int DSUB = 0x67;
+		static final int DMUL = 0x6b;
+		static final int DDIV = 0x6f;
+		static final int DNEG = 0x77;
+		static final int IXOR = 0x82;
+		static final int LCMP = 0x94;
+		static final int DCMPL = 0x97;
+		static final int DCMPG = 0x98;
+		static final int IFEQ = 0x99;
+		static final int IFNE = 0x9a;
+		static final int IFLT = 0x9b;
+		static final int IFGE = 0x9c;
+		static final int IFGT = 0x9d;
+		static final int IFLE = 0x9e;
+		static final int IF_ICMPEQ = 0x9f;
+		static final int IF_ICMPNE = 0xa0;
+		static final int GOTO = 0xa7;
+		static final int DRETURN = 0xaf;
+		static final int RETURN = 0xb1;
+		static final int GETSTATIC = 0xb2;
+		static final int INVOKESPECIAL = 0xb7;
+		static final int INVOKESTATIC = 0xb8;
+		static final int ATHROW = 0xbf;
+
+		private static final int MAX_JUMP = Short.MAX_VALUE;
+
+		private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		private byte[] patched;
+		private final List<Jump> jumps = new ArrayList<>();
+		private int depth;
+		private int maxStack;
+		private int maxLocals;
+
+		/**
+		 * Emits an instruction that changes the stack depth by {@code stackEffect}.
+		 */
+		void op(int opcode, int stackEffect) {
+			code.write(opcode);
+			adjust(stackEffect);
+		}
+
+		void op(int opcode, int stackEffect, int u1) {
+			op(opcode, stackEffect);
+			code.write(u1);
+		}
+
+		void opShort(int opcode, int stackEffect, int u2) {
+			op(opcode, stackEffect);
+			code.write(u2 >> 8);
+			code.write(u2);
+		}
+
+		Label newLabel() {
+			return new Label();
+		}
+
+		/**
+		 * Emits a branch, the offset is filled in once the target is placed.
+		 */
+		void jump(int opcode, int stackEffect, Label target) {
+			jumps.add(new Jump(code.size(), target));
+			opShort(opcode, stackEffect, 0);
+		}
+
+		void place(Label label) {
+			label.offset = code.size();
+		}
+
+		/**
+		 * Sets the stack depth after an unconditional jump, where the following
+		 * code is only reached through a branch.
+		 */
+		void setDepth(int depth) {
+			this.depth = depth;
+		}
+
+		int getDepth() {
+			return depth;
+		}
+
+		void useLocals(int maxLocals) {
+			this.maxLocals = Math.max(this.maxLocals, maxLocals);
+		}
+
+		int getMaxStack() {
+			return maxStack;
+		}
+
+		int getMaxLocals() {
+			return maxLocals;
+		}
+
+		int size() {
+			return code.size();
+		}
+
+		byte[] toByteArray() {
+			if (patched != null) return patched;
+
+			byte[] bytes = code.toByteArray();
+			for (Jump jump : jumps) {
+				int offset = jump.target.offset - jump.at;
+				if (jump.target.offset < 0 || offset > MAX_JUMP || offset < -MAX_JUMP) {
+					throw new IllegalStateException("jump target out of range");
+				}
+				bytes[jump.at + 1] = (byte) (offset >> 8);
+				bytes[jump.at + 2] = (byte) offset;
+			}
+			patched = bytes;
+			return bytes;
+		}
+
+		private void adjust(int stackEffect) {
+			depth += stackEffect;
+			maxStack = Math.max(maxStack, depth);
+		}
+
+		static class Label {
+			int offset = -1;
+		}
+
+		private static class Jump {
+			final int at;
+			final Label target;
+
+			Jump(int at, Label target) {
+				this.at = at;
+				this.target = target;
+			}
+		}
+	}
+}
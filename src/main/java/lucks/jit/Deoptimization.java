@@ -0,0 +1,16 @@
+package lucks.jit;
+
+/**
+ * Thrown by compiled code when one of the assumptions it was compiled under
+ * does not hold, e.g. when the function would return nil. Compiled functions
+ * are free of side effects, so the caller simply repeats the call in the
+ * interpreter.
+ */
+public class Deoptimization extends RuntimeException {
+
+	public static final Deoptimization INSTANCE = new Deoptimization();
+
+	private Deoptimization() {
+		super(null, null, false, false);
+	}
+}
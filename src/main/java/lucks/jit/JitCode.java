@@ -0,0 +1,11 @@
+package lucks.jit;
+
+/**
+ * Entry point into the class generated for a hot function. Implementations are
+ * created by the {@link JitCompiler} only.
+ */
+public interface JitCode {
+
+	double invoke(double[] arguments);
+
+}
@@ -0,0 +1,454 @@
+package lucks.jit;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lucks.Diagnostics;
+import lucks.Expr;
+import lucks.Stmt;
+import lucks.Token;
+import lucks.TokenType;
+
+/**
+ * Compiles hot functions into JVM classes, so HotSpot can inline them and keep
+ * their numbers in registers.
+ * <p>
+ * Only global functions that compute with numbers and booleans, without side
+ * effects besides their own locals and without calling anything but themselves,
+ * are compiled. All values then have a static type and the only assumptions
+ * are that the arguments are numbers, which the caller checks, and that every
+ * path returns a number. If a call falls off the end of the function a
+ * {@link Deoptimization} is thrown and the call is repeated in the interpreter.
+ */
+public class JitCompiler {
+
+	public static final int THRESHOLD = 1000;
+	private static final int MAX_METHOD_SIZE = 0xffff;
+	private static final int MAX_LOCAL_SLOTS = 255;
+
+	private static final String JIT_CODE = "lucks/jit/JitCode";
+	private static final String DEOPTIMIZATION = "lucks/jit/Deoptimization";
+
+	private final JitClassLoader loader = new JitClassLoader(JitCompiler.class.getClassLoader());
+	private int classCount;
+
+	/**
+	 * @return the compiled function or null, if it can not be compiled
+	 */
+	public JitCode compile(Stmt.FunDecl fun) {
+		String className = String.format("lucks/jit/Compiled$%s$%d", fun.name.getLexeme(), classCount++);
+		try {
+			byte[] bytes = new FunctionCompiler(fun, className).compile();
+			Class<?> compiled = loader.define(className.replace('/', '.'), bytes);
+			return (JitCode) compiled.getDeclaredConstructor().newInstance();
+		} catch (NotCompilable e) {
+			return null;
+		} catch (ReflectiveOperationException | LinkageError | IllegalStateException e) {
+			Diagnostics.current().getErr().printf("jit: could not compile %s: %s%n", fun.name.getLexeme(), e);
+			return null;
+		}
+	}
+
+	private enum Type {
+		NUMBER, BOOLEAN
+	}
+
+	private static class NotCompilable extends RuntimeException {
+		NotCompilable() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static class JitClassLoader extends ClassLoader {
+		JitClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	private static class FunctionCompiler implements Expr.Visitor<Type>, Stmt.Visitor<Void> {
+
+		private final Stmt.FunDecl fun;
+		private final ClassFile classFile;
+		private final String runDescriptor;
+		private final ClassFile.Code code = new ClassFile.Code();
+		private final Deque<Map<String, Integer>> scopes = new ArrayDeque<>();
+		private int nextSlot;
+		private final ClassFile.Code.Label entry = code.newLabel();
+
+		FunctionCompiler(Stmt.FunDecl fun, String className) {
+			this.fun = fun;
+			this.classFile = new ClassFile(className, "java/lang/Object", JIT_CODE);
+			StringBuilder descriptor = new StringBuilder("(");
+			for (int i = 0; i < fun.parameters.size(); i++) {
+				descriptor.append('D');
+			}
+			this.runDescriptor = descriptor.append(")D").toString();
+		}
+
+		byte[] compile() {
+			scopes.push(new HashMap<>());
+			for (Token parameter : fun.parameters) {
+				declare(parameter);
+			}
+			code.place(entry);
+			for (Stmt stmt : fun.body) {
+				stmt.accept(this);
+			}
+			// falling off the end returns nil, which is not a number
+			code.opShort(ClassFile.Code.GETSTATIC, 1,
+			             classFile.fieldRef(DEOPTIMIZATION, "INSTANCE", "L" + DEOPTIMIZATION + ";"));
+			code.op(ClassFile.Code.ATHROW, -1);
+			code.useLocals(nextSlot);
+			if (code.size() > MAX_METHOD_SIZE) throw new NotCompilable();
+
+			classFile.addMethod("<init>", "()V", false, constructor());
+			classFile.addMethod("invoke", "([D)D", false, invoke());
+			classFile.addMethod("run", runDescriptor, true, code);
+			return classFile.toByteArray();
+		}
+
+		private ClassFile.Code constructor() {
+			ClassFile.Code init = new ClassFile.Code();
+			init.op(ClassFile.Code.ALOAD_0, 1);
+			init.opShort(ClassFile.Code.INVOKESPECIAL, -1, classFile.methodRef("java/lang/Object", "<init>", "()V"));
+			init.op(ClassFile.Code.RETURN, 0);
+			init.useLocals(1);
+			return init;
+		}
+
+		private ClassFile.Code invoke() {
+			ClassFile.Code invoke = new ClassFile.Code();
+			int arity = fun.parameters.size();
+			for (int i = 0; i < arity; i++) {
+				invoke.op(ClassFile.Code.ALOAD_1, 1);
+				if (i <= 5) {
+					invoke.op(ClassFile.Code.ICONST_0 + i, 1);
+				} else {
+					invoke.op(ClassFile.Code.BIPUSH, 1, i);
+				}
+				invoke.op(ClassFile.Code.DALOAD, 0);
+			}
+			invoke.opShort(ClassFile.Code.INVOKESTATIC, 2 - 2 * arity, runMethod());
+			invoke.op(ClassFile.Code.DRETURN, -2);
+			invoke.useLocals(2);
+			return invoke;
+		}
+
+		private int runMethod() {
+			return classFile.methodRef(classFile.getName(), "run", runDescriptor);
+		}
+
+		@Override
+		public Type visitBinary(Expr.Binary expr) {
+			switch (expr.operator.getType()) {
+				case EQUAL: {
+					int slot = lookup(((Expr.Variable) expr.left).name);
+					expect(Type.NUMBER, expr.right);
+					code.op(ClassFile.Code.DUP2, 2);
+					code.op(ClassFile.Code.DSTORE, -2, slot);
+					return Type.NUMBER;
+				}
+				case AND:
+				case OR: {
+					boolean isAnd = expr.operator.getType() == TokenType.AND;
+					expect(Type.BOOLEAN, expr.left);
+					ClassFile.Code.Label shortCircuit = code.newLabel();
+					ClassFile.Code.Label end = code.newLabel();
+					code.jump(isAnd ? ClassFile.Code.IFEQ : ClassFile.Code.IFNE, -1, shortCircuit);
+					int depth = code.getDepth();
+					expect(Type.BOOLEAN, expr.right);
+					code.jump(ClassFile.Code.GOTO, 0, end);
+					code.place(shortCircuit);
+					code.setDepth(depth);
+					code.op(isAnd ? ClassFile.Code.ICONST_0 : ClassFile.Code.ICONST_1, 1);
+					code.place(end);
+					return Type.BOOLEAN;
+				}
+				case PLUS:
+					return arithmetic(expr, ClassFile.Code.DADD);
+				case MINUS:
+					return arithmetic(expr, ClassFile.Code.DSUB);
+				case STAR:
+					return arithmetic(expr, ClassFile.Code.DMUL);
+				case SLASH:
+					return arithmetic(expr, ClassFile.Code.DDIV);
+				case LESS:
+					return comparison(expr, ClassFile.Code.DCMPG, ClassFile.Code.IFLT);
+				case LESS_EQUAL:
+					return comparison(expr, ClassFile.Code.DCMPG, ClassFile.Code.IFLE);
+				case GREATER:
+					return comparison(expr, ClassFile.Code.DCMPL, ClassFile.Code.IFGT);
+				case GREATER_EQUAL:
+					return comparison(expr, ClassFile.Code.DCMPL, ClassFile.Code.IFGE);
+				case EQUAL_EQUAL:
+					return equality(expr, true);
+				case BANG_EQUAL:
+					return equality(expr, false);
+				default:
+					throw new NotCompilable();
+			}
+		}
+
+		private Type arithmetic(Expr.Binary expr, int opcode) {
+			expect(Type.NUMBER, expr.left);
+			expect(Type.NUMBER, expr.right);
+			code.op(opcode, -2);
+			return Type.NUMBER;
+		}
+
+		private Type comparison(Expr.Binary expr, int compare, int branch) {
+			expect(Type.NUMBER, expr.left);
+			expect(Type.NUMBER, expr.right);
+			code.op(compare, -3);
+			return toBoolean(branch);
+		}
+
+		private Type equality(Expr.Binary expr, boolean equal) {
+			Type type = expr.left.accept(this);
+			if (type == Type.NUMBER) {
+				// Double.equals semantics: NaN equals NaN, 0.0 does not equal -0.0
+				int toBits = classFile.methodRef("java/lang/Double", "doubleToLongBits", "(D)J");
+				code.opShort(ClassFile.Code.INVOKESTATIC, 0, toBits);
+				expect(Type.NUMBER, expr.right);
+				code.opShort(ClassFile.Code.INVOKESTATIC, 0, toBits);
+				code.op(ClassFile.Code.LCMP, -3);
+				return toBoolean(equal ? ClassFile.Code.IFEQ : ClassFile.Code.IFNE);
+			}
+			expect(Type.BOOLEAN, expr.right);
+			return toBoolean(equal ? ClassFile.Code.IF_ICMPEQ : ClassFile.Code.IF_ICMPNE);
+		}
+
+		/**
+		 * Turns the outcome of a conditional branch into 0 or 1 on the stack.
+		 */
+		private Type toBoolean(int branch) {
+			ClassFile.Code.Label isTrue = code.newLabel();
+			ClassFile.Code.Label end = code.newLabel();
+			code.jump(branch, branch == ClassFile.Code.IF_ICMPEQ || branch == ClassFile.Code.IF_ICMPNE ? -2 : -1, isTrue);
+			int depth = code.getDepth();
+			code.op(ClassFile.Code.ICONST_0, 1);
+			code.jump(ClassFile.Code.GOTO, 0, end);
+			code.place(isTrue);
+			code.setDepth(depth);
+			code.op(ClassFile.Code.ICONST_1, 1);
+			code.place(end);
+			return Type.BOOLEAN;
+		}
+
+		@Override
+		public Type visitUnary(Expr.Unary expr) {
+			switch (expr.operator.getType()) {
+				case MINUS:
+					expect(Type.NUMBER, expr.expr);
+					code.op(ClassFile.Code.DNEG, 0);
+					return Type.NUMBER;
+				case BANG:
+					expect(Type.BOOLEAN, expr.expr);
+					code.op(ClassFile.Code.ICONST_1, 1);
+					code.op(ClassFile.Code.IXOR, -1);
+					return Type.BOOLEAN;
+				default:
+					throw new NotCompilable();
+			}
+		}
+
+		@Override
+		public Type visitLiteral(Expr.Literal expr) {
+			if (expr.value instanceof Double) {
+				double value = (Double) expr.value;
+				if (Double.doubleToRawLongBits(value) == 0L) {
+					code.op(ClassFile.Code.DCONST_0, 2);
+				} else if (value == 1.0) {
+					code.op(ClassFile.Code.DCONST_1, 2);
+				} else {
+					code.opShort(ClassFile.Code.LDC2_W, 2, classFile.doubleConstant(value));
+				}
+				return Type.NUMBER;
+			}
+			if (expr.value instanceof Boolean) {
+				code.op((Boolean) expr.value ? ClassFile.Code.ICONST_1 : ClassFile.Code.ICONST_0, 1);
+				return Type.BOOLEAN;
+			}
+			throw new NotCompilable();
+		}
+
+		@Override
+		public Type visitVariable(Expr.Variable expr) {
+			code.op(ClassFile.Code.DLOAD, 2, lookup(expr.name));
+			return Type.NUMBER;
+		}
+
+		@Override
+		public Type visitGrouping(Expr.Grouping expr) {
+			return expr.expr.accept(this);
+		}
+
+		@Override
+		public Type visitCall(Expr.Call expr) {
+			if (!(expr.callee instanceof Expr.Variable)) throw new NotCompilable();
+			Token callee = ((Expr.Variable) expr.callee).name;
+			// only the function itself, its global binding is checked before entering compiled code
+			if (isLocal(callee) || !callee.getLexeme().equals(fun.name.getLexeme())) throw new NotCompilable();
+			if (expr.arguments.size() != fun.parameters.size()) throw new NotCompilable();
+
+			for (Expr argument : expr.arguments) {
+				expect(Type.NUMBER, argument);
+			}
+			code.opShort(ClassFile.Code.INVOKESTATIC, 2 - 2 * expr.arguments.size(), runMethod());
+			return Type.NUMBER;
+		}
+
+		@Override
+		public Type visitSet(Expr.Set expr) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public Type visitThis(Expr.This expr) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public Type visitSuper(Expr.Super expr) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public Type visitInline(Expr.Inline expr) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public Void visitExpression(Stmt.Expression stmt) {
+			Type type = stmt.expression.accept(this);
+			code.op(type == Type.NUMBER ? ClassFile.Code.POP2 : ClassFile.Code.POP, type == Type.NUMBER ? -2 : -1);
+			return null;
+		}
+
+		@Override
+		public Void visitPrint(Stmt.Print stmt) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public Void visitBlock(Stmt.Block stmt) {
+			scopes.push(new HashMap<>());
+			for (Stmt child : stmt.stmts) {
+				child.accept(this);
+			}
+			scopes.pop();
+			return null;
+		}
+
+		@Override
+		public Void visitVar(Stmt.Var stmt) {
+			if (stmt.initializer == null) throw new NotCompilable();
+			expect(Type.NUMBER, stmt.initializer);
+			code.op(ClassFile.Code.DSTORE, -2, declare(stmt.name));
+			return null;
+		}
+
+		@Override
+		public Void visitFunDecl(Stmt.FunDecl stmt) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public Void visitReturn(Stmt.Return stmt) {
+			if (stmt.value == null) throw new NotCompilable();
+			if (isSelfCall(stmt.value)) {
+				// a tail call to itself overwrites the parameters and starts over
+				List<Expr> arguments = ((Expr.Call) stmt.value).arguments;
+				for (Expr argument : arguments) {
+					expect(Type.NUMBER, argument);
+				}
+				for (int i = arguments.size() - 1; i >= 0; i--) {
+					code.op(ClassFile.Code.DSTORE, -2, 2 * i);
+				}
+				code.jump(ClassFile.Code.GOTO, 0, entry);
+				return null;
+			}
+			expect(Type.NUMBER, stmt.value);
+			code.op(ClassFile.Code.DRETURN, -2);
+			return null;
+		}
+
+		private boolean isSelfCall(Expr expr) {
+			if (!(expr instanceof Expr.Call)) return false;
+			Expr.Call call = (Expr.Call) expr;
+			if (!(call.callee instanceof Expr.Variable)) return false;
+			Token callee = ((Expr.Variable) call.callee).name;
+			return !isLocal(callee) && callee.getLexeme().equals(fun.name.getLexeme())
+			       && call.arguments.size() == fun.parameters.size();
+		}
+
+		@Override
+		public Void visitIf(Stmt.If stmt) {
+			expect(Type.BOOLEAN, stmt.cond);
+			ClassFile.Code.Label otherwise = code.newLabel();
+			ClassFile.Code.Label end = code.newLabel();
+			code.jump(ClassFile.Code.IFEQ, -1, otherwise);
+			stmt.thenBranch.accept(this);
+			code.jump(ClassFile.Code.GOTO, 0, end);
+			code.place(otherwise);
+			if (stmt.elseBranch != null) {
+				stmt.elseBranch.accept(this);
+			}
+			code.place(end);
+			return null;
+		}
+
+		@Override
+		public Void visitWhile(Stmt.While stmt) {
+			ClassFile.Code.Label start = code.newLabel();
+			ClassFile.Code.Label end = code.newLabel();
+			code.place(start);
+			expect(Type.BOOLEAN, stmt.cond);
+			code.jump(ClassFile.Code.IFEQ, -1, end);
+			stmt.body.accept(this);
+			code.jump(ClassFile.Code.GOTO, 0, start);
+			code.place(end);
+			return null;
+		}
+
+		@Override
+		public Void visitClass(Stmt.Class stmt) {
+			throw new NotCompilable();
+		}
+
+		private void expect(Type type, Expr expr) {
+			if (expr.accept(this) != type) throw new NotCompilable();
+		}
+
+		private int declare(Token name) {
+			if (nextSlot + 2 > MAX_LOCAL_SLOTS) throw new NotCompilable();
+			int slot = nextSlot;
+			nextSlot += 2;
+			scopes.peek().put(name.getLexeme(), slot);
+			return slot;
+		}
+
+		private boolean isLocal(Token name) {
+			for (Map<String, Integer> scope : scopes) {
+				if (scope.containsKey(name.getLexeme())) return true;
+			}
+			return false;
+		}
+
+		private int lookup(Token name) {
+			for (Map<String, Integer> scope : scopes) {
+				Integer slot = scope.get(name.getLexeme());
+				if (slot != null) return slot;
+			}
+			// globals may change at any time
+			throw new NotCompilable();
+		}
+	}
+}
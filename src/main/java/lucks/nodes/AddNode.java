@@ -0,0 +1,118 @@
+package lucks.nodes;
+
+import lucks.Frame;
+import lucks.Rope;
+import lucks.Token;
+
+/**
+ * {@code +} starts out uninitialized and specializes to number addition or
+ * string concatenation on its first execution. Seeing other operand types later
+ * on rewrites it to the generic version, which checks types on every call.
+ */
+abstract class AddNode extends BinaryNode {
+
+	AddNode(ExprNode left, ExprNode right, Token operator) {
+		super(left, right, operator);
+	}
+
+	static AddNode create(ExprNode left, ExprNode right, Token operator) {
+		return new Uninitialized(left, right, operator);
+	}
+
+	protected Object add(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double)
+			return (double) left + (double) right;
+		if (Rope.isString(left) && Rope.isString(right))
+			return Rope.concat(left, right);
+
+		throw error("Operands must be either both strings or both numbers.");
+	}
+
+	protected Object generalize(Object leftValue, Object rightValue) {
+		replace(new Generic(left, right, operator));
+		return add(leftValue, rightValue);
+	}
+
+	private static final class Uninitialized extends AddNode {
+
+		Uninitialized(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object leftValue = left.execute(frame);
+			Object rightValue = right.execute(frame);
+			if (leftValue instanceof Double && rightValue instanceof Double) {
+				replace(new NumberAdd(left, right, operator));
+			} else if (Rope.isString(leftValue) && Rope.isString(rightValue)) {
+				replace(new StringAdd(left, right, operator));
+			} else {
+				replace(new Generic(left, right, operator));
+			}
+			return add(leftValue, rightValue);
+		}
+	}
+
+	private static final class NumberAdd extends AddNode {
+
+		NumberAdd(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			try {
+				return executeDouble(frame);
+			} catch (UnexpectedResultException e) {
+				return e.getResult();
+			}
+		}
+
+		@Override
+		public double executeDouble(Frame frame) throws UnexpectedResultException {
+			double leftValue;
+			try {
+				leftValue = left.executeDouble(frame);
+			} catch (UnexpectedResultException e) {
+				throw new UnexpectedResultException(generalize(e.getResult(), right.execute(frame)));
+			}
+			double rightValue;
+			try {
+				rightValue = right.executeDouble(frame);
+			} catch (UnexpectedResultException e) {
+				throw new UnexpectedResultException(generalize(leftValue, e.getResult()));
+			}
+			return leftValue + rightValue;
+		}
+	}
+
+	private static final class StringAdd extends AddNode {
+
+		StringAdd(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object leftValue = left.execute(frame);
+			Object rightValue = right.execute(frame);
+			if (Rope.isString(leftValue) && Rope.isString(rightValue)) {
+				return Rope.concat(leftValue, rightValue);
+			}
+			return generalize(leftValue, rightValue);
+		}
+	}
+
+	private static final class Generic extends AddNode {
+
+		Generic(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return add(left.execute(frame), right.execute(frame));
+		}
+	}
+}
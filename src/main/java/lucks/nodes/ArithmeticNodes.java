@@ -0,0 +1,234 @@
+package lucks.nodes;
+
+import lucks.Frame;
+import lucks.RuntimeError;
+import lucks.Token;
+import lucks.visitors.Interpreter;
+
+/**
+ * Operators that are only defined on numbers. They read their operands through
+ * the unboxed {@link ExprNode#executeDouble} path and fail on anything else, so
+ * there is nothing to specialize on.
+ */
+final class ArithmeticNodes {
+
+	private ArithmeticNodes() {
+	}
+
+	static ExprNode create(ExprNode left, ExprNode right, Token operator) {
+		switch (operator.getType()) {
+			case MINUS:
+				return new Subtract(left, right, operator);
+			case STAR:
+				return new Multiply(left, right, operator);
+			case SLASH:
+				return new Divide(left, right, operator);
+			case LESS:
+				return new Less(left, right, operator);
+			case LESS_EQUAL:
+				return new LessEqual(left, right, operator);
+			case GREATER:
+				return new Greater(left, right, operator);
+			case GREATER_EQUAL:
+				return new GreaterEqual(left, right, operator);
+		}
+		throw new AssertionError(operator.getType());
+	}
+
+	private abstract static class NumericNode extends BinaryNode {
+
+		NumericNode(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		protected final double leftValue(Frame frame) {
+			try {
+				return left.executeDouble(frame);
+			} catch (UnexpectedResultException e) {
+				right.execute(frame);
+				throw error(String.format("First operand of %s must be a number.", operator.getLexeme()));
+			}
+		}
+
+		protected final double rightValue(Frame frame) {
+			try {
+				return right.executeDouble(frame);
+			} catch (UnexpectedResultException e) {
+				throw error(String.format("Second operand of %s must be a number.", operator.getLexeme()));
+			}
+		}
+	}
+
+	private static final class Subtract extends NumericNode {
+
+		Subtract(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return executeDouble(frame);
+		}
+
+		@Override
+		public double executeDouble(Frame frame) {
+			return leftValue(frame) - rightValue(frame);
+		}
+	}
+
+	private static final class Multiply extends NumericNode {
+
+		Multiply(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return executeDouble(frame);
+		}
+
+		@Override
+		public double executeDouble(Frame frame) {
+			return leftValue(frame) * rightValue(frame);
+		}
+	}
+
+	private static final class Divide extends NumericNode {
+
+		Divide(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return executeDouble(frame);
+		}
+
+		@Override
+		public double executeDouble(Frame frame) {
+			return leftValue(frame) / rightValue(frame);
+		}
+	}
+
+	private static final class Less extends NumericNode {
+
+		Less(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return executeBoolean(frame);
+		}
+
+		@Override
+		public boolean executeBoolean(Frame frame) {
+			return leftValue(frame) < rightValue(frame);
+		}
+	}
+
+	private static final class LessEqual extends NumericNode {
+
+		LessEqual(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return executeBoolean(frame);
+		}
+
+		@Override
+		public boolean executeBoolean(Frame frame) {
+			return leftValue(frame) <= rightValue(frame);
+		}
+	}
+
+	private static final class Greater extends NumericNode {
+
+		Greater(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return executeBoolean(frame);
+		}
+
+		@Override
+		public boolean executeBoolean(Frame frame) {
+			return leftValue(frame) > rightValue(frame);
+		}
+	}
+
+	private static final class GreaterEqual extends NumericNode {
+
+		GreaterEqual(ExprNode left, ExprNode right, Token operator) {
+			super(left, right, operator);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return executeBoolean(frame);
+		}
+
+		@Override
+		public boolean executeBoolean(Frame frame) {
+			return leftValue(frame) >= rightValue(frame);
+		}
+	}
+
+	static final class Negate extends ExprNode {
+
+		private ExprNode operand;
+		private final Token operator;
+
+		Negate(ExprNode operand, Token operator) {
+			this.operand = adopt(operand);
+			this.operator = operator;
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return executeDouble(frame);
+		}
+
+		@Override
+		public double executeDouble(Frame frame) {
+			try {
+				return -operand.executeDouble(frame);
+			} catch (UnexpectedResultException e) {
+				throw new RuntimeError(operator, "Operand must be a number.");
+			}
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			operand = (ExprNode) newChild;
+		}
+	}
+
+	static final class Not extends ExprNode {
+
+		private ExprNode operand;
+
+		Not(ExprNode operand) {
+			this.operand = adopt(operand);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return executeBoolean(frame);
+		}
+
+		@Override
+		public boolean executeBoolean(Frame frame) {
+			return !Interpreter.isTruthy(operand.execute(frame));
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			operand = (ExprNode) newChild;
+		}
+	}
+}
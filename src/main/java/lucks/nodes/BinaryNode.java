@@ -0,0 +1,30 @@
+package lucks.nodes;
+
+import lucks.RuntimeError;
+import lucks.Token;
+
+/**
+ * Base of the binary operators, owning the two operand nodes.
+ */
+abstract class BinaryNode extends ExprNode {
+
+	protected ExprNode left;
+	protected ExprNode right;
+	protected final Token operator;
+
+	BinaryNode(ExprNode left, ExprNode right, Token operator) {
+		this.left = adopt(left);
+		this.right = adopt(right);
+		this.operator = operator;
+	}
+
+	@Override
+	protected void replaceChild(Node oldChild, Node newChild) {
+		if (left == oldChild) left = (ExprNode) newChild;
+		if (right == oldChild) right = (ExprNode) newChild;
+	}
+
+	protected RuntimeError error(String msg) {
+		return new RuntimeError(operator, msg);
+	}
+}
@@ -0,0 +1,93 @@
+package lucks.nodes;
+
+import lucks.Frame;
+import lucks.Token;
+import lucks.visitors.Interpreter;
+
+/**
+ * {@code ==} and {@code !=}, specialized to comparing unboxed numbers while
+ * only numbers have been seen and generic equality afterwards.
+ */
+abstract class EqualsNode extends BinaryNode {
+
+	protected final boolean negated;
+
+	EqualsNode(ExprNode left, ExprNode right, Token operator, boolean negated) {
+		super(left, right, operator);
+		this.negated = negated;
+	}
+
+	static EqualsNode create(ExprNode left, ExprNode right, Token operator, boolean negated) {
+		return new Uninitialized(left, right, operator, negated);
+	}
+
+	@Override
+	public Object execute(Frame frame) {
+		return executeBoolean(frame);
+	}
+
+	@Override
+	public abstract boolean executeBoolean(Frame frame);
+
+	protected boolean generalize(Object leftValue, Object rightValue) {
+		replace(new Generic(left, right, operator, negated));
+		return Interpreter.isEqual(leftValue, rightValue) != negated;
+	}
+
+	private static final class Uninitialized extends EqualsNode {
+
+		Uninitialized(ExprNode left, ExprNode right, Token operator, boolean negated) {
+			super(left, right, operator, negated);
+		}
+
+		@Override
+		public boolean executeBoolean(Frame frame) {
+			Object leftValue = left.execute(frame);
+			Object rightValue = right.execute(frame);
+			if (leftValue instanceof Double && rightValue instanceof Double) {
+				replace(new NumberEquals(left, right, operator, negated));
+			} else {
+				replace(new Generic(left, right, operator, negated));
+			}
+			return Interpreter.isEqual(leftValue, rightValue) != negated;
+		}
+	}
+
+	private static final class NumberEquals extends EqualsNode {
+
+		NumberEquals(ExprNode left, ExprNode right, Token operator, boolean negated) {
+			super(left, right, operator, negated);
+		}
+
+		@Override
+		public boolean executeBoolean(Frame frame) {
+			double leftValue;
+			try {
+				leftValue = left.executeDouble(frame);
+			} catch (UnexpectedResultException e) {
+				return generalize(e.getResult(), right.execute(frame));
+			}
+			double rightValue;
+			try {
+				rightValue = right.executeDouble(frame);
+			} catch (UnexpectedResultException e) {
+				return generalize(leftValue, e.getResult());
+			}
+			// same as Double.equals, which isEqual uses for boxed numbers
+			boolean equal = Double.doubleToLongBits(leftValue) == Double.doubleToLongBits(rightValue);
+			return equal != negated;
+		}
+	}
+
+	private static final class Generic extends EqualsNode {
+
+		Generic(ExprNode left, ExprNode right, Token operator, boolean negated) {
+			super(left, right, operator, negated);
+		}
+
+		@Override
+		public boolean executeBoolean(Frame frame) {
+			return Interpreter.isEqual(left.execute(frame), right.execute(frame)) != negated;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package lucks.nodes;
+
+import lucks.Frame;
+
+/**
+ * Expression node. Besides the generic {@link #execute} there are typed entry
+ * points, which specialized parents use to avoid boxing; they throw
+ * {@link UnexpectedResultException} if the value has a different type.
+ */
+public abstract class ExprNode extends Node {
+
+	public abstract Object execute(Frame frame);
+
+	public double executeDouble(Frame frame) throws UnexpectedResultException {
+		Object value = execute(frame);
+		if (value instanceof Double) return (double) value;
+		throw new UnexpectedResultException(value);
+	}
+
+	public boolean executeBoolean(Frame frame) throws UnexpectedResultException {
+		Object value = execute(frame);
+		if (value instanceof Boolean) return (boolean) value;
+		throw new UnexpectedResultException(value);
+	}
+}
@@ -0,0 +1,520 @@
+package lucks.nodes;
+
+import lucks.BuiltinError;
+import lucks.Cell;
+import lucks.Environment;
+import lucks.Frame;
+import lucks.LoxCallable;
+import lucks.LoxClass;
+import lucks.LoxFunction;
+import lucks.LoxInstance;
+import lucks.RuntimeError;
+import lucks.Slot;
+import lucks.Stmt;
+import lucks.Token;
+import lucks.visitors.Interpreter;
+
+/**
+ * Literals, variable access, calls and property access.
+ */
+final class ExprNodes {
+
+	private ExprNodes() {
+	}
+
+	static final class Literal extends ExprNode {
+
+		private final Object value;
+
+		Literal(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return value;
+		}
+
+		@Override
+		public double executeDouble(Frame frame) throws UnexpectedResultException {
+			if (value instanceof Double) return (double) value;
+			throw new UnexpectedResultException(value);
+		}
+	}
+
+	/**
+	 * Reads a local that no closure captures, straight from the frame.
+	 */
+	static final class LocalRead extends ExprNode {
+
+		private final int index;
+
+		LocalRead(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return frame.getLocal(index);
+		}
+	}
+
+	static final class LocalWrite extends ExprNode {
+
+		private final int index;
+		private ExprNode value;
+
+		LocalWrite(int index, ExprNode value) {
+			this.index = index;
+			this.value = adopt(value);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object result = value.execute(frame);
+			frame.setLocal(index, result);
+			return result;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			value = (ExprNode) newChild;
+		}
+	}
+
+	/**
+	 * Reads a variable kept in a cell, either a captured local or an upvalue.
+	 */
+	static final class CellRead extends ExprNode {
+
+		private final Slot slot;
+
+		CellRead(Slot slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return frame.get(slot);
+		}
+	}
+
+	static final class CellWrite extends ExprNode {
+
+		private final Slot slot;
+		private ExprNode value;
+
+		CellWrite(Slot slot, ExprNode value) {
+			this.slot = slot;
+			this.value = adopt(value);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object result = value.execute(frame);
+			frame.set(slot, result);
+			return result;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			value = (ExprNode) newChild;
+		}
+	}
+
+	/**
+	 * Reads a global through its cell, which is looked up on the first read.
+	 */
+	static final class GlobalRead extends ExprNode {
+
+		private final Environment globals;
+		private final Token name;
+		private Cell cell;
+
+		GlobalRead(Environment globals, Token name) {
+			this.globals = globals;
+			this.name = name;
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			if (cell == null) cell = globals.cell(name);
+			return cell.value;
+		}
+	}
+
+	static final class GlobalWrite extends ExprNode {
+
+		private final Environment globals;
+		private final Token name;
+		private ExprNode value;
+		private Cell cell;
+
+		GlobalWrite(Environment globals, Token name, ExprNode value) {
+			this.globals = globals;
+			this.name = name;
+			this.value = adopt(value);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object result = value.execute(frame);
+			if (cell == null) {
+				globals.assign(name, result);
+				cell = globals.cell(name);
+			} else {
+				cell.value = result;
+			}
+			return result;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			value = (ExprNode) newChild;
+		}
+	}
+
+	static final class Logical extends BinaryNode {
+
+		private final boolean isAnd;
+
+		Logical(ExprNode left, ExprNode right, Token operator, boolean isAnd) {
+			super(left, right, operator);
+			this.isAnd = isAnd;
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object leftValue = left.execute(frame);
+			if (Interpreter.isTruthy(leftValue) != isAnd) return leftValue;
+			return right.execute(frame);
+		}
+	}
+
+	static final class Call extends ExprNode {
+
+		private final Interpreter interpreter;
+		private ExprNode callee;
+		private final ExprNode[] arguments;
+		private final Token paren;
+
+		Call(Interpreter interpreter, ExprNode callee, ExprNode[] arguments, Token paren) {
+			this.interpreter = interpreter;
+			this.callee = adopt(callee);
+			this.arguments = arguments;
+			this.paren = paren;
+			for (ExprNode argument : arguments) {
+				adopt(argument);
+			}
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object function = callee.execute(frame);
+			if (!(function instanceof LoxCallable)) {
+				throw new RuntimeError(paren, "Can only call functions and classes.");
+			}
+			return call(interpreter, (LoxCallable) function, arguments, paren, frame);
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			if (callee == oldChild) callee = (ExprNode) newChild;
+			replaceArgument(arguments, oldChild, newChild);
+		}
+	}
+
+	/**
+	 * The body of a global function inlined at its call site. The arguments go
+	 * to slots of the caller's frame; once the global no longer holds the
+	 * function the call is made normally.
+	 */
+	static final class Inline extends ExprNode {
+
+		private final Environment globals;
+		private final Token name;
+		private final Stmt.FunDecl function;
+		private final int[] parameters;
+		private final ExprNode[] arguments;
+		private ExprNode body;
+		private ExprNode call;
+		private Cell cell;
+
+		Inline(Environment globals, Token name, Stmt.FunDecl function, int[] parameters, ExprNode[] arguments,
+		       ExprNode body, ExprNode call) {
+			this.globals = globals;
+			this.name = name;
+			this.function = function;
+			this.parameters = parameters;
+			this.arguments = arguments;
+			this.body = adopt(body);
+			this.call = adopt(call);
+			for (ExprNode argument : arguments) {
+				adopt(argument);
+			}
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			if (cell == null) cell = globals.cell(name);
+			Object callee = cell.value;
+			if (!(callee instanceof LoxFunction) || !((LoxFunction) callee).isDeclaredBy(function)) {
+				return call.execute(frame);
+			}
+			for (int i = 0; i < arguments.length; i++) {
+				frame.setLocal(parameters[i], arguments[i].execute(frame));
+			}
+			return body.execute(frame);
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			if (body == oldChild) body = (ExprNode) newChild;
+			if (call == oldChild) call = (ExprNode) newChild;
+			replaceArgument(arguments, oldChild, newChild);
+		}
+	}
+
+	/**
+	 * {@code receiver.name(arguments)}
+	 */
+	static final class Invoke extends ExprNode {
+
+		private final Interpreter interpreter;
+		private ExprNode receiver;
+		private final Token name;
+		private final ExprNode[] arguments;
+		private final Token dot;
+		private final Token paren;
+		private final PropertyReadCache cache;
+
+		Invoke(Interpreter interpreter, ExprNode receiver, Token name, ExprNode[] arguments, Token dot, Token paren) {
+			this.interpreter = interpreter;
+			this.receiver = adopt(receiver);
+			this.name = name;
+			this.cache = new PropertyReadCache(name);
+			this.arguments = arguments;
+			this.dot = dot;
+			this.paren = paren;
+			for (ExprNode argument : arguments) {
+				adopt(argument);
+			}
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object object = receiver.execute(frame);
+			if (!(object instanceof LoxInstance)) {
+				throw new RuntimeError(dot, "Only instances have fields.");
+			}
+			LoxInstance instance = (LoxInstance) object;
+			LoxFunction method = cache.method(instance);
+			if (method != null) {
+				checkArity(method, arguments, paren);
+				return callMethod(interpreter, method, instance, arguments, frame);
+			}
+
+			Object field = cache.get(instance);
+			if (!(field instanceof LoxCallable)) {
+				throw new RuntimeError(paren, "Can only call functions and classes.");
+			}
+			return call(interpreter, (LoxCallable) field, arguments, paren, frame);
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			if (receiver == oldChild) receiver = (ExprNode) newChild;
+			replaceArgument(arguments, oldChild, newChild);
+		}
+	}
+
+	static final class GetProperty extends ExprNode {
+
+		private ExprNode receiver;
+		private final Token name;
+		private final Token dot;
+		private final PropertyReadCache cache;
+
+		GetProperty(ExprNode receiver, Token name, Token dot) {
+			this.receiver = adopt(receiver);
+			this.name = name;
+			this.dot = dot;
+			this.cache = name != null ? new PropertyReadCache(name) : null;
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object object = receiver.execute(frame);
+			if (!(object instanceof LoxInstance)) {
+				throw new RuntimeError(dot, "Only instances have fields.");
+			}
+			if (name == null) {
+				throw new RuntimeError(dot, "Only names can be fields.");
+			}
+			return cache.get((LoxInstance) object);
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			receiver = (ExprNode) newChild;
+		}
+	}
+
+	static final class SetProperty extends ExprNode {
+
+		private ExprNode receiver;
+		private final Token name;
+		private ExprNode value;
+		private final PropertyWriteCache cache;
+
+		SetProperty(ExprNode receiver, Token name, ExprNode value) {
+			this.receiver = adopt(receiver);
+			this.name = name;
+			this.value = adopt(value);
+			this.cache = new PropertyWriteCache(name);
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			Object object = receiver.execute(frame);
+			if (!(object instanceof LoxInstance)) {
+				throw new RuntimeError(name, "Only instances have fields.");
+			}
+			Object result = value.execute(frame);
+			cache.put((LoxInstance) object, result);
+			return result;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			if (receiver == oldChild) receiver = (ExprNode) newChild;
+			if (value == oldChild) value = (ExprNode) newChild;
+		}
+	}
+
+	static final class Super extends ExprNode {
+
+		private final Slot superClass;
+		private final Slot receiver;
+		private final Token name;
+
+		Super(Slot superClass, Slot receiver, Token name) {
+			this.superClass = superClass;
+			this.receiver = receiver;
+			this.name = name;
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			return method(frame).bind(receiver(frame));
+		}
+
+		LoxFunction method(Frame frame) {
+			LoxFunction method = ((LoxClass) frame.get(superClass)).findMethod(name.getSymbol());
+			if (method == null) {
+				throw new RuntimeError(name, String.format("Undefined property %s.", name.getLexeme()));
+			}
+			return method;
+		}
+
+		LoxInstance receiver(Frame frame) {
+			return (LoxInstance) frame.get(receiver);
+		}
+	}
+
+	/**
+	 * {@code super.name(arguments)}
+	 */
+	static final class SuperInvoke extends ExprNode {
+
+		private final Interpreter interpreter;
+		private final Super method;
+		private final ExprNode[] arguments;
+		private final Token paren;
+
+		SuperInvoke(Interpreter interpreter, Super method, ExprNode[] arguments, Token paren) {
+			this.interpreter = interpreter;
+			this.method = method;
+			this.arguments = arguments;
+			this.paren = paren;
+			for (ExprNode argument : arguments) {
+				adopt(argument);
+			}
+		}
+
+		@Override
+		public Object execute(Frame frame) {
+			LoxFunction function = method.method(frame);
+			checkArity(function, arguments, paren);
+			return callMethod(interpreter, function, method.receiver(frame), arguments, frame);
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			replaceArgument(arguments, oldChild, newChild);
+		}
+	}
+
+	private static Object call(Interpreter interpreter, LoxCallable callee, ExprNode[] arguments, Token paren,
+	                           Frame frame) {
+		checkArity(callee, arguments, paren);
+		try {
+			switch (arguments.length) {
+				case 0:
+					return callee.call0(interpreter);
+				case 1:
+					return callee.call1(interpreter, arguments[0].execute(frame));
+				case 2:
+					return callee.call2(interpreter, arguments[0].execute(frame), arguments[1].execute(frame));
+				case 3:
+					return callee.call3(interpreter, arguments[0].execute(frame), arguments[1].execute(frame),
+					                    arguments[2].execute(frame));
+				default:
+					return callee.call(interpreter, evaluate(arguments, frame));
+			}
+		} catch (BuiltinError e) {
+			throw new RuntimeError(paren, e.getMessage());
+		}
+	}
+
+	private static Object callMethod(Interpreter interpreter, LoxFunction method, LoxInstance instance,
+	                                 ExprNode[] arguments, Frame frame) {
+		switch (arguments.length) {
+			case 0:
+				return method.callMethod0(interpreter, instance);
+			case 1:
+				return method.callMethod1(interpreter, instance, arguments[0].execute(frame));
+			case 2:
+				return method.callMethod2(interpreter, instance, arguments[0].execute(frame),
+				                          arguments[1].execute(frame));
+			case 3:
+				return method.callMethod3(interpreter, instance, arguments[0].execute(frame),
+				                          arguments[1].execute(frame), arguments[2].execute(frame));
+			default:
+				return method.callMethod(interpreter, instance, evaluate(arguments, frame));
+		}
+	}
+
+	static void checkArity(LoxCallable callee, ExprNode[] arguments, Token paren) {
+		if (callee.arity() != arguments.length) {
+			throw new RuntimeError(paren,
+			                       String.format("Wrong number of arguments, when calling %s. " +
+							                             "Expected %s, was %s",
+			                                     callee, callee.arity(), arguments.length));
+		}
+	}
+
+	static Object[] evaluate(ExprNode[] arguments, Frame frame) {
+		Object[] values = new Object[arguments.length];
+		for (int i = 0; i < arguments.length; i++) {
+			values[i] = arguments[i].execute(frame);
+		}
+		return values;
+	}
+
+	static void replaceArgument(ExprNode[] arguments, Node oldChild, Node newChild) {
+		for (int i = 0; i < arguments.length; i++) {
+			if (arguments[i] == oldChild) arguments[i] = (ExprNode) newChild;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package lucks.nodes;
+
+/**
+ * Executable node of the specializing tree interpreter. Nodes know their parent
+ * so they can {@link #replace} themselves with a version specialized to the
+ * values they have seen at runtime.
+ */
+public abstract class Node {
+
+	private Node parent;
+
+	protected <T extends Node> T adopt(T child) {
+		if (child != null) {
+			((Node) child).parent = this;
+		}
+		return child;
+	}
+
+	/**
+	 * Swaps this node for {@code replacement} in the parent's children.
+	 */
+	protected <T extends Node> T replace(T replacement) {
+		parent.replaceChild(this, replacement);
+		((Node) replacement).parent = parent;
+		return replacement;
+	}
+
+	protected void replaceChild(Node oldChild, Node newChild) {
+		throw new IllegalStateException(getClass().getSimpleName() + " has no replaceable children");
+	}
+}
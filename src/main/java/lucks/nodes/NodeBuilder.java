@@ -0,0 +1,246 @@
+package lucks.nodes;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lucks.Environment;
+import lucks.Expr;
+import lucks.Slot;
+import lucks.Stmt;
+import lucks.Token;
+import lucks.TokenType;
+import lucks.visitors.Interpreter;
+
+/**
+ * Translates the resolved AST into executable nodes. Variables are bound to
+ * the slots the resolver stored in the AST, and locals no closure captures are
+ * accessed without going through a cell.
+ * Function bodies are translated on their first call.
+ */
+public class NodeBuilder implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+
+	private final Interpreter interpreter;
+	private final Environment globals;
+	private final Map<Stmt.FunDecl, StmtNode> bodies = new HashMap<>();
+
+	public NodeBuilder(Interpreter interpreter) {
+		this.interpreter = interpreter;
+		this.globals = interpreter.getGlobals();
+	}
+
+	public StmtNode build(Stmt stmt) {
+		return stmt.accept(this);
+	}
+
+	/**
+	 * The body of a function, run in the frame holding its parameters.
+	 */
+	public StmtNode body(Stmt.FunDecl fun) {
+		StmtNode body = bodies.get(fun);
+		if (body == null) {
+			body = new StmtNodes.Sequence(buildAll(fun.body));
+			bodies.put(fun, body);
+		}
+		return body;
+	}
+
+	private ExprNode build(Expr expr) {
+		return expr.accept(this);
+	}
+
+	private StmtNode[] buildAll(List<Stmt> stmts) {
+		StmtNode[] nodes = new StmtNode[stmts.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = build(stmts.get(i));
+		}
+		return nodes;
+	}
+
+	private ExprNode[] buildArguments(List<Expr> arguments) {
+		ExprNode[] nodes = new ExprNode[arguments.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = build(arguments.get(i));
+		}
+		return nodes;
+	}
+
+	private ExprNode read(Slot slot, Token name) {
+		if (slot != null) {
+			return slot.isCaptured() ? new ExprNodes.CellRead(slot) : new ExprNodes.LocalRead(slot.index);
+		}
+		return new ExprNodes.GlobalRead(globals, name);
+	}
+
+	@Override
+	public ExprNode visitBinary(Expr.Binary expr) {
+		Token operator = expr.operator;
+		switch (operator.getType()) {
+			case AND:
+			case OR:
+				return new ExprNodes.Logical(build(expr.left), build(expr.right), operator,
+				                             operator.getType() == TokenType.AND);
+			case EQUAL: {
+				Expr.Variable variable = (Expr.Variable) expr.left;
+				Slot slot = variable.slot;
+				if (slot != null) {
+					ExprNode value = build(expr.right);
+					return slot.isCaptured() ? new ExprNodes.CellWrite(slot, value)
+					                         : new ExprNodes.LocalWrite(slot.index, value);
+				}
+				return new ExprNodes.GlobalWrite(globals, variable.name, build(expr.right));
+			}
+			case DOT:
+				return property(expr);
+			case PLUS:
+				return AddNode.create(build(expr.left), build(expr.right), operator);
+			case EQUAL_EQUAL:
+				return EqualsNode.create(build(expr.left), build(expr.right), operator, false);
+			case BANG_EQUAL:
+				return EqualsNode.create(build(expr.left), build(expr.right), operator, true);
+			default:
+				return ArithmeticNodes.create(build(expr.left), build(expr.right), operator);
+		}
+	}
+
+	private ExprNode property(Expr.Binary expr) {
+		ExprNode receiver = build(expr.left);
+		if (expr.right instanceof Expr.Variable) {
+			return new ExprNodes.GetProperty(receiver, ((Expr.Variable) expr.right).name, expr.operator);
+		}
+		if (expr.right instanceof Expr.Call && ((Expr.Call) expr.right).callee instanceof Expr.Variable) {
+			Expr.Call call = (Expr.Call) expr.right;
+			Token name = ((Expr.Variable) call.callee).name;
+			return new ExprNodes.Invoke(interpreter, receiver, name, buildArguments(call.arguments),
+			                            expr.operator, call.paren);
+		}
+		// no name to look up, fails once the receiver has been checked
+		return new ExprNodes.GetProperty(receiver, null, expr.operator);
+	}
+
+	@Override
+	public ExprNode visitUnary(Expr.Unary expr) {
+		switch (expr.operator.getType()) {
+			case MINUS:
+				return new ArithmeticNodes.Negate(build(expr.expr), expr.operator);
+			case BANG:
+				return new ArithmeticNodes.Not(build(expr.expr));
+		}
+		throw new AssertionError(expr.operator.getType());
+	}
+
+	@Override
+	public ExprNode visitLiteral(Expr.Literal expr) {
+		return new ExprNodes.Literal(expr.value);
+	}
+
+	@Override
+	public ExprNode visitVariable(Expr.Variable expr) {
+		return read(expr.slot, expr.name);
+	}
+
+	@Override
+	public ExprNode visitGrouping(Expr.Grouping expr) {
+		return build(expr.expr);
+	}
+
+	@Override
+	public ExprNode visitCall(Expr.Call expr) {
+		if (expr.callee instanceof Expr.Super) {
+			return new ExprNodes.SuperInvoke(interpreter, superMethod((Expr.Super) expr.callee),
+			                                 buildArguments(expr.arguments), expr.paren);
+		}
+		return new ExprNodes.Call(interpreter, build(expr.callee), buildArguments(expr.arguments),
+		                          expr.paren);
+	}
+
+	@Override
+	public ExprNode visitSet(Expr.Set expr) {
+		return new ExprNodes.SetProperty(build(expr.object), expr.name, build(expr.value));
+	}
+
+	@Override
+	public ExprNode visitThis(Expr.This expr) {
+		return read(expr.slot, expr.keyword);
+	}
+
+	@Override
+	public ExprNode visitSuper(Expr.Super expr) {
+		return superMethod(expr);
+	}
+
+	private ExprNodes.Super superMethod(Expr.Super expr) {
+		return new ExprNodes.Super(expr.slot, expr.receiver, expr.name);
+	}
+
+	@Override
+	public ExprNode visitInline(Expr.Inline expr) {
+		int[] parameters = new int[expr.parameters.size()];
+		for (int i = 0; i < parameters.length; i++) {
+			parameters[i] = expr.parameters.get(i).slot.index;
+		}
+		Token name = ((Expr.Variable) expr.call.callee).name;
+		return new ExprNodes.Inline(globals, name, expr.function, parameters, buildArguments(expr.call.arguments),
+		                            build(expr.body), visitCall(expr.call));
+	}
+
+	@Override
+	public StmtNode visitExpression(Stmt.Expression stmt) {
+		return new StmtNodes.Expression(build(stmt.expression));
+	}
+
+	@Override
+	public StmtNode visitPrint(Stmt.Print stmt) {
+		return new StmtNodes.Print(build(stmt.expression), interpreter.getOut());
+	}
+
+	@Override
+	public StmtNode visitBlock(Stmt.Block stmt) {
+		// the variables of the block have their own slots in the frame
+		return new StmtNodes.Sequence(buildAll(stmt.stmts));
+	}
+
+	@Override
+	public StmtNode visitVar(Stmt.Var stmt) {
+		return new StmtNodes.Var(stmt.name, stmt.slot, globals,
+		                         stmt.initializer != null ? build(stmt.initializer) : null);
+	}
+
+	@Override
+	public StmtNode visitFunDecl(Stmt.FunDecl stmt) {
+		return new StmtNodes.FunDecl(stmt, stmt.layout, stmt.slot, globals);
+	}
+
+	@Override
+	public StmtNode visitReturn(Stmt.Return stmt) {
+		if (stmt.isTailCall && stmt.value instanceof Expr.Binary) {
+			Expr.Binary expr = (Expr.Binary) stmt.value;
+			Expr.Call call = (Expr.Call) expr.right;
+			return new StmtNodes.TailInvoke(interpreter, build(expr.left), ((Expr.Variable) call.callee).name,
+			                                buildArguments(call.arguments), expr.operator, call.paren);
+		}
+		if (stmt.isTailCall) {
+			Expr.Call call = (Expr.Call) stmt.value;
+			return new StmtNodes.TailCall(interpreter, build(call.callee), buildArguments(call.arguments),
+			                              call.paren);
+		}
+		return new StmtNodes.Return(interpreter, stmt.value != null ? build(stmt.value) : null);
+	}
+
+	@Override
+	public StmtNode visitIf(Stmt.If stmt) {
+		return new StmtNodes.If(build(stmt.cond), build(stmt.thenBranch),
+		                        stmt.elseBranch != null ? build(stmt.elseBranch) : null);
+	}
+
+	@Override
+	public StmtNode visitWhile(Stmt.While stmt) {
+		return new StmtNodes.While(build(stmt.cond), build(stmt.body));
+	}
+
+	@Override
+	public StmtNode visitClass(Stmt.Class stmt) {
+		ExprNode superClass = stmt.superClass != null ? read(stmt.superClassSlot, stmt.superClass) : null;
+		return new StmtNodes.Class(interpreter, stmt, superClass, stmt.slot, globals);
+	}
+}
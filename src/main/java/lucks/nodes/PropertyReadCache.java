@@ -0,0 +1,78 @@
+package lucks.nodes;
+
+import lucks.LoxFunction;
+import lucks.LoxInstance;
+import lucks.Shape;
+import lucks.Token;
+
+/**
+ * Inline cache of a property read site. Remembers for up to {@link #LIMIT}
+ * shapes whether the name is a field, and at which index, or a method of the
+ * class. A site that sees more shapes is megamorphic and does the full lookup.
+ */
+final class PropertyReadCache {
+
+	static final int LIMIT = 4;
+
+	private final Token name;
+	private final Shape[] shapes = new Shape[LIMIT];
+	private final int[] indices = new int[LIMIT];
+	private final LoxFunction[] methods = new LoxFunction[LIMIT];
+	private int size;
+
+	PropertyReadCache(Token name) {
+		this.name = name;
+	}
+
+	/**
+	 * The value of the property, methods are bound to the instance.
+	 */
+	Object get(LoxInstance instance) {
+		int entry = lookup(instance);
+		if (entry >= 0) {
+			LoxFunction method = methods[entry];
+			if (method != null) return method.bind(instance);
+			Object value = instance.getField(indices[entry]);
+			// a nil field falls back to the methods
+			if (value != null) return value;
+		}
+		return instance.get(name);
+	}
+
+	/**
+	 * The method to invoke for the property, or null if a field is set under the
+	 * name or there is no such method.
+	 */
+	LoxFunction method(LoxInstance instance) {
+		int entry = lookup(instance);
+		if (entry >= 0) {
+			LoxFunction method = methods[entry];
+			if (method != null) return method;
+			if (instance.getField(indices[entry]) != null) return null;
+		} else if (instance.getField(name) != null) {
+			return null;
+		}
+		return instance.getLoxClass().findMethod(name.getSymbol());
+	}
+
+	private int lookup(LoxInstance instance) {
+		Shape shape = instance.getShape();
+		for (int i = 0; i < size; i++) {
+			if (shapes[i] == shape) return i;
+		}
+		if (shape == null || size == LIMIT) return -1;
+
+		// shapes are rooted at their class, so the methods are known as well
+		int field = name.getSymbol();
+		int index = shape.indexOf(field);
+		LoxFunction method = null;
+		if (index < 0) {
+			method = instance.getLoxClass().findMethod(field);
+			if (method == null) return -1;
+		}
+		shapes[size] = shape;
+		indices[size] = index;
+		methods[size] = method;
+		return size++;
+	}
+}
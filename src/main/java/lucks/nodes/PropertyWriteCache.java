@@ -0,0 +1,57 @@
+package lucks.nodes;
+
+import lucks.LoxInstance;
+import lucks.Shape;
+import lucks.Token;
+
+/**
+ * Inline cache of a property write site. For up to {@link #LIMIT} shapes it
+ * remembers the index of the field and the shape the instance has afterwards,
+ * which differs from the old one if the write adds the field.
+ */
+final class PropertyWriteCache {
+
+	static final int LIMIT = 4;
+
+	private final Token name;
+	private final Shape[] shapes = new Shape[LIMIT];
+	private final Shape[] targets = new Shape[LIMIT];
+	private final int[] indices = new int[LIMIT];
+	private int size;
+
+	PropertyWriteCache(Token name) {
+		this.name = name;
+	}
+
+	void put(LoxInstance instance, Object value) {
+		Shape shape = instance.getShape();
+		for (int i = 0; i < size; i++) {
+			if (shapes[i] != shape) continue;
+
+			if (targets[i] == shape) {
+				instance.setField(indices[i], value);
+			} else {
+				instance.addField(targets[i], indices[i], value);
+			}
+			return;
+		}
+
+		if (shape != null && size < LIMIT) {
+			int field = name.getSymbol();
+			int index = shape.indexOf(field);
+			if (index >= 0) {
+				add(shape, shape, index);
+			} else if (shape.size() < Shape.MAX_FIELDS) {
+				add(shape, shape.withField(field), shape.size());
+			}
+		}
+		instance.put(name, value);
+	}
+
+	private void add(Shape shape, Shape target, int index) {
+		shapes[size] = shape;
+		targets[size] = target;
+		indices[size] = index;
+		size++;
+	}
+}
@@ -0,0 +1,9 @@
+package lucks.nodes;
+
+import lucks.Completion;
+import lucks.Frame;
+
+public abstract class StmtNode extends Node {
+
+	public abstract Completion execute(Frame frame);
+}
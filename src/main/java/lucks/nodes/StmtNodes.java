@@ -0,0 +1,379 @@
+package lucks.nodes;
+
+import java.io.PrintStream;
+
+import lucks.Completion;
+import lucks.Environment;
+import lucks.Frame;
+import lucks.FrameLayout;
+import lucks.LoxCallable;
+import lucks.LoxClass;
+import lucks.LoxFunction;
+import lucks.LoxInstance;
+import lucks.RuntimeError;
+import lucks.Slot;
+import lucks.Stmt;
+import lucks.SymbolMap;
+import lucks.Symbols;
+import lucks.Token;
+import lucks.visitors.Interpreter;
+
+final class StmtNodes {
+
+	private StmtNodes() {
+	}
+
+	static final class Expression extends StmtNode {
+
+		private ExprNode expression;
+
+		Expression(ExprNode expression) {
+			this.expression = adopt(expression);
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			expression.execute(frame);
+			return Completion.NORMAL;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			expression = (ExprNode) newChild;
+		}
+	}
+
+	static final class Print extends StmtNode {
+
+		private ExprNode expression;
+		private final PrintStream out;
+
+		Print(ExprNode expression, PrintStream out) {
+			this.expression = adopt(expression);
+			this.out = out;
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			out.println(Interpreter.stringify(expression.execute(frame)));
+			return Completion.NORMAL;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			expression = (ExprNode) newChild;
+		}
+	}
+
+	/**
+	 * Statements run one after the other, used for blocks and function bodies.
+	 */
+	static final class Sequence extends StmtNode {
+
+		private final StmtNode[] stmts;
+
+		Sequence(StmtNode[] stmts) {
+			this.stmts = stmts;
+			for (StmtNode stmt : stmts) {
+				adopt(stmt);
+			}
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			for (StmtNode stmt : stmts) {
+				Completion completion = stmt.execute(frame);
+				if (completion != Completion.NORMAL) return completion;
+			}
+			return Completion.NORMAL;
+		}
+	}
+
+	static final class Var extends StmtNode {
+
+		private final Token name;
+		private final Slot slot;
+		private final Environment globals;
+		private ExprNode initializer;
+
+		/**
+		 * @param slot the resolved variable, null for globals
+		 */
+		Var(Token name, Slot slot, Environment globals, ExprNode initializer) {
+			this.name = name;
+			this.slot = slot;
+			this.globals = globals;
+			this.initializer = adopt(initializer);
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			declare(frame, slot, globals, name, initializer != null ? initializer.execute(frame) : null);
+			return Completion.NORMAL;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			initializer = (ExprNode) newChild;
+		}
+	}
+
+	static final class FunDecl extends StmtNode {
+
+		private final Stmt.FunDecl declaration;
+		private final FrameLayout layout;
+		private final Slot slot;
+		private final Environment globals;
+
+		FunDecl(Stmt.FunDecl declaration, FrameLayout layout, Slot slot, Environment globals) {
+			this.declaration = declaration;
+			this.layout = layout;
+			this.slot = slot;
+			this.globals = globals;
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			// declared first, a recursive function captures its own variable
+			declare(frame, slot, globals, declaration.name, null);
+			LoxFunction function = new LoxFunction(declaration, layout, frame.capture(layout.captures));
+			if (slot != null) {
+				frame.set(slot, function);
+			} else {
+				globals.assign(declaration.name, function);
+			}
+			return Completion.NORMAL;
+		}
+	}
+
+	static final class Return extends StmtNode {
+
+		private final Interpreter interpreter;
+		private ExprNode value;
+
+		Return(Interpreter interpreter, ExprNode value) {
+			this.interpreter = interpreter;
+			this.value = adopt(value);
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			interpreter.setReturnValue(value != null ? value.execute(frame) : null);
+			return Completion.RETURN;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			value = (ExprNode) newChild;
+		}
+	}
+
+	/**
+	 * {@code return callee(arguments)}, handed to the returning function.
+	 */
+	static final class TailCall extends StmtNode {
+
+		private final Interpreter interpreter;
+		private ExprNode callee;
+		private final ExprNode[] arguments;
+		private final Token paren;
+
+		TailCall(Interpreter interpreter, ExprNode callee, ExprNode[] arguments, Token paren) {
+			this.interpreter = interpreter;
+			this.callee = adopt(callee);
+			this.arguments = arguments;
+			this.paren = paren;
+			for (ExprNode argument : arguments) {
+				adopt(argument);
+			}
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			Object value = callee.execute(frame);
+			if (!(value instanceof LoxCallable)) {
+				throw new RuntimeError(paren, "Can only call functions and classes.");
+			}
+			ExprNodes.checkArity((LoxCallable) value, arguments, paren);
+			return interpreter.tailCall((LoxCallable) value, ExprNodes.evaluate(arguments, frame), paren);
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			if (callee == oldChild) callee = (ExprNode) newChild;
+			ExprNodes.replaceArgument(arguments, oldChild, newChild);
+		}
+	}
+
+	/**
+	 * {@code return receiver.name(arguments)}, handed to the returning function
+	 * with the receiver.
+	 */
+	static final class TailInvoke extends StmtNode {
+
+		private final Interpreter interpreter;
+		private ExprNode receiver;
+		private final ExprNode[] arguments;
+		private final Token dot;
+		private final Token paren;
+		private final PropertyReadCache cache;
+
+		TailInvoke(Interpreter interpreter, ExprNode receiver, Token name, ExprNode[] arguments, Token dot,
+		           Token paren) {
+			this.interpreter = interpreter;
+			this.receiver = adopt(receiver);
+			this.cache = new PropertyReadCache(name);
+			this.arguments = arguments;
+			this.dot = dot;
+			this.paren = paren;
+			for (ExprNode argument : arguments) {
+				adopt(argument);
+			}
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			Object object = receiver.execute(frame);
+			if (!(object instanceof LoxInstance)) {
+				throw new RuntimeError(dot, "Only instances have fields.");
+			}
+			LoxInstance instance = (LoxInstance) object;
+			LoxFunction method = cache.method(instance);
+			if (method != null) {
+				ExprNodes.checkArity(method, arguments, paren);
+				return interpreter.tailCallMethod(method, instance, ExprNodes.evaluate(arguments, frame));
+			}
+
+			Object field = cache.get(instance);
+			if (!(field instanceof LoxCallable)) {
+				throw new RuntimeError(paren, "Can only call functions and classes.");
+			}
+			ExprNodes.checkArity((LoxCallable) field, arguments, paren);
+			return interpreter.tailCall((LoxCallable) field, ExprNodes.evaluate(arguments, frame), paren);
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			if (receiver == oldChild) receiver = (ExprNode) newChild;
+			ExprNodes.replaceArgument(arguments, oldChild, newChild);
+		}
+	}
+
+	static final class If extends StmtNode {
+
+		private ExprNode cond;
+		private final StmtNode thenBranch;
+		private final StmtNode elseBranch;
+
+		If(ExprNode cond, StmtNode thenBranch, StmtNode elseBranch) {
+			this.cond = adopt(cond);
+			this.thenBranch = adopt(thenBranch);
+			this.elseBranch = adopt(elseBranch);
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			if (Interpreter.isTruthy(cond.execute(frame))) {
+				return thenBranch.execute(frame);
+			} else if (elseBranch != null) {
+				return elseBranch.execute(frame);
+			}
+			return Completion.NORMAL;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			cond = (ExprNode) newChild;
+		}
+	}
+
+	static final class While extends StmtNode {
+
+		private ExprNode cond;
+		private final StmtNode body;
+
+		While(ExprNode cond, StmtNode body) {
+			this.cond = adopt(cond);
+			this.body = adopt(body);
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			while (Interpreter.isTruthy(cond.execute(frame))) {
+				Completion completion = body.execute(frame);
+				if (completion != Completion.NORMAL) return completion;
+			}
+			return Completion.NORMAL;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			cond = (ExprNode) newChild;
+		}
+	}
+
+	static final class Class extends StmtNode {
+
+		private final Interpreter interpreter;
+		private final Stmt.Class declaration;
+		private ExprNode superClass;
+		private final Slot slot;
+		private final Environment globals;
+
+		/**
+		 * @param superClass reads the superclass, null if there is none
+		 * @param slot the resolved variable of the class, null for globals
+		 */
+		Class(Interpreter interpreter, Stmt.Class declaration, ExprNode superClass, Slot slot,
+		      Environment globals) {
+			this.interpreter = interpreter;
+			this.declaration = declaration;
+			this.superClass = adopt(superClass);
+			this.slot = slot;
+			this.globals = globals;
+		}
+
+		@Override
+		public Completion execute(Frame frame) {
+			declare(frame, slot, globals, declaration.name, null);
+
+			LoxClass zuper = null;
+			if (superClass != null) {
+				Object value = superClass.execute(frame);
+				if (!(value instanceof LoxClass)) {
+					throw new RuntimeError(declaration.superClass, "Superclass must be a class");
+				}
+				zuper = (LoxClass) value;
+				frame.define(declaration.superSlot, zuper);
+			}
+
+			SymbolMap<LoxFunction> methods = new SymbolMap<>();
+			for (Stmt.FunDecl method : declaration.methods) {
+				int name = method.name.getSymbol();
+				FrameLayout layout = method.layout;
+				methods.put(name, new LoxFunction(method, layout, frame.capture(layout.captures), name == Symbols.INIT));
+			}
+
+			LoxClass loxClass = new LoxClass(declaration.name.getLexeme(), zuper, methods);
+			if (slot != null) {
+				frame.set(slot, loxClass);
+			} else {
+				globals.assign(declaration.name, loxClass);
+			}
+			return Completion.NORMAL;
+		}
+
+		@Override
+		protected void replaceChild(Node oldChild, Node newChild) {
+			superClass = (ExprNode) newChild;
+		}
+	}
+
+	private static void declare(Frame frame, Slot slot, Environment globals, Token name, Object value) {
+		if (slot != null) {
+			frame.define(slot, value);
+		} else {
+			globals.define(name.getSymbol(), value);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package lucks.nodes;
+
+/**
+ * Thrown by the typed execute methods when a value does not have the expected
+ * type. Carries the value so the caller can continue with the generic path.
+ */
+public class UnexpectedResultException extends Exception {
+
+	private final Object result;
+
+	public UnexpectedResultException(Object result) {
+		super(null, null, false, false);
+		this.result = result;
+	}
+
+	public Object getResult() {
+		return result;
+	}
+}
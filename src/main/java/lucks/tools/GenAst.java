@@ -23,24 +23,25 @@ public class GenAst {
 						"Binary: Expr left, Token operator, Expr right",
 						"Unary: Token operator, Expr expr",
 						"Literal: Object value",
-						"Variable: Token name",
+						"Variable: Token name; Slot slot",
 						"Grouping: Expr expr",
 						"Call: Expr callee, Token paren, List<Expr> arguments",
 						"Set: Expr object, Token name, Expr value",
-						"This: Token keyword",
-						"Super: Token zuper, Token name"
+						"This: Token keyword; Slot slot",
+						"Super: Token zuper, Token name; Slot slot, Slot receiver",
+						"Inline: Call call, Stmt.FunDecl function, List<Variable> parameters, Expr body"
 		));
 
 		List<Clazz> stmtClasses = createAST("Stmt", asList(
 						"Expression: Expr expression",
 						"Print: Expr expression",
 						"Block: List<Stmt> stmts",
-						"Var: Token name, Expr initializer",
-						"FunDecl: Token name, List<Token> parameters, List<Stmt> body",
-						"Return: Token keyword, Expr value",
+						"Var: Token name, Expr initializer; Slot slot",
+						"FunDecl: Token name, List<Token> parameters, List<Stmt> body; Slot slot, FrameLayout layout",
+						"Return: Token keyword, Expr value; boolean isTailCall",
 						"If: Expr cond, Stmt thenBranch, Stmt elseBranch",
 						"While: Expr cond, Stmt body",
-						"Class: Token name, Token superClass, List<FunDecl> methods"
+						"Class: Token name, Token superClass, List<FunDecl> methods; Slot slot, Slot superClassSlot, Slot superSlot"
 		));
 	}
 
@@ -86,10 +87,13 @@ public class GenAst {
 	private static class Clazz {
 		String name;
 		List<Field> fields;
+		// filled in by the resolver, not passed to the constructor
+		List<Field> resolved;
 
-		public Clazz(String name, List<Field> fields) {
+		public Clazz(String name, List<Field> fields, List<Field> resolved) {
 			this.name = name;
 			this.fields = fields;
+			this.resolved = resolved;
 		}
 	}
 
@@ -101,6 +105,10 @@ public class GenAst {
 											              (clazz.fields.stream()
 															              .map(f -> String.format("\t\tpublic final %s %s;\n", f.type, f.name))
 															              .collect(Collectors.joining(""))) +
+											              (clazz.resolved.isEmpty() ? "" : "\t\t// set by the resolver\n") +
+											              (clazz.resolved.stream()
+															              .map(f -> String.format("\t\tpublic %s %s;\n", f.type, f.name))
+															              .collect(Collectors.joining(""))) +
 											              "\n" +
 											              "\t\tpublic %1$s(" + (clazz.fields.stream()
 											.map(f -> f.type + " " + f.name)
@@ -136,14 +144,20 @@ public class GenAst {
 		for (String d : def) {
 			String[] p1 = d.split("\\s*:\\s*");
 			String name = p1[0];
-			String[] p2 = p1[1].split("\\s*,\\s*");
-			List<Field> fields = new LinkedList<>();
-			for (String fieldDef : p2) {
-				String[] p3 = fieldDef.split("\\s+");
-				fields.add(new Field(p3[0], p3[1]));
-			}
-			dd.add(new Clazz(name, fields));
+			String[] parts = p1[1].split("\\s*;\\s*");
+			List<Field> fields = parseFields(parts[0]);
+			List<Field> resolved = parts.length > 1 ? parseFields(parts[1]) : new LinkedList<>();
+			dd.add(new Clazz(name, fields, resolved));
 		}
 		return dd;
 	}
+
+	private static List<Field> parseFields(String def) {
+		List<Field> fields = new LinkedList<>();
+		for (String fieldDef : def.split("\\s*,\\s*")) {
+			String[] p3 = fieldDef.split("\\s+");
+			fields.add(new Field(p3[0], p3[1]));
+		}
+		return fields;
+	}
 }
@@ -0,0 +1,83 @@
+package lucks.tools;
+
+import java.util.List;
+
+import lucks.Parser;
+import lucks.Scanner;
+import lucks.Stmt;
+import lucks.Tokens;
+
+/**
+ * Measures how fast generated Lox sources of growing size are scanned and
+ * parsed. The throughput should stay about the same for every size, the time
+ * growing linearly with the source.
+ * <p>
+ * Usage: {@code ParseBenchmark [largest size in MB]}, 16 by default. Give the
+ * JVM a fixed heap of a few GB ({@code -Xms4g -Xmx4g}), otherwise growing the
+ * heap for the larger trees is measured as well.
+ */
+public class ParseBenchmark {
+
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) {
+		int largest = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+
+		// warm up on the smallest source before measuring anything
+		String warmUp = generate(1 << 20);
+		for (int i = 0; i < 10; i++) {
+			parse(warmUp);
+		}
+
+		System.out.println("    MB   scan ms  parse ms   scan MB/s  parse MB/s");
+		for (int size = 1; size <= largest; size *= 2) {
+			String source = generate(size << 20);
+			long scan = Long.MAX_VALUE;
+			long parse = Long.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				Tokens tokens = new Scanner(source).scanTokens();
+				long scanned = System.nanoTime();
+				List<Stmt> program = new Parser(tokens).parse();
+				long parsed = System.nanoTime();
+				if (program.isEmpty()) throw new AssertionError("nothing parsed");
+				scan = Math.min(scan, scanned - start);
+				parse = Math.min(parse, parsed - scanned);
+			}
+			double mb = source.length() / (double) (1 << 20);
+			System.out.printf("%6.1f  %8.1f  %8.1f  %10.1f  %10.1f%n",
+			                  mb, scan / 1e6, parse / 1e6, mb / (scan / 1e9), mb / (parse / 1e9));
+		}
+	}
+
+	private static List<Stmt> parse(String source) {
+		return new Parser(new Scanner(source).scanTokens()).parse();
+	}
+
+	/**
+	 * A program of about {@code length} characters, made of functions, classes
+	 * and statements using every operator.
+	 */
+	private static String generate(int length) {
+		StringBuilder source = new StringBuilder(length + 512);
+		for (int i = 0; source.length() < length; i++) {
+			source.append("fun f").append(i).append("(a, b, c) {\n")
+			      .append("\tvar x = a * (b + c) - a / 2 + -b;\n")
+			      .append("\tif (x >= 10 and !(x == b) or c != nil) {\n")
+			      .append("\t\tx = x + 1;\n")
+			      .append("\t} else {\n")
+			      .append("\t\tx = \"value\";\n")
+			      .append("\t}\n")
+			      .append("\tfor (var k = 0; k < 3; k = k + 1) print k <= x;\n")
+			      .append("\treturn f").append(i).append("(x, b, c) > 1;\n")
+			      .append("}\n")
+			      .append("class C").append(i).append(" < Base {\n")
+			      .append("\tinit(v) { this.value = v; }\n")
+			      .append("\tget() { return super.get() + this.value.next; }\n")
+			      .append("}\n")
+			      .append("var o").append(i).append(" = C").append(i).append("(true).get();\n")
+			      .append("while (false) o").append(i).append(".value = 1.5;\n");
+		}
+		return source.toString();
+	}
+}
@@ -0,0 +1,188 @@
+package lucks.visitors;
+
+import java.util.List;
+
+import lucks.Expr;
+import lucks.LazyBody;
+import lucks.Stmt;
+import lucks.Token;
+
+/**
+ * Prints a program as s-expressions, one statement per line and nested
+ * statements indented.
+ */
+public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<Void> {
+
+	private final StringBuilder out = new StringBuilder();
+	private int depth;
+
+	public static String print(List<Stmt> stmts) {
+		AstPrinter printer = new AstPrinter();
+		printer.statements(stmts);
+		return printer.out.toString();
+	}
+
+	private void statements(List<? extends Stmt> stmts) {
+		for (Stmt stmt : stmts) {
+			stmt.accept(this);
+		}
+	}
+
+	private void line(String text) {
+		for (int i = 0; i < depth; i++) {
+			out.append("  ");
+		}
+		out.append(text).append('\n');
+	}
+
+	private void nested(String head, List<? extends Stmt> stmts) {
+		line("(" + head);
+		depth++;
+		statements(stmts);
+		depth--;
+		line(")");
+	}
+
+	private void nested(String head, Stmt stmt) {
+		line("(" + head);
+		depth++;
+		if (stmt != null) stmt.accept(this);
+		depth--;
+		line(")");
+	}
+
+	private String expr(Expr expr) {
+		return expr == null ? "nil" : expr.accept(this);
+	}
+
+	private static String names(List<Token> tokens) {
+		StringBuilder names = new StringBuilder("(");
+		for (Token token : tokens) {
+			if (names.length() > 1) names.append(' ');
+			names.append(token.getLexeme());
+		}
+		return names.append(')').toString();
+	}
+
+	@Override
+	public String visitBinary(Expr.Binary expr) {
+		return "(" + expr.operator.getLexeme() + " " + expr(expr.left) + " " + expr(expr.right) + ")";
+	}
+
+	@Override
+	public String visitUnary(Expr.Unary expr) {
+		return "(" + expr.operator.getLexeme() + " " + expr(expr.expr) + ")";
+	}
+
+	@Override
+	public String visitLiteral(Expr.Literal expr) {
+		if (expr.value instanceof String) return "\"" + expr.value + "\"";
+		return Interpreter.stringify(expr.value);
+	}
+
+	@Override
+	public String visitVariable(Expr.Variable expr) {
+		return expr.name.getLexeme();
+	}
+
+	@Override
+	public String visitGrouping(Expr.Grouping expr) {
+		return "(group " + expr(expr.expr) + ")";
+	}
+
+	@Override
+	public String visitCall(Expr.Call expr) {
+		StringBuilder call = new StringBuilder("(call ").append(expr(expr.callee));
+		for (Expr argument : expr.arguments) {
+			call.append(' ').append(expr(argument));
+		}
+		return call.append(')').toString();
+	}
+
+	@Override
+	public String visitSet(Expr.Set expr) {
+		return "(set " + expr(expr.object) + " " + expr.name.getLexeme() + " " + expr(expr.value) + ")";
+	}
+
+	@Override
+	public String visitThis(Expr.This expr) {
+		return "this";
+	}
+
+	@Override
+	public String visitSuper(Expr.Super expr) {
+		return "super." + expr.name.getLexeme();
+	}
+
+	@Override
+	public String visitInline(Expr.Inline expr) {
+		StringBuilder parameters = new StringBuilder("(");
+		for (Expr.Variable parameter : expr.parameters) {
+			if (parameters.length() > 1) parameters.append(' ');
+			parameters.append(parameter.name.getLexeme());
+		}
+		parameters.append(')');
+		return "(inline " + expr(expr.call) + " " + parameters + " " + expr(expr.body) + ")";
+	}
+
+	@Override
+	public Void visitExpression(Stmt.Expression stmt) {
+		line(expr(stmt.expression));
+		return null;
+	}
+
+	@Override
+	public Void visitPrint(Stmt.Print stmt) {
+		line("(print " + expr(stmt.expression) + ")");
+		return null;
+	}
+
+	@Override
+	public Void visitBlock(Stmt.Block stmt) {
+		nested("block", stmt.stmts);
+		return null;
+	}
+
+	@Override
+	public Void visitVar(Stmt.Var stmt) {
+		line("(var " + stmt.name.getLexeme() + " " + expr(stmt.initializer) + ")");
+		return null;
+	}
+
+	@Override
+	public Void visitFunDecl(Stmt.FunDecl stmt) {
+		if (LazyBody.isPending(stmt)) {
+			line("(fun " + stmt.name.getLexeme() + " " + names(stmt.parameters) + " ...)");
+			return null;
+		}
+		nested("fun " + stmt.name.getLexeme() + " " + names(stmt.parameters), stmt.body);
+		return null;
+	}
+
+	@Override
+	public Void visitReturn(Stmt.Return stmt) {
+		line(stmt.value == null ? "(return)" : "(return " + expr(stmt.value) + ")");
+		return null;
+	}
+
+	@Override
+	public Void visitIf(Stmt.If stmt) {
+		nested("if " + expr(stmt.cond), stmt.thenBranch);
+		if (stmt.elseBranch != null) nested("else", stmt.elseBranch);
+		return null;
+	}
+
+	@Override
+	public Void visitWhile(Stmt.While stmt) {
+		nested("while " + expr(stmt.cond), stmt.body);
+		return null;
+	}
+
+	@Override
+	public Void visitClass(Stmt.Class stmt) {
+		String head = "class " + stmt.name.getLexeme();
+		if (stmt.superClass != null) head += " < " + stmt.superClass.getLexeme();
+		nested(head, stmt.methods);
+		return null;
+	}
+}
@@ -0,0 +1,212 @@
+package lucks.visitors;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lucks.Expr;
+import lucks.FrameLayout;
+import lucks.LazyBody;
+import lucks.Slot;
+import lucks.Stmt;
+import lucks.SymbolMap;
+import lucks.Token;
+import lucks.TokenType;
+
+/**
+ * Replaces calls of small global functions by their bodies. A function is
+ * inlined if it is declared once at the top of the program, never assigned,
+ * captures nothing and only returns an expression, which neither calls the
+ * function itself nor assigns a parameter.
+ * <p>
+ * Every call site gets slots of its own in the caller's frame for the
+ * parameters, so the frame layouts grow. The inlined code checks that the
+ * global still holds the function before it runs and makes the call otherwise.
+ * <p>
+ * Tail calls are left alone: inlining one would turn the trampoline off for
+ * the calls the inlined body returns, and deep recursion through it would run
+ * out of stack.
+ */
+public class Inliner extends Rewriter {
+
+	/**
+	 * The most expression nodes an inlined body may have.
+	 */
+	private static final int MAX_SIZE = 16;
+
+	private final Interpreter interpreter;
+	private final SymbolMap<Stmt.FunDecl> candidates = new SymbolMap<>();
+	// the frame of the function being rewritten and the slots added to it
+	private int frameSize;
+	private int addedSlots;
+	// the call returned by the tail call being rewritten
+	private Expr.Call tailCall;
+
+	public Inliner(Interpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	public List<Stmt> inline(List<Stmt> stmts) {
+		findCandidates(stmts);
+		if (candidates.size() == 0) return stmts;
+
+		FrameLayout script = interpreter.getScriptLayout();
+		frameSize = script.size;
+		List<Stmt> result = statements(stmts);
+		if (addedSlots > 0) interpreter.resolveScript(grow(script, addedSlots));
+		return result;
+	}
+
+	private void findCandidates(List<Stmt> stmts) {
+		SymbolMap<Integer> declarations = new SymbolMap<>();
+		for (Stmt stmt : stmts) {
+			Token name = declaredName(stmt);
+			if (name == null) continue;
+			Integer count = declarations.get(name.getSymbol());
+			declarations.put(name.getSymbol(), count == null ? 1 : count + 1);
+		}
+
+		SymbolMap<Boolean> assigned = new SymbolMap<>();
+		new Rewriter() {
+			@Override
+			public Expr visitBinary(Expr.Binary expr) {
+				if (expr.operator.getType() == TokenType.EQUAL) {
+					Expr.Variable variable = (Expr.Variable) expr.left;
+					if (variable.slot == null) assigned.put(variable.name.getSymbol(), true);
+				}
+				return super.visitBinary(expr);
+			}
+		}.statements(stmts);
+
+		for (Stmt stmt : stmts) {
+			if (!(stmt instanceof Stmt.FunDecl)) continue;
+			Stmt.FunDecl fun = (Stmt.FunDecl) stmt;
+			int symbol = fun.name.getSymbol();
+			if (declarations.get(symbol) == 1 && !assigned.containsKey(symbol) && isInlinable(fun)) {
+				candidates.put(symbol, fun);
+			}
+		}
+	}
+
+	private static Token declaredName(Stmt stmt) {
+		if (stmt instanceof Stmt.Var) return ((Stmt.Var) stmt).name;
+		if (stmt instanceof Stmt.FunDecl) return ((Stmt.FunDecl) stmt).name;
+		if (stmt instanceof Stmt.Class) return ((Stmt.Class) stmt).name;
+		return null;
+	}
+
+	private boolean isInlinable(Stmt.FunDecl fun) {
+		// a body parsed on the first call is not parsed for the sake of inlining
+		if (LazyBody.isPending(fun)) return false;
+		Expr body = returnedValue(fun);
+		if (body == null || fun.layout.captures.length > 0) return false;
+
+		BodyCheck check = new BodyCheck(fun.name.getSymbol());
+		check.rewrite(body);
+		return check.inlinable && check.size <= MAX_SIZE;
+	}
+
+	private static Expr returnedValue(Stmt.FunDecl fun) {
+		if (fun.body.size() != 1 || !(fun.body.get(0) instanceof Stmt.Return)) return null;
+		return ((Stmt.Return) fun.body.get(0)).value;
+	}
+
+	private static FrameLayout grow(FrameLayout layout, int slots) {
+		return new FrameLayout(layout.size + slots, layout.parameters, layout.captures);
+	}
+
+	@Override
+	public Stmt visitFunDecl(Stmt.FunDecl stmt) {
+		int outerSize = frameSize;
+		int outerAdded = addedSlots;
+		frameSize = stmt.layout.size;
+		addedSlots = 0;
+
+		Stmt result = super.visitFunDecl(stmt);
+		if (addedSlots > 0) ((Stmt.FunDecl) result).layout = grow(stmt.layout, addedSlots);
+
+		frameSize = outerSize;
+		addedSlots = outerAdded;
+		return result;
+	}
+
+	@Override
+	public Stmt visitReturn(Stmt.Return stmt) {
+		Expr.Call outerTailCall = tailCall;
+		tailCall = stmt.isTailCall && stmt.value instanceof Expr.Call ? (Expr.Call) stmt.value : null;
+		Stmt result = super.visitReturn(stmt);
+		tailCall = outerTailCall;
+		return result;
+	}
+
+	@Override
+	public Expr visitCall(Expr.Call expr) {
+		Expr.Call call = (Expr.Call) super.visitCall(expr);
+		if (expr == tailCall || !(call.callee instanceof Expr.Variable)) return call;
+
+		Expr.Variable callee = (Expr.Variable) call.callee;
+		Stmt.FunDecl fun = callee.slot == null ? candidates.get(callee.name.getSymbol()) : null;
+		if (fun == null || fun.parameters.size() != call.arguments.size()) return call;
+		return inline(call, fun);
+	}
+
+	private Expr inline(Expr.Call call, Stmt.FunDecl fun) {
+		Slot[] slots = fun.layout.parameters;
+		Map<Slot, Slot> substitutes = new IdentityHashMap<>();
+		List<Expr.Variable> parameters = new ArrayList<>(slots.length);
+		for (int i = 0; i < slots.length; i++) {
+			Expr.Variable parameter = new Expr.Variable(fun.parameters.get(i));
+			parameter.slot = new Slot(Slot.Kind.LOCAL, frameSize + addedSlots++);
+			substitutes.put(slots[i], parameter.slot);
+			parameters.add(parameter);
+		}
+
+		Expr body = new Rewriter() {
+			@Override
+			public Expr visitVariable(Expr.Variable expr) {
+				Slot substitute = expr.slot == null ? null : substitutes.get(expr.slot);
+				if (substitute == null) return expr;
+
+				Expr.Variable variable = new Expr.Variable(expr.name);
+				variable.slot = substitute;
+				return variable;
+			}
+		}.rewrite(returnedValue(fun));
+		return new Expr.Inline(call, fun, parameters, body);
+	}
+
+	/**
+	 * Measures a function body and looks for what keeps it from being inlined.
+	 */
+	private class BodyCheck extends Rewriter {
+
+		private final int self;
+		private int size;
+		private boolean inlinable = true;
+
+		BodyCheck(int self) {
+			this.self = self;
+		}
+
+		@Override
+		protected Expr rewrite(Expr expr) {
+			size++;
+			return super.rewrite(expr);
+		}
+
+		@Override
+		public Expr visitBinary(Expr.Binary expr) {
+			inlinable &= expr.operator.getType() != TokenType.EQUAL;
+			return super.visitBinary(expr);
+		}
+
+		@Override
+		public Expr visitCall(Expr.Call expr) {
+			if (expr.callee instanceof Expr.Variable) {
+				inlinable &= ((Expr.Variable) expr.callee).name.getSymbol() != self;
+			}
+			return super.visitCall(expr);
+		}
+	}
+}
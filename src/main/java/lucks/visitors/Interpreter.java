@@ -1,50 +1,51 @@
 package lucks.visitors;
 
 import lucks.*;
+import lucks.jit.JitCompiler;
+import lucks.nodes.NodeBuilder;
+import lucks.vm.VM;
 
+import java.io.PrintStream;
 import java.util.*;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
 
-	private Environment globals = new Environment();
-	private Environment environment = globals;
-	// Note: the book uses Expr instead of Token; why?
-	private final Map<Token, Integer> locals = new HashMap<>();
+	private final Environment globals;
+	private Frame frame;
+	private FrameLayout script;
+	private JitCompiler jit;
+	private NodeBuilder nodes;
+	private VM vm;
+	private Object returnValue;
+	private LoxFunction tailCallee;
+	private LoxInstance tailReceiver;
+	private Object[] tailArguments;
+	private PrintStream out = System.out;
 
 	public Interpreter() {
-		globals.define("clock", new LoxCallable() {
-			@Override
-			public int arity() {
-				return 0;
-			}
-
-			@Override
-			public Double call(Interpreter interpreter, List<Object> params) {
-				return (double) System.currentTimeMillis();
-			}
-
-			@Override
-			public String toString() {
-				return "<builtin clock>";
-			}
-		});
-
-		globals.define("str", new LoxCallable() {
-			@Override
-			public int arity() {
-				return 1;
-			}
+		this(new Environment());
+		Natives.define(globals, CoreFunctions.class);
+		Natives.define(globals, CollectionFunctions.class);
+		Natives.define(globals, TaskFunctions.class);
+	}
 
-			@Override
-			public String call(Interpreter interpreter, List<Object> params) {
-				return stringify(params.get(0));
-			}
+	private Interpreter(Environment globals) {
+		this.globals = globals;
+	}
 
-			@Override
-			public String toString() {
-				return "<builtin str>";
-			}
-		});
+	/**
+	 * An interpreter for running functions on another thread. It shares the
+	 * globals and the output with this one and has the state of its calls, and
+	 * its nodes, VM and JIT, to itself.
+	 */
+	public Interpreter fork() {
+		globals.share();
+		Interpreter fork = new Interpreter(globals);
+		fork.out = out;
+		if (jit != null) fork.enableJit();
+		if (nodes != null) fork.enableNodes();
+		if (vm != null) fork.enableVm();
+		return fork;
 	}
 
 	@Override
@@ -61,13 +62,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		// for assignment, do not evaluate the left-hand side
 		if (opType == TokenType.EQUAL) {
 			Object value = evaluate(expr.right);
-			Token varName = ((Expr.Variable) expr.left).name;
-			Integer distance = locals.get(varName);
-			if (distance != null) {
-				environment.assignAt(distance, varName, value);
-			} else {
-				globals.assign(varName, value);
-			}
+			Expr.Variable variable = (Expr.Variable) expr.left;
+			assign(variable.slot, variable.name, value);
 			return value;
 		}
 
@@ -82,8 +78,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 			}
 			if (expr.right instanceof Expr.Call) {
 				Expr.Call call = (Expr.Call) expr.right;
-				LoxCallable callable = (LoxCallable) ((LoxInstance) left).get(((Expr.Variable) call.callee).name);
-				return callit(call, callable);
+				return invoke(call, (LoxInstance) left, ((Expr.Variable) call.callee).name);
 			}
 			throw new RuntimeError(expr.operator, "Only names can be fields.");
 		}
@@ -94,8 +89,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 			case PLUS:
 				if (left instanceof Double && right instanceof Double)
 					return (double) left + (double) right;
-				if (left instanceof String && right instanceof String)
-					return (String) left + (String) right;
+				if (Rope.isString(left) && Rope.isString(right))
+					return Rope.concat(left, right);
 
 				throw error(expr.operator, "Operands must be either both strings or both numbers.");
 		}
@@ -128,11 +123,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		throw new AssertionError(opType);
 	}
 
-	private boolean isEqual(Object left, Object right) {
-		return Objects.equals(left, right);
+	public static boolean isEqual(Object left, Object right) {
+		return Objects.equals(Rope.flatten(left), Rope.flatten(right));
 	}
 
-	private boolean isTruthy(Object val) {
+	public static boolean isTruthy(Object val) {
 		if (val == null) return false;
 		if (val instanceof Boolean) return (boolean) val;
 		return true;
@@ -161,16 +156,34 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	}
 
 	private Object lookupVariable(Expr.Variable expr) {
-		return lookupToken(expr.name);
+		return lookup(expr.slot, expr.name);
+	}
+
+	/**
+	 * Reads a variable from its slot, or the global {@code name} if the resolver
+	 * found no local.
+	 */
+	private Object lookup(Slot slot, Token name) {
+		if (slot != null) {
+			return frame.get(slot);
+		} else {
+			return globals.get(name);
+		}
 	}
 
-	private Object lookupToken(Token token) {
-		Integer distance = locals.get(token);
+	private void assign(Slot slot, Token name, Object value) {
+		if (slot != null) {
+			frame.set(slot, value);
+		} else {
+			globals.assign(name, value);
+		}
+	}
 
-		if (distance != null) {
-			return environment.getAt(token, distance);
+	private void declare(Slot slot, Token name, Object value) {
+		if (slot != null) {
+			frame.define(slot, value);
 		} else {
-			return globals.get(token);
+			globals.define(name.getSymbol(), value);
 		}
 	}
 
@@ -181,6 +194,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 	@Override
 	public Object visitCall(Expr.Call expr) {
+		if (expr.callee instanceof Expr.Super) {
+			Expr.Super zuper = (Expr.Super) expr.callee;
+			LoxFunction method = superMethod(zuper);
+			checkArity(expr, method);
+			return callMethod(expr, method, superReceiver(zuper));
+		}
+
 		Object callee = evaluate(expr.callee);
 		if (!(callee instanceof LoxCallable)) {
 			throw error(expr.paren, "Can only call functions and classes.");
@@ -190,19 +210,110 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	}
 
 	private Object callit(Expr.Call expr, LoxCallable callee) {
+		checkArity(expr, callee);
+		List<Expr> arguments = expr.arguments;
+		try {
+			switch (arguments.size()) {
+				case 0:
+					return callee.call0(this);
+				case 1:
+					return callee.call1(this, evaluate(arguments.get(0)));
+				case 2:
+					return callee.call2(this, evaluate(arguments.get(0)), evaluate(arguments.get(1)));
+				case 3:
+					return callee.call3(this, evaluate(arguments.get(0)), evaluate(arguments.get(1)),
+					                    evaluate(arguments.get(2)));
+				default:
+					return callee.call(this, evaluateArguments(expr));
+			}
+		} catch (BuiltinError e) {
+			throw error(expr.paren, e.getMessage());
+		}
+	}
+
+	private Object callMethod(Expr.Call expr, LoxFunction method, LoxInstance instance) {
+		List<Expr> arguments = expr.arguments;
+		switch (arguments.size()) {
+			case 0:
+				return method.callMethod0(this, instance);
+			case 1:
+				return method.callMethod1(this, instance, evaluate(arguments.get(0)));
+			case 2:
+				return method.callMethod2(this, instance, evaluate(arguments.get(0)), evaluate(arguments.get(1)));
+			case 3:
+				return method.callMethod3(this, instance, evaluate(arguments.get(0)), evaluate(arguments.get(1)),
+				                          evaluate(arguments.get(2)));
+			default:
+				return method.callMethod(this, instance, evaluateArguments(expr));
+		}
+	}
+
+	/**
+	 * Calls a method or a callable field of {@code instance}. Methods get the
+	 * instance passed directly instead of being bound to it first.
+	 */
+	private Object invoke(Expr.Call expr, LoxInstance instance, Token name) {
+		Object field = instance.getField(name);
+		if (field != null) {
+			if (!(field instanceof LoxCallable)) {
+				throw error(expr.paren, "Can only call functions and classes.");
+			}
+			return callit(expr, (LoxCallable) field);
+		}
+
+		LoxFunction method = instance.getLoxClass().findMethod(name.getSymbol());
+		if (method == null) {
+			throw new RuntimeError(name, "Undefined property: " + name.getLexeme());
+		}
+		checkArity(expr, method);
+		return callMethod(expr, method, instance);
+	}
+
+	/**
+	 * Like {@link #invoke}, but hands the call to the returning function.
+	 */
+	private Completion tailInvoke(Expr.Binary expr) {
+		Object left = evaluate(expr.left);
+		if (!(left instanceof LoxInstance)) {
+			throw new RuntimeError(expr.operator, "Only instances have fields.");
+		}
+		LoxInstance instance = (LoxInstance) left;
+		Expr.Call call = (Expr.Call) expr.right;
+		Token name = ((Expr.Variable) call.callee).name;
+
+		Object field = instance.getField(name);
+		if (field != null) {
+			if (!(field instanceof LoxCallable)) {
+				throw error(call.paren, "Can only call functions and classes.");
+			}
+			checkArity(call, (LoxCallable) field);
+			return tailCall((LoxCallable) field, evaluateArguments(call), call.paren);
+		}
+
+		LoxFunction method = instance.getLoxClass().findMethod(name.getSymbol());
+		if (method == null) {
+			throw new RuntimeError(name, "Undefined property: " + name.getLexeme());
+		}
+		checkArity(call, method);
+		return tailCallMethod(method, instance, evaluateArguments(call));
+	}
+
+	private void checkArity(Expr.Call expr, LoxCallable callee) {
 		if (callee.arity() != expr.arguments.size()) {
 			throw error(expr.paren,
 			            String.format("Wrong number of arguments, when calling %s. " +
 							                          "Expected %s, was %s",
 			                          callee, callee.arity(), expr.arguments.size()));
 		}
+	}
 
-		List<Object> argValues = new LinkedList<>();
+	private Object[] evaluateArguments(Expr.Call expr) {
+		Object[] values = new Object[expr.arguments.size()];
+		int i = 0;
 		for (Expr argument : expr.arguments) {
-			argValues.add(evaluate(argument));
+			values[i++] = evaluate(argument);
 		}
-
-		return callee.call(this, argValues);
+		return values;
 	}
 
 	@Override
@@ -219,16 +330,17 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 	@Override
 	public Object visitThis(Expr.This expr) {
-		return environment.getAt(expr.keyword, locals.get(expr.keyword));
+		return lookup(expr.slot, expr.keyword);
 	}
 
 	@Override
 	public Object visitSuper(Expr.Super expr) {
-		Integer dist = locals.get(expr.zuper);
-		System.out.println("dist = " + dist);
-		LoxClass superClass = (LoxClass) environment.getAt(expr.zuper, dist);
-		Object instance = environment.getAt("this", dist - 1);
-		LoxFunction method = superClass.findMethod((LoxInstance) instance, expr.name.getLexeme());
+		return superMethod(expr).bind(superReceiver(expr));
+	}
+
+	private LoxFunction superMethod(Expr.Super expr) {
+		LoxClass superClass = (LoxClass) frame.get(expr.slot);
+		LoxFunction method = superClass.findMethod(expr.name.getSymbol());
 
 		if (method == null) {
 			throw new RuntimeError(expr.name, String.format("Undefined property %s.", expr.name));
@@ -237,114 +349,155 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		return method;
 	}
 
+	private LoxInstance superReceiver(Expr.Super expr) {
+		return (LoxInstance) frame.get(expr.receiver);
+	}
+
+	/**
+	 * Runs the inlined body if the global still holds the function it was
+	 * taken from, the arguments go to slots of the current frame.
+	 */
 	@Override
-	public Void visitExpression(Stmt.Expression stmt) {
+	public Object visitInline(Expr.Inline expr) {
+		Object callee = evaluate(expr.call.callee);
+		if (!(callee instanceof LoxFunction) || !((LoxFunction) callee).isDeclaredBy(expr.function)) {
+			return evaluate(expr.call);
+		}
+
+		List<Expr> arguments = expr.call.arguments;
+		for (int i = 0; i < arguments.size(); i++) {
+			frame.set(expr.parameters.get(i).slot, evaluate(arguments.get(i)));
+		}
+		return evaluate(expr.body);
+	}
+
+	@Override
+	public Completion visitExpression(Stmt.Expression stmt) {
 		evaluate(stmt.expression);
-		return null;
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitPrint(Stmt.Print stmt) {
-		System.out.println(stringify(evaluate(stmt.expression)));
-		return null;
+	public Completion visitPrint(Stmt.Print stmt) {
+		out.println(stringify(evaluate(stmt.expression)));
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitBlock(Stmt.Block stmt) {
-		executeBlock(stmt.stmts, new Environment(this.environment));
-		return null;
+	public Completion visitBlock(Stmt.Block stmt) {
+		return executeStatements(stmt.stmts);
 	}
 
 	@Override
-	public Void visitVar(Stmt.Var stmt) {
+	public Completion visitVar(Stmt.Var stmt) {
 		Object value = null;
 		if (stmt.initializer != null) {
 			value = evaluate(stmt.initializer);
 		}
 
-		environment.define(stmt.name.getLexeme(), value);
-		return null;
+		declare(stmt.slot, stmt.name, value);
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitFunDecl(Stmt.FunDecl stmt) {
-		environment.define(stmt.name.getLexeme(),
-		                   new LoxFunction(stmt, this.environment));
-		return null;
+	public Completion visitFunDecl(Stmt.FunDecl stmt) {
+		// declared first, so a captured variable has its cell before the closure
+		declare(stmt.slot, stmt.name, null);
+		assign(stmt.slot, stmt.name, closure(stmt, false));
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitReturn(Stmt.Return stmt) {
+	public Completion visitReturn(Stmt.Return stmt) {
+		if (stmt.isTailCall) {
+			if (stmt.value instanceof Expr.Binary) return tailInvoke((Expr.Binary) stmt.value);
+			Expr.Call call = (Expr.Call) stmt.value;
+			Object callee = evaluate(call.callee);
+			if (!(callee instanceof LoxCallable)) {
+				throw error(call.paren, "Can only call functions and classes.");
+			}
+			checkArity(call, (LoxCallable) callee);
+			return tailCall((LoxCallable) callee, evaluateArguments(call), call.paren);
+		}
+
 		Object val = null;
 		if (stmt.value != null) {
 			val = evaluate(stmt.value);
 		}
-		throw new Return(val);
+		returnValue = val;
+		return Completion.RETURN;
 	}
 
 	@Override
-	public Void visitIf(Stmt.If stmt) {
+	public Completion visitIf(Stmt.If stmt) {
 		if (isTruthy(evaluate(stmt.cond))) {
-			execute(stmt.thenBranch);
+			return execute(stmt.thenBranch);
 		} else if (stmt.elseBranch != null) {
-			execute(stmt.elseBranch);
+			return execute(stmt.elseBranch);
 		}
-		return null;
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitWhile(Stmt.While stmt) {
+	public Completion visitWhile(Stmt.While stmt) {
 		while (isTruthy(evaluate(stmt.cond))) {
-			execute(stmt.body);
+			Completion completion = execute(stmt.body);
+			if (completion != Completion.NORMAL) return completion;
 		}
-		return null;
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitClass(Stmt.Class stmt) {
-		environment.define(stmt.name.getLexeme(), null);
+	public Completion visitClass(Stmt.Class stmt) {
+		declare(stmt.slot, stmt.name, null);
 
 		Token superClass = stmt.superClass;
 		LoxClass zuper = null;
-		Environment parent = null;
 		if (superClass != null) {
-			parent = this.environment;
-			this.environment = new Environment(this.environment);
-			Object obj = lookupToken(superClass);
+			Object obj = lookup(stmt.superClassSlot, superClass);
 			if (!(obj instanceof LoxClass)) {
 				throw new RuntimeError(superClass,"Superclass must be a class");
 			}
 			zuper = (LoxClass) obj;
-			environment.define("super", zuper);
+			frame.define(stmt.superSlot, zuper);
 		}
 
-		Map<String, LoxFunction> methods = new HashMap<>();
+		SymbolMap<LoxFunction> methods = new SymbolMap<>();
 		for (Stmt.FunDecl method : stmt.methods) {
-			String name = method.name.getLexeme();
-			methods.put(name, new LoxFunction(method, this.environment, name.equals("init")));
-		}
-
-		if (parent != null) {
-			this.environment = parent;
+			methods.put(method.name.getSymbol(), closure(method, true));
 		}
 
 		LoxClass loxClass = new LoxClass(stmt.name.getLexeme(), zuper, methods);
-		this.environment.assign(stmt.name, loxClass);
+		assign(stmt.slot, stmt.name, loxClass);
 
-		return null;
+		return Completion.NORMAL;
+	}
+
+	private LoxFunction closure(Stmt.FunDecl fun, boolean isMethod) {
+		FrameLayout layout = fun.layout;
+		Cell[] upvalues = frame.capture(layout.captures);
+		if (isMethod) {
+			return new LoxFunction(fun, layout, upvalues, fun.name.getSymbol() == Symbols.INIT);
+		}
+		return new LoxFunction(fun, layout, upvalues);
 	}
 
 	public void interpret(List<Stmt> stmts) {
+		frame = new Frame(script.size, Frame.NO_UPVALUES);
 		for (Stmt stmt : stmts) {
-			execute(stmt);
+			if (nodes != null) {
+				nodes.build(stmt).execute(frame);
+			} else {
+				execute(stmt);
+			}
 		}
 	}
 
-	private void execute(Stmt stmt) {
-		stmt.accept(this);
+	private Completion execute(Stmt stmt) {
+		return stmt.accept(this);
 	}
 	
-	private String stringify(Object input) {
+	public static String stringify(Object input) {
 		if (input == null) return "nil";
 
 		if (input instanceof Double) {
@@ -378,19 +531,151 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		return new RuntimeError(operator, msg);
 	}
 
-	public void executeBlock(List<Stmt> body, Environment callEnv) {
-		Environment parentEnvironment = this.environment;
+	private Completion executeStatements(List<Stmt> stmts) {
+		for (Stmt child : stmts) {
+			Completion completion = execute(child);
+			if (completion != Completion.NORMAL) return completion;
+		}
+		return Completion.NORMAL;
+	}
+
+	/**
+	 * Runs the body of a function in the frame prepared for the call.
+	 */
+	public Completion executeBody(Stmt.FunDecl fun, Frame callFrame) {
+		Frame parentFrame = this.frame;
 		try {
-			this.environment = callEnv;
-			for (Stmt child : body) {
-				execute(child);
-			}
+			this.frame = callFrame;
+			return executeStatements(fun.body);
 		} finally {
-			this.environment = parentEnvironment;
+			this.frame = parentFrame;
+		}
+	}
+
+	/**
+	 * Hands over the value of the last executed return statement.
+	 */
+	public Object takeReturnValue() {
+		Object value = returnValue;
+		returnValue = null;
+		return value;
+	}
+
+	public void setReturnValue(Object value) {
+		returnValue = value;
+	}
+
+	/**
+	 * Returns the result of calling {@code callee}. Calls to Lox functions are
+	 * left to the {@link LoxFunction} that is returning, so they do not nest.
+	 */
+	public Completion tailCall(LoxCallable callee, Object[] arguments, Token paren) {
+		if (callee instanceof LoxFunction && !((LoxFunction) callee).isConstructor()) {
+			tailCallee = (LoxFunction) callee;
+			tailArguments = arguments;
+			return Completion.TAIL_CALL;
 		}
+		try {
+			returnValue = callee.call(this, arguments);
+		} catch (BuiltinError e) {
+			throw error(paren, e.getMessage());
+		}
+		return Completion.RETURN;
+	}
+
+	/**
+	 * Like {@link #tailCall}, with {@code instance} as "this" of the method.
+	 */
+	public Completion tailCallMethod(LoxFunction method, LoxInstance instance, Object[] arguments) {
+		if (method.isConstructor()) {
+			returnValue = method.callMethod(this, instance, arguments);
+			return Completion.RETURN;
+		}
+		tailCallee = method;
+		tailReceiver = instance;
+		tailArguments = arguments;
+		return Completion.TAIL_CALL;
+	}
+
+	public LoxFunction takeTailCallee() {
+		LoxFunction callee = tailCallee;
+		tailCallee = null;
+		return callee;
+	}
+
+	/**
+	 * The instance a method was tail called on, null if the callee is a
+	 * function or a bound method.
+	 */
+	public LoxInstance takeTailReceiver() {
+		LoxInstance instance = tailReceiver;
+		tailReceiver = null;
+		return instance;
+	}
+
+	public Object[] takeTailArguments() {
+		Object[] arguments = tailArguments;
+		tailArguments = null;
+		return arguments;
+	}
+
+	/**
+	 * Executes the program with self-specializing nodes instead of this visitor.
+	 */
+	public void enableNodes() {
+		nodes = new NodeBuilder(this);
+	}
+
+	/**
+	 * Runs the program compiled to bytecode, see {@link #getVm}.
+	 */
+	public void enableVm() {
+		vm = new VM(this);
+	}
+
+	public void enableJit() {
+		jit = new JitCompiler();
+	}
+
+	/**
+	 * Where print statements write to, standard output by default.
+	 */
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	public PrintStream getOut() {
+		return out;
+	}
+
+	/**
+	 * The builder of the nodes the program runs as, null if it runs in this visitor.
+	 */
+	public NodeBuilder getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * The machine running the bytecode of this interpreter, null if it runs
+	 * the AST. Closures called from builtins run on it.
+	 */
+	public VM getVm() {
+		return vm;
+	}
+
+	public JitCompiler getJit() {
+		return jit;
+	}
+
+	public Environment getGlobals() {
+		return globals;
+	}
+
+	public void resolveScript(FrameLayout layout) {
+		script = layout;
 	}
 
-	public void resolve(Token name, int depth) {
-		locals.put(name, depth);
+	public FrameLayout getScriptLayout() {
+		return script;
 	}
 }
@@ -0,0 +1,280 @@
+package lucks.visitors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lucks.Expr;
+import lucks.LazyBody;
+import lucks.Slot;
+import lucks.Stmt;
+import lucks.TokenType;
+
+/**
+ * Simplifies a resolved program before it is run, by any backend:
+ * <ul>
+ * <li>operators applied to literals are folded, as long as they would not fail
+ * at runtime;</li>
+ * <li>"and"/"or" with a literal on the left, groupings and operations that do
+ * nothing to a number are dropped;</li>
+ * <li>if and while statements with a literal condition lose the branches that
+ * never run, as do the statements behind a return;</li>
+ * <li>reads of local variables that are initialized with a literal and never
+ * assigned are replaced by the literal.</li>
+ * </ul>
+ * Nodes are only rebuilt where something changed, and a rebuilt node keeps
+ * what the resolver stored in the old one. Bodies that are parsed on their
+ * first call are optimized then.
+ */
+public class Optimizer extends Rewriter {
+
+	private final Set<Slot> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final Map<Slot, Expr.Literal> constants = new IdentityHashMap<>();
+
+	public List<Stmt> optimize(List<Stmt> stmts) {
+		new AssignmentCollector().statements(stmts);
+		return statements(stmts);
+	}
+
+	/**
+	 * Optimizes a statement list, leaving out the statements that do nothing
+	 * and the ones following a return.
+	 */
+	@Override
+	protected List<Stmt> statements(List<Stmt> stmts) {
+		List<Stmt> result = new ArrayList<>(stmts.size());
+		boolean changed = false;
+		for (Stmt stmt : stmts) {
+			Stmt optimized = rewrite(stmt);
+			changed |= optimized != stmt;
+			if (isEmpty(optimized)) {
+				changed = true;
+				continue;
+			}
+			result.add(optimized);
+			if (optimized instanceof Stmt.Return) {
+				changed |= result.size() < stmts.size();
+				break;
+			}
+		}
+		return changed ? result : stmts;
+	}
+
+	private static boolean isEmpty(Stmt stmt) {
+		if (stmt instanceof Stmt.Block) return ((Stmt.Block) stmt).stmts.isEmpty();
+		return stmt instanceof Stmt.Expression && ((Stmt.Expression) stmt).expression instanceof Expr.Literal;
+	}
+
+	private static Stmt nothing() {
+		return new Stmt.Block(Collections.emptyList());
+	}
+
+	@Override
+	public Expr visitBinary(Expr.Binary expr) {
+		Expr result = super.visitBinary(expr);
+		if (!(result instanceof Expr.Binary)) return result;
+
+		Expr.Binary binary = (Expr.Binary) result;
+		TokenType type = binary.operator.getType();
+		Expr left = binary.left;
+		Expr right = binary.right;
+		if (type == TokenType.AND || type == TokenType.OR) {
+			if (left instanceof Expr.Literal) {
+				boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+				return truthy == (type == TokenType.AND) ? right : left;
+			}
+		} else if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+			Expr folded = fold(type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+			if (folded != null) return folded;
+		} else if (isNumber(left) && isNeutral(type, right, false)) {
+			return left;
+		} else if (isNumber(right) && isNeutral(type, left, true)) {
+			return right;
+		}
+		return binary;
+	}
+
+	private static Expr fold(TokenType type, Object left, Object right) {
+		switch (type) {
+			case EQUAL_EQUAL:
+				return new Expr.Literal(Interpreter.isEqual(left, right));
+			case BANG_EQUAL:
+				return new Expr.Literal(!Interpreter.isEqual(left, right));
+			case PLUS:
+				if (left instanceof String && right instanceof String) {
+					return new Expr.Literal((String) left + right);
+				}
+				break;
+		}
+		if (!(left instanceof Double) || !(right instanceof Double)) return null;
+
+		double a = (Double) left;
+		double b = (Double) right;
+		switch (type) {
+			case PLUS:
+				return new Expr.Literal(a + b);
+			case MINUS:
+				return new Expr.Literal(a - b);
+			case STAR:
+				return new Expr.Literal(a * b);
+			case SLASH:
+				return new Expr.Literal(a / b);
+			case GREATER:
+				return new Expr.Literal(a > b);
+			case GREATER_EQUAL:
+				return new Expr.Literal(a >= b);
+			case LESS:
+				return new Expr.Literal(a < b);
+			case LESS_EQUAL:
+				return new Expr.Literal(a <= b);
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Whether {@code expr} is known to evaluate to a number. Only then can
+	 * {@code x * 1} become {@code x}, otherwise the type error would be lost.
+	 */
+	private static boolean isNumber(Expr expr) {
+		if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+		if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.getType() == TokenType.MINUS;
+		if (!(expr instanceof Expr.Binary)) return false;
+
+		Expr.Binary binary = (Expr.Binary) expr;
+		switch (binary.operator.getType()) {
+			case MINUS:
+			case STAR:
+			case SLASH:
+				return true;
+			case PLUS:
+				return isNumber(binary.left) && isNumber(binary.right);
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Whether {@code operand} leaves the other operand unchanged: x + -0, x - 0,
+	 * x * 1, x / 1 and, on the left, -0 + x and 1 * x.
+	 */
+	private static boolean isNeutral(TokenType type, Expr operand, boolean onLeft) {
+		if (!(operand instanceof Expr.Literal) || !(((Expr.Literal) operand).value instanceof Double)) return false;
+		double value = (Double) ((Expr.Literal) operand).value;
+		switch (type) {
+			case PLUS:
+				// -0 + 0 is 0, only -0 keeps every number as it is
+				return Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(-0.0);
+			case MINUS:
+				return !onLeft && Double.doubleToRawLongBits(value) == 0;
+			case STAR:
+				return value == 1;
+			case SLASH:
+				return !onLeft && value == 1;
+			default:
+				return false;
+		}
+	}
+
+	@Override
+	public Expr visitUnary(Expr.Unary expr) {
+		Expr result = super.visitUnary(expr);
+		if (!(result instanceof Expr.Unary)) return result;
+
+		Expr.Unary unary = (Expr.Unary) result;
+		Expr operand = unary.expr;
+		TokenType type = unary.operator.getType();
+		if (operand instanceof Expr.Literal) {
+			Object value = ((Expr.Literal) operand).value;
+			if (type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+			if (value instanceof Double) return new Expr.Literal(-(Double) value);
+		}
+		// --x is x for numbers
+		if (type == TokenType.MINUS && operand instanceof Expr.Unary) {
+			Expr.Unary inner = (Expr.Unary) operand;
+			if (inner.operator.getType() == TokenType.MINUS && isNumber(inner.expr)) return inner.expr;
+		}
+		return unary;
+	}
+
+	@Override
+	public Expr visitVariable(Expr.Variable expr) {
+		Slot slot = origin(expr.slot);
+		Expr.Literal constant = slot == null ? null : constants.get(slot);
+		return constant != null ? constant : expr;
+	}
+
+	@Override
+	public Expr visitGrouping(Expr.Grouping expr) {
+		return rewrite(expr.expr);
+	}
+
+	@Override
+	public Stmt visitVar(Stmt.Var stmt) {
+		Stmt result = super.visitVar(stmt);
+		Expr initializer = ((Stmt.Var) result).initializer;
+		Slot slot = stmt.slot;
+		if (slot != null && initializer instanceof Expr.Literal && !assigned.contains(slot)) {
+			constants.put(slot, (Expr.Literal) initializer);
+		}
+		return result;
+	}
+
+	@Override
+	public Stmt visitFunDecl(Stmt.FunDecl stmt) {
+		if (LazyBody.isPending(stmt)) {
+			((LazyBody) stmt.body).then(body -> {
+				Optimizer optimizer = new Optimizer();
+				optimizer.new AssignmentCollector().body(stmt.layout, body);
+				return optimizer.body(stmt.layout, body);
+			});
+			return stmt;
+		}
+		return super.visitFunDecl(stmt);
+	}
+
+	@Override
+	public Stmt visitIf(Stmt.If stmt) {
+		Expr cond = rewrite(stmt.cond);
+		if (cond instanceof Expr.Literal) {
+			Stmt branch = Interpreter.isTruthy(((Expr.Literal) cond).value) ? stmt.thenBranch : stmt.elseBranch;
+			return branch == null ? nothing() : rewrite(branch);
+		}
+
+		Stmt thenBranch = rewrite(stmt.thenBranch);
+		Stmt elseBranch = rewrite(stmt.elseBranch);
+		if (cond == stmt.cond && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+		return new Stmt.If(cond, thenBranch, elseBranch);
+	}
+
+	@Override
+	public Stmt visitWhile(Stmt.While stmt) {
+		Expr cond = rewrite(stmt.cond);
+		if (cond instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) cond).value)) {
+			return nothing();
+		}
+
+		Stmt body = rewrite(stmt.body);
+		if (cond == stmt.cond && body == stmt.body) return stmt;
+		return new Stmt.While(cond, body);
+	}
+
+	/**
+	 * Finds the local variables that are assigned somewhere, these are not
+	 * constant even if their initializer is.
+	 */
+	private class AssignmentCollector extends Rewriter {
+
+		@Override
+		public Expr visitBinary(Expr.Binary expr) {
+			if (expr.operator.getType() == TokenType.EQUAL) {
+				Slot slot = origin(((Expr.Variable) expr.left).slot);
+				if (slot != null) assigned.add(slot);
+			}
+			return super.visitBinary(expr);
+		}
+	}
+}
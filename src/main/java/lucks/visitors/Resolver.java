@@ -1,16 +1,23 @@
 package lucks.visitors;
 
 import lucks.Expr;
+import lucks.FrameLayout;
+import lucks.LazyBody;
 import lucks.Lox;
+import lucks.Slot;
 import lucks.Stmt;
+import lucks.SymbolMap;
+import lucks.Symbols;
 import lucks.Token;
+import lucks.TokenType;
 
 import java.util.*;
 
 public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
-	private final ArrayDeque<Map<String, Boolean>> scopes = new ArrayDeque<>();
 	private final Interpreter interpreter;
+	// the program itself is the outermost function, its blocks get a frame too
+	private FunctionScope function = new FunctionScope(null);
 	private FunctionType enclosingFunction = FunctionType.NONE;
 	private ClassType enclosingClass = ClassType.NONE;
 
@@ -39,22 +46,40 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 	@Override
 	public Void visitVariable(Expr.Variable expr) {
 		Token name = expr.name;
-		if (!scopes.isEmpty() && scopes.peekLast().get(name.getLexeme()) == Boolean.FALSE) {
-			Lox.error(name, "Variable declared, but not defined.");
+		if (!function.scopes.isEmpty()) {
+			Local local = function.scopes.peekLast().get(name.getSymbol());
+			if (local != null && !local.defined) {
+				Lox.error(name, "Variable declared, but not defined.");
+			}
 		}
 
-		resolveLocal(name);
+		expr.slot = resolveLocal(name);
 		return null;
 	}
 
-	private void resolveLocal(Token name) {
-		Iterator<Map<String, Boolean>> iterator = scopes.descendingIterator();
-		for (int cnt = 0; iterator.hasNext(); cnt++) {
-			if (iterator.next().containsKey(name.getLexeme())) {
-				interpreter.resolve(name, cnt);
-				return;
+	/**
+	 * The slot of a local variable, null for globals.
+	 */
+	private Slot resolveLocal(Token name) {
+		return lookup(function, name.getSymbol());
+	}
+
+	/**
+	 * Finds a variable in the scopes of {@code scope}, or else in the enclosing
+	 * functions, in which case it is captured. Returns null for globals.
+	 */
+	private Slot lookup(FunctionScope scope, int name) {
+		Iterator<SymbolMap<Local>> iterator = scope.scopes.descendingIterator();
+		while (iterator.hasNext()) {
+			Local local = iterator.next().get(name);
+			if (local != null) {
+				return local.slot;
 			}
 		}
+
+		if (scope.enclosing == null) return null;
+		Slot outer = lookup(scope.enclosing, name);
+		return outer != null ? scope.capture(outer) : null;
 	}
 
 	@Override
@@ -85,7 +110,7 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 		if (enclosingClass == ClassType.NONE) {
 			Lox.error(expr.keyword, "this is only allowed in methods");
 		}
-		resolveLocal(expr.keyword);
+		expr.slot = resolveLocal(expr.keyword);
 		return null;
 	}
 
@@ -97,10 +122,16 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 		if (enclosingClass == ClassType.CLASS) {
 			Lox.error(expr.zuper, "Cannot use 'super' in a class with no superclass.");
 		}
-		resolveLocal(expr.zuper);
+		expr.slot = resolveLocal(expr.zuper);
+		expr.receiver = lookup(function, Symbols.THIS);
 		return null;
 	}
 
+	@Override
+	public Void visitInline(Expr.Inline expr) {
+		throw new AssertionError("calls are inlined after resolution");
+	}
+
 	@Override
 	public Void visitExpression(Stmt.Expression stmt) {
 		resolve(stmt.expression);
@@ -128,6 +159,7 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 			resolve(stmt.initializer);
 		}
 		define(stmt.name);
+		stmt.slot = resolveLocal(stmt.name);
 		return null;
 	}
 
@@ -135,28 +167,73 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 	public Void visitFunDecl(Stmt.FunDecl stmt) {
 		declare(stmt.name);
 		define(stmt.name);
+		stmt.slot = resolveLocal(stmt.name);
 
-		resolveFunction(stmt, FunctionType.FUNCTION);
+		if (LazyBody.isUnparsed(stmt)) {
+			resolveLater(stmt, FunctionType.FUNCTION, null);
+		} else {
+			resolveFunction(stmt, FunctionType.FUNCTION);
+		}
 
 		return null;
 	}
 
+	/**
+	 * Leaves a body that is not parsed yet to be resolved on the first call;
+	 * bodies parsed up front in strict mode are resolved right away. Only
+	 * functions at the top of the program have such bodies; the one variable
+	 * they can capture is the "super" of their class, which is captured up
+	 * front.
+	 */
+	private void resolveLater(Stmt.FunDecl stmt, FunctionType functionType, Slot superSlot) {
+		ClassType classType = enclosingClass;
+		Slot[] captures = new Slot[0];
+		if (superSlot != null) {
+			superSlot.markCaptured();
+			captures = new Slot[] {superSlot};
+		}
+		stmt.layout = new FrameLayout(0, new Slot[0], captures);
+
+		((LazyBody) stmt.body).then(body -> {
+			Resolver resolver = new Resolver(interpreter);
+			resolver.enclosingClass = classType;
+			if (superSlot != null) {
+				resolver.enterScope();
+				Local zuper = new Local(superSlot);
+				zuper.defined = true;
+				resolver.function.scopes.peekLast().put(Symbols.SUPER, zuper);
+			}
+			resolver.resolveFunction(stmt, functionType);
+			return body;
+		});
+	}
+
 	private void resolveFunction(Stmt.FunDecl stmt, FunctionType functionType) {
 		FunctionType parent = this.enclosingFunction;
+		FunctionScope enclosingScope = this.function;
 		try {
 			enclosingFunction = functionType;
+			function = new FunctionScope(enclosingScope);
 
 			enterScope();
+			List<Slot> parameters = new ArrayList<>();
+			// methods get their instance in the first slot, ahead of the parameters
+			if (functionType == FunctionType.METHOD || functionType == FunctionType.INITIALIZER) {
+				parameters.add(defineImplicit(Symbols.THIS));
+			}
 			for (Token parameter : stmt.parameters) {
 				declare(parameter);
 				define(parameter);
+				parameters.add(function.scopes.peekLast().get(parameter.getSymbol()).slot);
 			}
 
-			resolveBlock(stmt.body);
+			resolveBlock(LazyBody.parsed(stmt));
 			exitScope();
 
+			stmt.layout = function.layout(parameters);
 		} finally {
 			enclosingFunction = parent;
+			function = enclosingScope;
 		}
 	}
 
@@ -170,10 +247,25 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 				Lox.error(stmt.keyword, "Cannot return a value from a constructor.");
 			}
 			resolve(stmt.value);
+			stmt.isTailCall = isTailCall(stmt.value);
 		}
 		return null;
 	}
 
+	/**
+	 * Whether returning {@code value} can be left to the returning function:
+	 * calls of functions, and of methods by name, {@code object.name(...)}.
+	 */
+	static boolean isTailCall(Expr value) {
+		if (value instanceof Expr.Binary) {
+			Expr.Binary binary = (Expr.Binary) value;
+			return binary.operator.getType() == TokenType.DOT && binary.right instanceof Expr.Call &&
+							((Expr.Call) binary.right).callee instanceof Expr.Variable;
+		}
+		// super calls need the receiver, they are left to the regular call path
+		return value instanceof Expr.Call && !(((Expr.Call) value).callee instanceof Expr.Super);
+	}
+
 	@Override
 	public Void visitIf(Stmt.If stmt) {
 		resolve(stmt.cond);
@@ -196,30 +288,43 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 	public Void visitClass(Stmt.Class stmt) {
 		declare(stmt.name);
 		define(stmt.name);
+		// the interpreter assigns the class once its methods are created
+		stmt.slot = resolveLocal(stmt.name);
 
 		Token superClass = stmt.superClass;
 		if (superClass != null) {
-			resolveLocal(superClass);
-			enterScope().put("super", true);
+			stmt.superClassSlot = resolveLocal(superClass);
+			enterScope();
+			stmt.superSlot = defineImplicit(Symbols.SUPER);
 		}
 
-		enterScope().put("this", true);
-
 		ClassType parent = this.enclosingClass;
 		this.enclosingClass = superClass != null ? ClassType.SUBCLASS : ClassType.CLASS;
 		for (Stmt.FunDecl method : stmt.methods) {
-			boolean isConstructor = method.name.getLexeme().equals("init");
-			resolveFunction(method, isConstructor ? FunctionType.INITIALIZER : FunctionType.METHOD);
+			boolean isConstructor = method.name.getSymbol() == Symbols.INIT;
+			FunctionType type = isConstructor ? FunctionType.INITIALIZER : FunctionType.METHOD;
+			if (LazyBody.isUnparsed(method)) {
+				resolveLater(method, type, stmt.superSlot);
+			} else {
+				resolveFunction(method, type);
+			}
 		}
 		this.enclosingClass = parent;
 
-		exitScope();
-
 		if (superClass != null) exitScope();
 
 		return null;
 	}
 
+	/**
+	 * Resolves a whole program, which declares the globals and runs in a frame
+	 * of its own for the locals of its blocks.
+	 */
+	public void resolve(List<Stmt> program) {
+		resolveBlock(program);
+		interpreter.resolveScript(function.layout(Collections.emptyList()));
+	}
+
 	public void resolveBlock(List<Stmt> stmts) {
 		for (Stmt stmt : stmts) {
 			resolve(stmt);
@@ -234,29 +339,88 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 		expr.accept(this);
 	}
 
-	private HashMap<String, Boolean> enterScope() {
-		HashMap<String, Boolean> scope = new HashMap<>();
-		scopes.addLast(scope);
-		return scope;
+	private void enterScope() {
+		function.scopes.addLast(new SymbolMap<>());
 	}
 
 	private void exitScope() {
-		scopes.removeLast();
+		SymbolMap<Local> scope = function.scopes.removeLast();
+		// the slots of the scope are free for the next one
+		function.size -= scope.size();
 	}
 
 	private void declare(Token name) {
-		if (!scopes.isEmpty()) {
-			Map<String, Boolean> current = scopes.peekLast();
-			if (current.containsKey(name.getLexeme())) {
+		if (!function.scopes.isEmpty()) {
+			SymbolMap<Local> current = function.scopes.peekLast();
+			if (current.containsKey(name.getSymbol())) {
 				Lox.error(name, "Variable already declared in scope.");
+				return;
 			}
-			current.put(name.getLexeme(), false);
+			current.put(name.getSymbol(), new Local(function.allocate()));
 		}
 	}
 
 	private void define(Token name) {
-		if (!scopes.isEmpty()) {
-			scopes.peekLast().put(name.getLexeme(), true);
+		if (!function.scopes.isEmpty()) {
+			function.scopes.peekLast().get(name.getSymbol()).defined = true;
+		}
+	}
+
+	private Slot defineImplicit(int name) {
+		Local local = new Local(function.allocate());
+		local.defined = true;
+		function.scopes.peekLast().put(name, local);
+		return local.slot;
+	}
+
+	/**
+	 * A local variable of a scope.
+	 */
+	private static class Local {
+		final Slot slot;
+		boolean defined;
+
+		Local(Slot slot) {
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * The scopes of the function being resolved. Its locals get consecutive
+	 * slots in the function's frame, which are reused once their scope ends.
+	 */
+	private static class FunctionScope {
+		final FunctionScope enclosing;
+		final ArrayDeque<SymbolMap<Local>> scopes = new ArrayDeque<>();
+		// variables of enclosing functions, in the order of their upvalues
+		final List<Slot> captures = new ArrayList<>();
+		final Map<Slot, Slot> upvalues = new HashMap<>();
+		int size;
+		int maxSize;
+
+		FunctionScope(FunctionScope enclosing) {
+			this.enclosing = enclosing;
+		}
+
+		Slot allocate() {
+			Slot slot = new Slot(Slot.Kind.LOCAL, size++);
+			maxSize = Math.max(maxSize, size);
+			return slot;
+		}
+
+		Slot capture(Slot outer) {
+			Slot upvalue = upvalues.get(outer);
+			if (upvalue == null) {
+				outer.markCaptured();
+				upvalue = new Slot(Slot.Kind.UPVALUE, captures.size());
+				captures.add(outer);
+				upvalues.put(outer, upvalue);
+			}
+			return upvalue;
+		}
+
+		FrameLayout layout(List<Slot> parameters) {
+			return new FrameLayout(maxSize, parameters.toArray(new Slot[0]), captures.toArray(new Slot[0]));
 		}
 	}
 
@@ -0,0 +1,252 @@
+package lucks.visitors;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import lucks.Expr;
+import lucks.FrameLayout;
+import lucks.LazyBody;
+import lucks.Slot;
+import lucks.Stmt;
+import lucks.TokenType;
+
+/**
+ * Base of the passes transforming a resolved program. By default every node is
+ * visited and kept; a node is only rebuilt when one of its children was
+ * replaced, and then it gets the resolved fields of the old node. Subclasses
+ * override the visits of the nodes they change. A pass that changes nothing can
+ * be used to walk the tree. Bodies that are not parsed yet are skipped.
+ */
+public abstract class Rewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+	// layouts of the functions around the current node, innermost first
+	private final Deque<FrameLayout> functions = new ArrayDeque<>();
+
+	protected Expr rewrite(Expr expr) {
+		return expr == null ? null : expr.accept(this);
+	}
+
+	protected Stmt rewrite(Stmt stmt) {
+		return stmt == null ? null : stmt.accept(this);
+	}
+
+	/**
+	 * Rewrites a statement list, returning the list itself if nothing changed.
+	 */
+	protected List<Stmt> statements(List<Stmt> stmts) {
+		List<Stmt> result = new ArrayList<>(stmts.size());
+		boolean changed = false;
+		for (Stmt stmt : stmts) {
+			Stmt rewritten = rewrite(stmt);
+			changed |= rewritten != stmt;
+			result.add(rewritten);
+		}
+		return changed ? result : stmts;
+	}
+
+	protected List<Expr> expressions(List<Expr> exprs) {
+		List<Expr> result = new ArrayList<>(exprs.size());
+		boolean changed = false;
+		for (Expr expr : exprs) {
+			Expr rewritten = rewrite(expr);
+			changed |= rewritten != expr;
+			result.add(rewritten);
+		}
+		return changed ? result : exprs;
+	}
+
+	/**
+	 * The slot declaring the local variable {@code slot} refers to. Inside a
+	 * closure a variable of an enclosing function has a slot of its own, which
+	 * is followed through the captures to the function declaring it.
+	 */
+	protected Slot origin(Slot slot) {
+		Iterator<FrameLayout> enclosing = functions.iterator();
+		while (slot != null && slot.kind == Slot.Kind.UPVALUE) {
+			slot = enclosing.next().captures[slot.index];
+		}
+		return slot;
+	}
+
+	@Override
+	public Expr visitBinary(Expr.Binary expr) {
+		TokenType type = expr.operator.getType();
+		Expr left = type == TokenType.EQUAL ? expr.left : rewrite(expr.left);
+		// the right side of a dot names a field or method, its arguments are expressions
+		Expr right = type == TokenType.DOT ? member(expr.right) : rewrite(expr.right);
+		if (left == expr.left && right == expr.right) return expr;
+		return new Expr.Binary(left, expr.operator, right);
+	}
+
+	private Expr member(Expr expr) {
+		return expr instanceof Expr.Call ? arguments((Expr.Call) expr) : expr;
+	}
+
+	/**
+	 * The call with its arguments rewritten, the callee is kept.
+	 */
+	protected Expr.Call arguments(Expr.Call call) {
+		List<Expr> arguments = expressions(call.arguments);
+		if (arguments == call.arguments) return call;
+		return new Expr.Call(call.callee, call.paren, arguments);
+	}
+
+	@Override
+	public Expr visitUnary(Expr.Unary expr) {
+		Expr operand = rewrite(expr.expr);
+		if (operand == expr.expr) return expr;
+		return new Expr.Unary(expr.operator, operand);
+	}
+
+	@Override
+	public Expr visitLiteral(Expr.Literal expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitVariable(Expr.Variable expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitGrouping(Expr.Grouping expr) {
+		Expr inner = rewrite(expr.expr);
+		if (inner == expr.expr) return expr;
+		return new Expr.Grouping(inner);
+	}
+
+	@Override
+	public Expr visitCall(Expr.Call expr) {
+		Expr callee = rewrite(expr.callee);
+		List<Expr> arguments = expressions(expr.arguments);
+		if (callee == expr.callee && arguments == expr.arguments) return expr;
+		return new Expr.Call(callee, expr.paren, arguments);
+	}
+
+	@Override
+	public Expr visitSet(Expr.Set expr) {
+		Expr object = rewrite(expr.object);
+		Expr value = rewrite(expr.value);
+		if (object == expr.object && value == expr.value) return expr;
+		return new Expr.Set(object, expr.name, value);
+	}
+
+	@Override
+	public Expr visitThis(Expr.This expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitSuper(Expr.Super expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitInline(Expr.Inline expr) {
+		Expr.Call call = arguments(expr.call);
+		Expr body = rewrite(expr.body);
+		if (call == expr.call && body == expr.body) return expr;
+		return new Expr.Inline(call, expr.function, expr.parameters, body);
+	}
+
+	@Override
+	public Stmt visitExpression(Stmt.Expression stmt) {
+		Expr expression = rewrite(stmt.expression);
+		if (expression == stmt.expression) return stmt;
+		return new Stmt.Expression(expression);
+	}
+
+	@Override
+	public Stmt visitPrint(Stmt.Print stmt) {
+		Expr expression = rewrite(stmt.expression);
+		if (expression == stmt.expression) return stmt;
+		return new Stmt.Print(expression);
+	}
+
+	@Override
+	public Stmt visitBlock(Stmt.Block stmt) {
+		List<Stmt> stmts = statements(stmt.stmts);
+		if (stmts == stmt.stmts) return stmt;
+		return new Stmt.Block(stmts);
+	}
+
+	@Override
+	public Stmt visitVar(Stmt.Var stmt) {
+		Expr initializer = rewrite(stmt.initializer);
+		if (initializer == stmt.initializer) return stmt;
+
+		Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+		var.slot = stmt.slot;
+		return var;
+	}
+
+	/**
+	 * Rewrites the statements of a function body with the given layout.
+	 */
+	protected List<Stmt> body(FrameLayout layout, List<Stmt> stmts) {
+		functions.push(layout);
+		List<Stmt> body = statements(stmts);
+		functions.pop();
+		return body;
+	}
+
+	@Override
+	public Stmt visitFunDecl(Stmt.FunDecl stmt) {
+		if (LazyBody.isPending(stmt)) return stmt;
+		List<Stmt> body = body(stmt.layout, stmt.body);
+		if (body == stmt.body) return stmt;
+
+		Stmt.FunDecl fun = new Stmt.FunDecl(stmt.name, stmt.parameters, body);
+		fun.slot = stmt.slot;
+		fun.layout = stmt.layout;
+		return fun;
+	}
+
+	@Override
+	public Stmt visitReturn(Stmt.Return stmt) {
+		Expr value = rewrite(stmt.value);
+		if (value == stmt.value) return stmt;
+
+		Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+		result.isTailCall = stmt.isTailCall && Resolver.isTailCall(value);
+		return result;
+	}
+
+	@Override
+	public Stmt visitIf(Stmt.If stmt) {
+		Expr cond = rewrite(stmt.cond);
+		Stmt thenBranch = rewrite(stmt.thenBranch);
+		Stmt elseBranch = rewrite(stmt.elseBranch);
+		if (cond == stmt.cond && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+		return new Stmt.If(cond, thenBranch, elseBranch);
+	}
+
+	@Override
+	public Stmt visitWhile(Stmt.While stmt) {
+		Expr cond = rewrite(stmt.cond);
+		Stmt body = rewrite(stmt.body);
+		if (cond == stmt.cond && body == stmt.body) return stmt;
+		return new Stmt.While(cond, body);
+	}
+
+	@Override
+	public Stmt visitClass(Stmt.Class stmt) {
+		List<Stmt.FunDecl> methods = new ArrayList<>(stmt.methods.size());
+		boolean changed = false;
+		for (Stmt.FunDecl method : stmt.methods) {
+			Stmt.FunDecl rewritten = (Stmt.FunDecl) rewrite(method);
+			changed |= rewritten != method;
+			methods.add(rewritten);
+		}
+		if (!changed) return stmt;
+
+		Stmt.Class result = new Stmt.Class(stmt.name, stmt.superClass, methods);
+		result.slot = stmt.slot;
+		result.superClassSlot = stmt.superClassSlot;
+		result.superSlot = stmt.superSlot;
+		return result;
+	}
+}
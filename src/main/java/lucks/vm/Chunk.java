@@ -0,0 +1,122 @@
+package lucks.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bytecode of a single function together with its constant pool and a line
+ * table holding the source line of every byte.
+ */
+public class Chunk {
+
+	private byte[] code = new byte[32];
+	private int[] lines = new int[32];
+	private int count;
+	private Object[] constants = new Object[8];
+	private int constantCount;
+	private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+	public void write(int b, int line) {
+		if (count == code.length) {
+			code = Arrays.copyOf(code, count * 2);
+			lines = Arrays.copyOf(lines, count * 2);
+		}
+		code[count] = (byte) b;
+		lines[count] = line;
+		count++;
+	}
+
+	public void patch(int offset, int b) {
+		code[offset] = (byte) b;
+	}
+
+	/**
+	 * @return the index of the constant, equal numbers and strings share one entry
+	 */
+	public int addConstant(Object value) {
+		Integer index = constantIndex.get(value);
+		if (index != null) return index;
+
+		if (constantCount == constants.length) {
+			constants = Arrays.copyOf(constants, constantCount * 2);
+		}
+		constants[constantCount] = value;
+		constantIndex.put(value, constantCount);
+		return constantCount++;
+	}
+
+	public int count() {
+		return count;
+	}
+
+	public byte[] getCode() {
+		return code;
+	}
+
+	public Object[] getConstants() {
+		return constants;
+	}
+
+	public int getLine(int offset) {
+		return lines[offset];
+	}
+
+	public String disassemble(String name) {
+		StringBuilder sb = new StringBuilder(String.format("== %s ==%n", name));
+		for (int offset = 0; offset < count; ) {
+			byte op = code[offset];
+			sb.append(String.format("%04d %4d %-20s", offset, lines[offset], OpCode.name(op)));
+			int operands = operandBytes(op, offset);
+			for (int i = 1; i <= operands; i++) {
+				sb.append(' ').append(code[offset + i] & 0xff);
+			}
+			sb.append(System.lineSeparator());
+			offset += 1 + operands;
+		}
+		for (int i = 0; i < constantCount; i++) {
+			if (constants[i] instanceof CompiledFunction) {
+				CompiledFunction function = (CompiledFunction) constants[i];
+				sb.append(function.chunk.disassemble(function.toString()));
+			}
+		}
+		return sb.toString();
+	}
+
+	private int operandBytes(byte op, int offset) {
+		switch (op) {
+			case OpCode.GET_LOCAL:
+			case OpCode.SET_LOCAL:
+			case OpCode.GET_UPVALUE:
+			case OpCode.SET_UPVALUE:
+			case OpCode.CALL:
+			case OpCode.TAIL_CALL:
+				return 1;
+			case OpCode.CONSTANT:
+			case OpCode.GET_GLOBAL:
+			case OpCode.DEFINE_GLOBAL:
+			case OpCode.SET_GLOBAL:
+			case OpCode.GET_PROPERTY:
+			case OpCode.SET_PROPERTY:
+			case OpCode.GET_SUPER:
+			case OpCode.JUMP:
+			case OpCode.JUMP_IF_FALSE:
+			case OpCode.JUMP_IF_FALSE_OR_POP:
+			case OpCode.JUMP_IF_TRUE_OR_POP:
+			case OpCode.LOOP:
+			case OpCode.CLASS:
+			case OpCode.METHOD:
+				return 2;
+			case OpCode.INVOKE:
+			case OpCode.SUPER_INVOKE:
+			case OpCode.TAIL_INVOKE:
+				return 3;
+			case OpCode.CLOSURE:
+				int index = ((code[offset + 1] & 0xff) << 8) | (code[offset + 2] & 0xff);
+				CompiledFunction function = (CompiledFunction) constants[index];
+				return 2 + 2 * function.upvalueCount;
+			default:
+				return 0;
+		}
+	}
+}
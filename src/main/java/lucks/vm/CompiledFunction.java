@@ -0,0 +1,27 @@
+package lucks.vm;
+
+/**
+ * The compiled form of a function declaration (or of the top level script),
+ * shared by all closures created from it.
+ */
+public class CompiledFunction {
+
+	final String name;
+	final int arity;
+	final Chunk chunk = new Chunk();
+	int upvalueCount;
+
+	CompiledFunction(String name, int arity) {
+		this.name = name;
+		this.arity = arity;
+	}
+
+	public Chunk getChunk() {
+		return chunk;
+	}
+
+	@Override
+	public String toString() {
+		return name == null ? "<script>" : String.format("<fun %s>", name);
+	}
+}
@@ -0,0 +1,589 @@
+package lucks.vm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lucks.Expr;
+import lucks.Lox;
+import lucks.Stmt;
+import lucks.Token;
+import lucks.TokenType;
+
+/**
+ * Compiles a resolved program into bytecode for the {@link VM}. Locals live in
+ * stack slots of their function's frame, variables captured by inner functions
+ * are accessed through upvalues and everything at the top level is a global.
+ */
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+	private static final int MAX_LOCALS = 256;
+	private static final int MAX_UPVALUES = 256;
+	private static final int MAX_CONSTANTS = 0xffff;
+
+	private FunctionState current;
+	private final Map<String, GlobalRef> globals = new HashMap<>();
+	private int line = 1;
+
+	public CompiledFunction compile(List<Stmt> stmts) {
+		current = new FunctionState(null, new CompiledFunction(null, 0), FunctionType.SCRIPT);
+		for (Stmt stmt : stmts) {
+			compile(stmt);
+		}
+		emitReturn();
+		return current.function;
+	}
+
+	@Override
+	public Void visitBinary(Expr.Binary expr) {
+		TokenType opType = expr.operator.getType();
+		switch (opType) {
+			case AND:
+			case OR: {
+				compile(expr.left);
+				line = expr.operator.getLine();
+				int jump = emitJump(opType == TokenType.AND ? OpCode.JUMP_IF_FALSE_OR_POP : OpCode.JUMP_IF_TRUE_OR_POP);
+				compile(expr.right);
+				patchJump(jump);
+				return null;
+			}
+			case EQUAL:
+				compile(expr.right);
+				line = expr.operator.getLine();
+				namedVariable(((Expr.Variable) expr.left).name.getLexeme(), true);
+				return null;
+			case DOT:
+				compileProperty(expr);
+				return null;
+		}
+
+		compile(expr.left);
+		compile(expr.right);
+		line = expr.operator.getLine();
+		switch (opType) {
+			case PLUS: emit(OpCode.ADD); break;
+			case MINUS: emit(OpCode.SUBTRACT); break;
+			case STAR: emit(OpCode.MULTIPLY); break;
+			case SLASH: emit(OpCode.DIVIDE); break;
+			case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+			case BANG_EQUAL: emit(OpCode.EQUAL); emit(OpCode.NOT); break;
+			case GREATER: emit(OpCode.GREATER); break;
+			case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+			case LESS: emit(OpCode.LESS); break;
+			case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+			default:
+				throw new AssertionError(opType);
+		}
+		return null;
+	}
+
+	private void compileProperty(Expr.Binary expr) {
+		if (expr.right instanceof Expr.Variable) {
+			compile(expr.left);
+			line = expr.operator.getLine();
+			emitWithConstant(OpCode.GET_PROPERTY, new PropertyReadCache(((Expr.Variable) expr.right).name));
+			return;
+		}
+
+		// obj.name(a)(b) parses as obj . ((name(a))(b)), the innermost call is the invocation
+		Deque<Expr.Call> calls = new ArrayDeque<>();
+		Expr callee = expr.right;
+		while (callee instanceof Expr.Call) {
+			calls.push((Expr.Call) callee);
+			callee = ((Expr.Call) callee).callee;
+		}
+		if (calls.isEmpty() || !(callee instanceof Expr.Variable)) {
+			Lox.error(expr.operator, "Only names can be fields.");
+			return;
+		}
+
+		compile(expr.left);
+		Expr.Call invocation = calls.pop();
+		compileArguments(invocation);
+		line = invocation.paren.getLine();
+		emitWithConstant(OpCode.INVOKE, new PropertyReadCache(((Expr.Variable) callee).name));
+		emit(invocation.arguments.size());
+
+		while (!calls.isEmpty()) {
+			Expr.Call call = calls.pop();
+			compileArguments(call);
+			line = call.paren.getLine();
+			emit(OpCode.CALL);
+			emit(call.arguments.size());
+		}
+	}
+
+	@Override
+	public Void visitUnary(Expr.Unary expr) {
+		compile(expr.expr);
+		line = expr.operator.getLine();
+		switch (expr.operator.getType()) {
+			case MINUS: emit(OpCode.NEGATE); break;
+			case BANG: emit(OpCode.NOT); break;
+			default:
+				throw new AssertionError(expr.operator.getType());
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitLiteral(Expr.Literal expr) {
+		if (expr.value == null) {
+			emit(OpCode.NIL);
+		} else if (expr.value instanceof Boolean) {
+			emit((Boolean) expr.value ? OpCode.TRUE : OpCode.FALSE);
+		} else {
+			emitWithConstant(OpCode.CONSTANT, expr.value);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitVariable(Expr.Variable expr) {
+		line = expr.name.getLine();
+		namedVariable(expr.name.getLexeme(), false);
+		return null;
+	}
+
+	@Override
+	public Void visitGrouping(Expr.Grouping expr) {
+		compile(expr.expr);
+		return null;
+	}
+
+	@Override
+	public Void visitCall(Expr.Call expr) {
+		if (expr.callee instanceof Expr.Super) {
+			Expr.Super zuper = (Expr.Super) expr.callee;
+			line = zuper.zuper.getLine();
+			namedVariable("this", false);
+			compileArguments(expr);
+			line = expr.paren.getLine();
+			namedVariable("super", false);
+			emitWithConstant(OpCode.SUPER_INVOKE, new Property(zuper.name));
+			emit(expr.arguments.size());
+			return null;
+		}
+
+		compile(expr.callee);
+		compileArguments(expr);
+		line = expr.paren.getLine();
+		emit(OpCode.CALL);
+		emit(expr.arguments.size());
+		return null;
+	}
+
+	private void compileArguments(Expr.Call expr) {
+		for (Expr argument : expr.arguments) {
+			compile(argument);
+		}
+	}
+
+	@Override
+	public Void visitSet(Expr.Set expr) {
+		compile(expr.object);
+		compile(expr.value);
+		line = expr.name.getLine();
+		emitWithConstant(OpCode.SET_PROPERTY, new PropertyWriteCache(expr.name));
+		return null;
+	}
+
+	@Override
+	public Void visitThis(Expr.This expr) {
+		line = expr.keyword.getLine();
+		namedVariable("this", false);
+		return null;
+	}
+
+	@Override
+	public Void visitSuper(Expr.Super expr) {
+		line = expr.zuper.getLine();
+		namedVariable("this", false);
+		namedVariable("super", false);
+		emitWithConstant(OpCode.GET_SUPER, new Property(expr.name));
+		return null;
+	}
+
+	@Override
+	public Void visitInline(Expr.Inline expr) {
+		// the parameter slots belong to the interpreter's frames, the VM makes the call
+		return expr.call.accept(this);
+	}
+
+	@Override
+	public Void visitExpression(Stmt.Expression stmt) {
+		compile(stmt.expression);
+		emit(OpCode.POP);
+		return null;
+	}
+
+	@Override
+	public Void visitPrint(Stmt.Print stmt) {
+		compile(stmt.expression);
+		emit(OpCode.PRINT);
+		return null;
+	}
+
+	@Override
+	public Void visitBlock(Stmt.Block stmt) {
+		beginScope();
+		for (Stmt child : stmt.stmts) {
+			compile(child);
+		}
+		endScope();
+		return null;
+	}
+
+	@Override
+	public Void visitVar(Stmt.Var stmt) {
+		if (stmt.initializer != null) {
+			compile(stmt.initializer);
+		} else {
+			emit(OpCode.NIL);
+		}
+		line = stmt.name.getLine();
+		defineVariable(stmt.name);
+		return null;
+	}
+
+	@Override
+	public Void visitFunDecl(Stmt.FunDecl stmt) {
+		line = stmt.name.getLine();
+		if (current.scopeDepth > 0) {
+			// declared before the body is compiled, so the function can call itself
+			addLocal(stmt.name);
+			compileFunction(stmt, FunctionType.FUNCTION);
+		} else {
+			compileFunction(stmt, FunctionType.FUNCTION);
+			emitWithConstant(OpCode.DEFINE_GLOBAL, global(stmt.name.getLexeme()));
+		}
+		return null;
+	}
+
+	private void compileFunction(Stmt.FunDecl stmt, FunctionType type) {
+		FunctionState state = new FunctionState(
+						current, new CompiledFunction(stmt.name.getLexeme(), stmt.parameters.size()), type);
+		current = state;
+		beginScope();
+		for (Token parameter : stmt.parameters) {
+			addLocal(parameter);
+		}
+		for (Stmt child : stmt.body) {
+			compile(child);
+		}
+		emitReturn();
+		current = state.enclosing;
+
+		state.function.upvalueCount = state.upvalues.size();
+		line = stmt.name.getLine();
+		emitWithConstant(OpCode.CLOSURE, state.function);
+		for (UpvalueRef upvalue : state.upvalues) {
+			emit(upvalue.isLocal ? 1 : 0);
+			emit(upvalue.index);
+		}
+	}
+
+	@Override
+	public Void visitReturn(Stmt.Return stmt) {
+		line = stmt.keyword.getLine();
+		if (stmt.isTailCall) {
+			compileTailCall(stmt.value);
+			emit(OpCode.RETURN);
+		} else if (stmt.value != null) {
+			compile(stmt.value);
+			emit(OpCode.RETURN);
+		} else {
+			emitReturn();
+		}
+		return null;
+	}
+
+	/**
+	 * A call whose result is returned. Calling a closure reuses the frame of the
+	 * returning function, other callees leave their result to the RETURN that
+	 * follows.
+	 */
+	private void compileTailCall(Expr value) {
+		if (value instanceof Expr.Binary) {
+			Expr.Binary expr = (Expr.Binary) value;
+			Expr.Call call = (Expr.Call) expr.right;
+			compile(expr.left);
+			compileArguments(call);
+			line = call.paren.getLine();
+			emitWithConstant(OpCode.TAIL_INVOKE, new PropertyReadCache(((Expr.Variable) call.callee).name));
+			emit(call.arguments.size());
+			return;
+		}
+
+		Expr.Call call = (Expr.Call) value;
+		compile(call.callee);
+		compileArguments(call);
+		line = call.paren.getLine();
+		emit(OpCode.TAIL_CALL);
+		emit(call.arguments.size());
+	}
+
+	@Override
+	public Void visitIf(Stmt.If stmt) {
+		compile(stmt.cond);
+		int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+		compile(stmt.thenBranch);
+		if (stmt.elseBranch != null) {
+			int elseJump = emitJump(OpCode.JUMP);
+			patchJump(thenJump);
+			compile(stmt.elseBranch);
+			patchJump(elseJump);
+		} else {
+			patchJump(thenJump);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitWhile(Stmt.While stmt) {
+		int loopStart = current.function.chunk.count();
+		compile(stmt.cond);
+		int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+		compile(stmt.body);
+		emitLoop(loopStart);
+		patchJump(exitJump);
+		return null;
+	}
+
+	@Override
+	public Void visitClass(Stmt.Class stmt) {
+		Token className = stmt.name;
+		line = className.getLine();
+		boolean isLocal = current.scopeDepth > 0;
+		if (isLocal) {
+			addLocal(className);
+		}
+		emitWithConstant(OpCode.CLASS, className.getLexeme());
+		if (!isLocal) {
+			emitWithConstant(OpCode.DEFINE_GLOBAL, global(className.getLexeme()));
+		}
+
+		Token superClass = stmt.superClass;
+		if (superClass != null) {
+			line = superClass.getLine();
+			namedVariable(superClass.getLexeme(), false);
+			// the superclass stays on the stack as the local "super" of the methods
+			beginScope();
+			addLocal("super");
+			namedVariable(className.getLexeme(), false);
+			emit(OpCode.INHERIT);
+		}
+
+		namedVariable(className.getLexeme(), false);
+		for (Stmt.FunDecl method : stmt.methods) {
+			boolean isConstructor = method.name.getLexeme().equals("init");
+			compileFunction(method, isConstructor ? FunctionType.INITIALIZER : FunctionType.METHOD);
+			emitWithConstant(OpCode.METHOD, new Property(method.name));
+		}
+		emit(OpCode.POP);
+
+		if (superClass != null) {
+			endScope();
+		}
+		return null;
+	}
+
+	private void compile(Stmt stmt) {
+		stmt.accept(this);
+	}
+
+	private void compile(Expr expr) {
+		expr.accept(this);
+	}
+
+	private void defineVariable(Token name) {
+		if (current.scopeDepth > 0) {
+			addLocal(name);
+		} else {
+			emitWithConstant(OpCode.DEFINE_GLOBAL, global(name.getLexeme()));
+		}
+	}
+
+	private void namedVariable(String name, boolean assign) {
+		int arg = resolveLocal(current, name);
+		if (arg != -1) {
+			emit(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL);
+			emit(arg);
+			return;
+		}
+
+		arg = resolveUpvalue(current, name);
+		if (arg != -1) {
+			emit(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE);
+			emit(arg);
+			return;
+		}
+
+		emitWithConstant(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL, global(name));
+	}
+
+	private int resolveLocal(FunctionState state, String name) {
+		for (int i = state.locals.size() - 1; i >= 0; i--) {
+			if (state.locals.get(i).name.equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int resolveUpvalue(FunctionState state, String name) {
+		if (state.enclosing == null) return -1;
+
+		int local = resolveLocal(state.enclosing, name);
+		if (local != -1) {
+			state.enclosing.locals.get(local).captured = true;
+			return addUpvalue(state, local, true);
+		}
+
+		int upvalue = resolveUpvalue(state.enclosing, name);
+		if (upvalue != -1) {
+			return addUpvalue(state, upvalue, false);
+		}
+		return -1;
+	}
+
+	private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+		for (int i = 0; i < state.upvalues.size(); i++) {
+			UpvalueRef upvalue = state.upvalues.get(i);
+			if (upvalue.index == index && upvalue.isLocal == isLocal) {
+				return i;
+			}
+		}
+		if (state.upvalues.size() == MAX_UPVALUES) {
+			Lox.error(line, "Too many closure variables in function.");
+			return 0;
+		}
+		state.upvalues.add(new UpvalueRef(index, isLocal));
+		return state.upvalues.size() - 1;
+	}
+
+	private void addLocal(Token name) {
+		addLocal(name.getLexeme());
+	}
+
+	private void addLocal(String name) {
+		if (current.locals.size() == MAX_LOCALS) {
+			Lox.error(line, "Too many local variables in function.");
+			return;
+		}
+		current.locals.add(new Local(name, current.scopeDepth));
+	}
+
+	private void beginScope() {
+		current.scopeDepth++;
+	}
+
+	private void endScope() {
+		current.scopeDepth--;
+		List<Local> locals = current.locals;
+		while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+			emit(locals.remove(locals.size() - 1).captured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+		}
+	}
+
+	private void emit(int b) {
+		current.function.chunk.write(b, line);
+	}
+
+	private GlobalRef global(String name) {
+		return globals.computeIfAbsent(name, GlobalRef::new);
+	}
+
+	private void emitWithConstant(byte op, Object value) {
+		int index = current.function.chunk.addConstant(value);
+		if (index > MAX_CONSTANTS) {
+			Lox.error(line, "Too many constants in one chunk.");
+		}
+		emit(op);
+		emit(index >> 8);
+		emit(index);
+	}
+
+	private void emitReturn() {
+		if (current.type == FunctionType.INITIALIZER) {
+			emit(OpCode.GET_LOCAL);
+			emit(0);
+		} else {
+			emit(OpCode.NIL);
+		}
+		emit(OpCode.RETURN);
+	}
+
+	private int emitJump(byte op) {
+		emit(op);
+		emit(0xff);
+		emit(0xff);
+		return current.function.chunk.count() - 2;
+	}
+
+	private void patchJump(int offset) {
+		Chunk chunk = current.function.chunk;
+		int jump = chunk.count() - offset - 2;
+		if (jump > 0xffff) {
+			Lox.error(line, "Too much code to jump over.");
+		}
+		chunk.patch(offset, jump >> 8);
+		chunk.patch(offset + 1, jump);
+	}
+
+	private void emitLoop(int loopStart) {
+		emit(OpCode.LOOP);
+		int offset = current.function.chunk.count() - loopStart + 2;
+		if (offset > 0xffff) {
+			Lox.error(line, "Loop body too large.");
+		}
+		emit(offset >> 8);
+		emit(offset);
+	}
+
+	private enum FunctionType {
+		SCRIPT, FUNCTION, METHOD, INITIALIZER
+	}
+
+	private static class FunctionState {
+		final FunctionState enclosing;
+		final CompiledFunction function;
+		final FunctionType type;
+		final List<Local> locals = new ArrayList<>();
+		final List<UpvalueRef> upvalues = new ArrayList<>();
+		int scopeDepth;
+
+		FunctionState(FunctionState enclosing, CompiledFunction function, FunctionType type) {
+			this.enclosing = enclosing;
+			this.function = function;
+			this.type = type;
+			// slot 0 holds the receiver in methods and the callee otherwise
+			boolean isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+			locals.add(new Local(isMethod ? "this" : "", 0));
+		}
+	}
+
+	private static class Local {
+		final String name;
+		final int depth;
+		boolean captured;
+
+		Local(String name, int depth) {
+			this.name = name;
+			this.depth = depth;
+		}
+	}
+
+	private static class UpvalueRef {
+		final int index;
+		final boolean isLocal;
+
+		UpvalueRef(int index, boolean isLocal) {
+			this.index = index;
+			this.isLocal = isLocal;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package lucks.vm;
+
+import lucks.Cell;
+import lucks.Symbols;
+
+/**
+ * A global variable as a constant of the code using it. The name is interned
+ * once by the compiler, and the cell of the variable is looked up on the first
+ * access and kept, as a defined global keeps its cell. All references to a
+ * global in one program share this constant.
+ */
+final class GlobalRef {
+
+	final String name;
+	final int symbol;
+	// set without synchronization, every thread finds the same cell
+	Cell cell;
+
+	GlobalRef(String name) {
+		this.name = name;
+		this.symbol = Symbols.intern(name);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,75 @@
+package lucks.vm;
+
+/**
+ * Instruction set of the {@link VM}. Operands follow the opcode byte, constant
+ * and jump operands are two bytes wide (big endian), slot and argument counts
+ * a single byte.
+ */
+public final class OpCode {
+
+	public static final byte CONSTANT = 0;
+	public static final byte NIL = 1;
+	public static final byte TRUE = 2;
+	public static final byte FALSE = 3;
+	public static final byte POP = 4;
+
+	public static final byte GET_LOCAL = 5;
+	public static final byte SET_LOCAL = 6;
+	public static final byte GET_GLOBAL = 7;
+	public static final byte DEFINE_GLOBAL = 8;
+	public static final byte SET_GLOBAL = 9;
+	public static final byte GET_UPVALUE = 10;
+	public static final byte SET_UPVALUE = 11;
+	public static final byte GET_PROPERTY = 12;
+	public static final byte SET_PROPERTY = 13;
+	public static final byte GET_SUPER = 14;
+
+	public static final byte EQUAL = 15;
+	public static final byte GREATER = 16;
+	public static final byte GREATER_EQUAL = 17;
+	public static final byte LESS = 18;
+	public static final byte LESS_EQUAL = 19;
+	public static final byte ADD = 20;
+	public static final byte SUBTRACT = 21;
+	public static final byte MULTIPLY = 22;
+	public static final byte DIVIDE = 23;
+	public static final byte NOT = 24;
+	public static final byte NEGATE = 25;
+
+	public static final byte PRINT = 26;
+	public static final byte JUMP = 27;
+	public static final byte JUMP_IF_FALSE = 28;
+	public static final byte JUMP_IF_FALSE_OR_POP = 29;
+	public static final byte JUMP_IF_TRUE_OR_POP = 30;
+	public static final byte LOOP = 31;
+
+	public static final byte CALL = 32;
+	public static final byte INVOKE = 33;
+	public static final byte SUPER_INVOKE = 34;
+	public static final byte CLOSURE = 35;
+	public static final byte CLOSE_UPVALUE = 36;
+	public static final byte RETURN = 37;
+	public static final byte CLASS = 38;
+	public static final byte INHERIT = 39;
+	public static final byte METHOD = 40;
+	public static final byte TAIL_CALL = 41;
+	public static final byte TAIL_INVOKE = 42;
+
+	private static final String[] names = {
+					"CONSTANT", "NIL", "TRUE", "FALSE", "POP",
+					"GET_LOCAL", "SET_LOCAL", "GET_GLOBAL", "DEFINE_GLOBAL", "SET_GLOBAL",
+					"GET_UPVALUE", "SET_UPVALUE", "GET_PROPERTY", "SET_PROPERTY", "GET_SUPER",
+					"EQUAL", "GREATER", "GREATER_EQUAL", "LESS", "LESS_EQUAL",
+					"ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "NOT", "NEGATE",
+					"PRINT", "JUMP", "JUMP_IF_FALSE", "JUMP_IF_FALSE_OR_POP", "JUMP_IF_TRUE_OR_POP", "LOOP",
+					"CALL", "INVOKE", "SUPER_INVOKE", "CLOSURE", "CLOSE_UPVALUE", "RETURN",
+					"CLASS", "INHERIT", "METHOD", "TAIL_CALL", "TAIL_INVOKE"
+	};
+
+	private OpCode() {
+	}
+
+	public static String name(byte op) {
+		return op >= 0 && op < names.length ? names[op] : "UNKNOWN_" + op;
+	}
+}
@@ -0,0 +1,23 @@
+package lucks.vm;
+
+import lucks.Token;
+
+/**
+ * The name of a property or method as a constant of the code using it, with
+ * its symbol, so looking it up at run time does not intern the name.
+ */
+class Property {
+
+	final String name;
+	final int symbol;
+
+	Property(Token name) {
+		this.name = name.getLexeme();
+		this.symbol = name.getSymbol();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
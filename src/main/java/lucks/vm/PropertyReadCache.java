@@ -0,0 +1,80 @@
+package lucks.vm;
+
+import java.util.Arrays;
+
+import lucks.Shape;
+import lucks.Token;
+
+/**
+ * Inline cache of an instruction reading or invoking a property. Remembers for
+ * up to {@link #LIMIT} shapes whether the name is a field, and at which index,
+ * or a method of the class. A site that sees more shapes is megamorphic and
+ * does the full lookup.
+ * <p>
+ * The code of a function is shared by the VMs of all threads, so the entries
+ * are replaced as a whole. An entry lost to a racing update is added again.
+ */
+final class PropertyReadCache extends Property {
+
+	static final int LIMIT = 4;
+
+	private static final Entry[] EMPTY = new Entry[0];
+
+	private volatile Entry[] entries = EMPTY;
+
+	PropertyReadCache(Token name) {
+		super(name);
+	}
+
+	/**
+	 * The value of the field, null if it is not set or nil.
+	 */
+	Object field(VmInstance instance) {
+		Entry entry = lookup(instance);
+		if (entry == null) return instance.get(symbol);
+		return entry.index >= 0 ? instance.getField(entry.index) : null;
+	}
+
+	/**
+	 * The method of the instance's class, null if there is none.
+	 */
+	VmClosure method(VmInstance instance) {
+		Entry entry = lookup(instance);
+		if (entry != null && entry.method != null) return entry.method;
+		return instance.vmClass.methods.get(symbol);
+	}
+
+	private Entry lookup(VmInstance instance) {
+		Shape shape = instance.getShape();
+		Entry[] cached = entries;
+		for (Entry entry : cached) {
+			if (entry.shape == shape) return entry;
+		}
+		if (shape == null || cached.length == LIMIT) return null;
+
+		// shapes are rooted at their class, so the methods are known as well
+		int index = shape.indexOf(symbol);
+		VmClosure method = null;
+		if (index < 0) {
+			method = instance.vmClass.methods.get(symbol);
+			if (method == null) return null;
+		}
+		Entry entry = new Entry(shape, index, method);
+		Entry[] extended = Arrays.copyOf(cached, cached.length + 1);
+		extended[cached.length] = entry;
+		entries = extended;
+		return entry;
+	}
+
+	private static final class Entry {
+		final Shape shape;
+		final int index;
+		final VmClosure method;
+
+		Entry(Shape shape, int index, VmClosure method) {
+			this.shape = shape;
+			this.index = index;
+			this.method = method;
+		}
+	}
+}
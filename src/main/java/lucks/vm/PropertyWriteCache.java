@@ -0,0 +1,68 @@
+package lucks.vm;
+
+import java.util.Arrays;
+
+import lucks.Shape;
+import lucks.Token;
+
+/**
+ * Inline cache of an instruction writing a property. For up to {@link #LIMIT}
+ * shapes it remembers the index of the field and the shape the instance has
+ * afterwards, which differs from the old one if the write adds the field.
+ * Entries are replaced as a whole, as in {@link PropertyReadCache}.
+ */
+final class PropertyWriteCache extends Property {
+
+	static final int LIMIT = 4;
+
+	private static final Entry[] EMPTY = new Entry[0];
+
+	private volatile Entry[] entries = EMPTY;
+
+	PropertyWriteCache(Token name) {
+		super(name);
+	}
+
+	void put(VmInstance instance, Object value) {
+		Shape shape = instance.getShape();
+		Entry[] cached = entries;
+		for (Entry entry : cached) {
+			if (entry.shape != shape) continue;
+
+			if (entry.target == shape) {
+				instance.setField(entry.index, value);
+			} else {
+				instance.addField(entry.target, entry.index, value);
+			}
+			return;
+		}
+
+		if (shape != null && cached.length < LIMIT) {
+			int index = shape.indexOf(symbol);
+			if (index >= 0) {
+				add(cached, new Entry(shape, shape, index));
+			} else if (shape.size() < Shape.MAX_FIELDS) {
+				add(cached, new Entry(shape, shape.withField(symbol), shape.size()));
+			}
+		}
+		instance.put(symbol, value);
+	}
+
+	private void add(Entry[] cached, Entry entry) {
+		Entry[] extended = Arrays.copyOf(cached, cached.length + 1);
+		extended[cached.length] = entry;
+		entries = extended;
+	}
+
+	private static final class Entry {
+		final Shape shape;
+		final Shape target;
+		final int index;
+
+		Entry(Shape shape, Shape target, int index) {
+			this.shape = shape;
+			this.target = target;
+			this.index = index;
+		}
+	}
+}
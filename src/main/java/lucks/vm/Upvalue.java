@@ -0,0 +1,38 @@
+package lucks.vm;
+
+/**
+ * A variable captured by a closure. While the declaring function is still
+ * running the upvalue points to the variable's stack slot, once the slot goes
+ * out of scope the value is moved into the upvalue itself.
+ */
+class Upvalue {
+
+	private final VM vm;
+	final int slot;
+	private boolean closed;
+	private Object value;
+	Upvalue next;
+
+	Upvalue(VM vm, int slot, Upvalue next) {
+		this.vm = vm;
+		this.slot = slot;
+		this.next = next;
+	}
+
+	Object get() {
+		return closed ? value : vm.stack[slot];
+	}
+
+	void set(Object value) {
+		if (closed) {
+			this.value = value;
+		} else {
+			vm.stack[slot] = value;
+		}
+	}
+
+	void close() {
+		value = vm.stack[slot];
+		closed = true;
+	}
+}
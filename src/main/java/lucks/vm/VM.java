@@ -0,0 +1,594 @@
+package lucks.vm;
+
+import java.util.Arrays;
+
+import lucks.BuiltinError;
+import lucks.Cell;
+import lucks.Environment;
+import lucks.LoxCallable;
+import lucks.Rope;
+import lucks.RuntimeError;
+import lucks.visitors.Interpreter;
+
+/**
+ * Stack based virtual machine executing the bytecode of the {@link Compiler}.
+ * Globals and builtins are shared with the tree-walking {@link Interpreter}.
+ */
+public class VM {
+
+	private static final int MAX_FRAMES = 100_000;
+	// every frame may push at most this many slots beyond its arguments
+	private static final int STACK_HEADROOM = 1024;
+
+	Object[] stack = new Object[4 * STACK_HEADROOM];
+	private int sp;
+	private Frame[] frames = new Frame[64];
+	private int frameCount;
+	private Upvalue openUpvalues;
+
+	private final Interpreter interpreter;
+	private final Environment globals;
+
+	public VM(Interpreter interpreter) {
+		this.interpreter = interpreter;
+		this.globals = interpreter.getGlobals();
+	}
+
+	public void interpret(CompiledFunction script) {
+		try {
+			call(new VmClosure(script), LoxCallable.NO_ARGUMENTS);
+		} catch (RuntimeError e) {
+			Arrays.fill(stack, 0, sp, null);
+			sp = 0;
+			frameCount = 0;
+			openUpvalues = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Calls a value from outside of the dispatch loop, e.g. from a builtin.
+	 */
+	Object call(Object callee, Object[] arguments) {
+		int exitDepth = frameCount;
+		push(callee);
+		for (Object argument : arguments) {
+			push(argument);
+		}
+		if (callValue(callee, arguments.length)) {
+			return run(exitDepth);
+		}
+		return stack[--sp];
+	}
+
+	private Object run(int exitDepth) {
+		Frame frame = frames[frameCount - 1];
+		byte[] code = frame.closure.function.chunk.getCode();
+		Object[] constants = frame.closure.function.chunk.getConstants();
+		int ip = frame.ip;
+		int base = frame.base;
+
+		while (true) {
+			switch (code[ip++]) {
+				case OpCode.CONSTANT:
+					push(constants[readShort(code, ip)]);
+					ip += 2;
+					break;
+				case OpCode.NIL:
+					push(null);
+					break;
+				case OpCode.TRUE:
+					push(true);
+					break;
+				case OpCode.FALSE:
+					push(false);
+					break;
+				case OpCode.POP:
+					sp--;
+					break;
+
+				case OpCode.GET_LOCAL:
+					push(stack[base + (code[ip++] & 0xff)]);
+					break;
+				case OpCode.SET_LOCAL:
+					stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+					break;
+				case OpCode.GET_GLOBAL: {
+					GlobalRef global = (GlobalRef) constants[readShort(code, ip)];
+					ip += 2;
+					Cell cell = global.cell;
+					push((cell != null ? cell : globalCell(frame, ip, global)).value);
+					break;
+				}
+				case OpCode.DEFINE_GLOBAL:
+					globals.define(((GlobalRef) constants[readShort(code, ip)]).symbol, stack[--sp]);
+					ip += 2;
+					break;
+				case OpCode.SET_GLOBAL: {
+					GlobalRef global = (GlobalRef) constants[readShort(code, ip)];
+					ip += 2;
+					Cell cell = global.cell;
+					(cell != null ? cell : globalCell(frame, ip, global)).value = stack[sp - 1];
+					break;
+				}
+				case OpCode.GET_UPVALUE:
+					push(frame.closure.upvalues[code[ip++] & 0xff].get());
+					break;
+				case OpCode.SET_UPVALUE:
+					frame.closure.upvalues[code[ip++] & 0xff].set(stack[sp - 1]);
+					break;
+				case OpCode.GET_PROPERTY: {
+					PropertyReadCache property = (PropertyReadCache) constants[readShort(code, ip)];
+					ip += 2;
+					VmInstance instance = instance(frame, ip, stack[sp - 1]);
+					Object value = property.field(instance);
+					if (value == null) {
+						value = new VmBoundMethod(instance, method(frame, ip, instance, property));
+					}
+					stack[sp - 1] = value;
+					break;
+				}
+				case OpCode.SET_PROPERTY: {
+					PropertyWriteCache property = (PropertyWriteCache) constants[readShort(code, ip)];
+					ip += 2;
+					VmInstance instance = instance(frame, ip, stack[sp - 2]);
+					Object value = stack[--sp];
+					property.put(instance, value);
+					stack[sp - 1] = value;
+					break;
+				}
+				case OpCode.GET_SUPER: {
+					Property property = (Property) constants[readShort(code, ip)];
+					ip += 2;
+					VmClass superClass = (VmClass) stack[--sp];
+					VmInstance instance = (VmInstance) stack[sp - 1];
+					stack[sp - 1] = new VmBoundMethod(instance, superMethod(frame, ip, superClass, property));
+					break;
+				}
+
+				case OpCode.EQUAL: {
+					Object right = stack[--sp];
+					stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+					break;
+				}
+				case OpCode.GREATER:
+					checkNumbers(frame, ip, ">");
+					sp--;
+					stack[sp - 1] = (double) stack[sp - 1] > (double) stack[sp];
+					break;
+				case OpCode.GREATER_EQUAL:
+					checkNumbers(frame, ip, ">=");
+					sp--;
+					stack[sp - 1] = (double) stack[sp - 1] >= (double) stack[sp];
+					break;
+				case OpCode.LESS:
+					checkNumbers(frame, ip, "<");
+					sp--;
+					stack[sp - 1] = (double) stack[sp - 1] < (double) stack[sp];
+					break;
+				case OpCode.LESS_EQUAL:
+					checkNumbers(frame, ip, "<=");
+					sp--;
+					stack[sp - 1] = (double) stack[sp - 1] <= (double) stack[sp];
+					break;
+				case OpCode.SUBTRACT:
+					checkNumbers(frame, ip, "-");
+					sp--;
+					stack[sp - 1] = (double) stack[sp - 1] - (double) stack[sp];
+					break;
+				case OpCode.MULTIPLY:
+					checkNumbers(frame, ip, "*");
+					sp--;
+					stack[sp - 1] = (double) stack[sp - 1] * (double) stack[sp];
+					break;
+				case OpCode.DIVIDE:
+					checkNumbers(frame, ip, "/");
+					sp--;
+					stack[sp - 1] = (double) stack[sp - 1] / (double) stack[sp];
+					break;
+				case OpCode.ADD: {
+					Object left = stack[sp - 2];
+					Object right = stack[sp - 1];
+					Object result;
+					if (left instanceof Double && right instanceof Double) {
+						result = (double) left + (double) right;
+					} else if (Rope.isString(left) && Rope.isString(right)) {
+						result = Rope.concat(left, right);
+					} else {
+						throw error(frame, ip, "Operands must be either both strings or both numbers.");
+					}
+					stack[--sp - 1] = result;
+					break;
+				}
+				case OpCode.NOT:
+					stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+					break;
+				case OpCode.NEGATE:
+					if (!(stack[sp - 1] instanceof Double)) {
+						throw error(frame, ip, "Operand must be a number.");
+					}
+					stack[sp - 1] = -(double) stack[sp - 1];
+					break;
+
+				case OpCode.PRINT:
+					interpreter.getOut().println(Interpreter.stringify(stack[--sp]));
+					break;
+				case OpCode.JUMP:
+					ip += 2 + readShort(code, ip);
+					break;
+				case OpCode.JUMP_IF_FALSE: {
+					Object cond = stack[--sp];
+					ip += Interpreter.isTruthy(cond) ? 2 : 2 + readShort(code, ip);
+					break;
+				}
+				case OpCode.JUMP_IF_FALSE_OR_POP:
+					if (Interpreter.isTruthy(stack[sp - 1])) {
+						sp--;
+						ip += 2;
+					} else {
+						ip += 2 + readShort(code, ip);
+					}
+					break;
+				case OpCode.JUMP_IF_TRUE_OR_POP:
+					if (Interpreter.isTruthy(stack[sp - 1])) {
+						ip += 2 + readShort(code, ip);
+					} else {
+						sp--;
+						ip += 2;
+					}
+					break;
+				case OpCode.LOOP:
+					ip = ip + 2 - readShort(code, ip);
+					break;
+
+				case OpCode.CALL: {
+					int argCount = code[ip++] & 0xff;
+					frame.ip = ip;
+					if (callValue(stack[sp - 1 - argCount], argCount)) {
+						frame = frames[frameCount - 1];
+						code = frame.closure.function.chunk.getCode();
+						constants = frame.closure.function.chunk.getConstants();
+						ip = frame.ip;
+						base = frame.base;
+					}
+					break;
+				}
+				case OpCode.INVOKE:
+				case OpCode.SUPER_INVOKE: {
+					boolean isSuper = code[ip - 1] == OpCode.SUPER_INVOKE;
+					Property property = (Property) constants[readShort(code, ip)];
+					int argCount = code[ip + 2] & 0xff;
+					ip += 3;
+					frame.ip = ip;
+					boolean pushed;
+					if (isSuper) {
+						VmClass superClass = (VmClass) stack[--sp];
+						pushed = callClosure(superMethod(frame, ip, superClass, property), argCount, null);
+					} else {
+						pushed = invoke(frame, ip, (PropertyReadCache) property, argCount);
+					}
+					if (pushed) {
+						frame = frames[frameCount - 1];
+						code = frame.closure.function.chunk.getCode();
+						constants = frame.closure.function.chunk.getConstants();
+						ip = frame.ip;
+						base = frame.base;
+					}
+					break;
+				}
+				case OpCode.TAIL_CALL:
+				case OpCode.TAIL_INVOKE: {
+					boolean isInvoke = code[ip - 1] == OpCode.TAIL_INVOKE;
+					PropertyReadCache property = isInvoke ? (PropertyReadCache) constants[readShort(code, ip)] : null;
+					if (isInvoke) ip += 2;
+					int argCount = code[ip++] & 0xff;
+					frame.ip = ip;
+					boolean jumped;
+					if (isInvoke) {
+						jumped = tailInvoke(frame, ip, property, argCount);
+					} else {
+						Object callee = stack[sp - 1 - argCount];
+						jumped = tailCall(callee, argCount) || callValue(callee, argCount);
+					}
+					if (jumped) {
+						frame = frames[frameCount - 1];
+						code = frame.closure.function.chunk.getCode();
+						constants = frame.closure.function.chunk.getConstants();
+						ip = frame.ip;
+						base = frame.base;
+					}
+					break;
+				}
+				case OpCode.CLOSURE: {
+					VmClosure closure = new VmClosure((CompiledFunction) constants[readShort(code, ip)]);
+					ip += 2;
+					for (int i = 0; i < closure.upvalues.length; i++) {
+						boolean isLocal = code[ip++] == 1;
+						int index = code[ip++] & 0xff;
+						closure.upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+					}
+					push(closure);
+					break;
+				}
+				case OpCode.CLOSE_UPVALUE:
+					closeUpvalues(sp - 1);
+					sp--;
+					break;
+				case OpCode.RETURN: {
+					Object result = stack[sp - 1];
+					closeUpvalues(base);
+					sp = base;
+					frameCount--;
+					if (frameCount == exitDepth) {
+						return result;
+					}
+					push(result);
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.getCode();
+					constants = frame.closure.function.chunk.getConstants();
+					ip = frame.ip;
+					base = frame.base;
+					break;
+				}
+				case OpCode.CLASS:
+					push(new VmClass((String) constants[readShort(code, ip)]));
+					ip += 2;
+					break;
+				case OpCode.INHERIT: {
+					Object superClass = stack[sp - 2];
+					if (!(superClass instanceof VmClass)) {
+						throw error(frame, ip, "Superclass must be a class");
+					}
+					((VmClass) stack[sp - 1]).inherit((VmClass) superClass);
+					sp--;
+					break;
+				}
+				case OpCode.METHOD: {
+					VmClosure method = (VmClosure) stack[--sp];
+					((VmClass) stack[sp - 1]).addMethod(((Property) constants[readShort(code, ip)]).symbol, method);
+					ip += 2;
+					break;
+				}
+
+				default:
+					throw new AssertionError(OpCode.name(code[ip - 1]));
+			}
+		}
+	}
+
+	private boolean invoke(Frame frame, int ip, PropertyReadCache property, int argCount) {
+		VmInstance instance = instance(frame, ip, stack[sp - 1 - argCount]);
+		Object field = property.field(instance);
+		if (field != null) {
+			stack[sp - 1 - argCount] = field;
+			return callValue(field, argCount);
+		}
+		return callClosure(method(frame, ip, instance, property), argCount, null);
+	}
+
+	private boolean tailInvoke(Frame frame, int ip, PropertyReadCache property, int argCount) {
+		VmInstance instance = instance(frame, ip, stack[sp - 1 - argCount]);
+		Object field = property.field(instance);
+		if (field != null) {
+			stack[sp - 1 - argCount] = field;
+			return tailCall(field, argCount) || callValue(field, argCount);
+		}
+		reuseFrame(method(frame, ip, instance, property), argCount, null);
+		return true;
+	}
+
+	/**
+	 * Calls the value below the arguments in the frame of the returning
+	 * function, if it is a closure or a bound method. Returns whether it did.
+	 */
+	private boolean tailCall(Object callee, int argCount) {
+		if (callee instanceof VmClosure) {
+			reuseFrame((VmClosure) callee, argCount, null);
+			return true;
+		}
+		if (callee instanceof VmBoundMethod) {
+			VmBoundMethod bound = (VmBoundMethod) callee;
+			stack[sp - 1 - argCount] = bound.receiver;
+			reuseFrame(bound.method, argCount, bound);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces the current frame by a call of {@code closure}: its variables
+	 * are closed over, and the callee and arguments moved down to its base.
+	 */
+	private void reuseFrame(VmClosure closure, int argCount, LoxCallable callee) {
+		checkArity(callee != null ? callee : closure, argCount);
+		Frame frame = frames[frameCount - 1];
+		closeUpvalues(frame.base);
+		System.arraycopy(stack, sp - argCount - 1, stack, frame.base, argCount + 1);
+		sp = frame.base + argCount + 1;
+		frame.closure = closure;
+		frame.ip = 0;
+	}
+
+	/**
+	 * Calls the value below the arguments on the stack. Returns whether a new
+	 * frame was pushed, otherwise the result already replaced callee and
+	 * arguments.
+	 */
+	private boolean callValue(Object callee, int argCount) {
+		if (callee instanceof VmClosure) {
+			return callClosure((VmClosure) callee, argCount, null);
+		}
+		if (callee instanceof VmBoundMethod) {
+			VmBoundMethod bound = (VmBoundMethod) callee;
+			stack[sp - 1 - argCount] = bound.receiver;
+			return callClosure(bound.method, argCount, bound);
+		}
+		if (callee instanceof VmClass) {
+			VmClass vmClass = (VmClass) callee;
+			checkArity(vmClass, argCount);
+			stack[sp - 1 - argCount] = new VmInstance(vmClass);
+			if (vmClass.initializer != null) {
+				return callClosure(vmClass.initializer, argCount, vmClass);
+			}
+			return false;
+		}
+		if (callee instanceof LoxCallable) {
+			LoxCallable callable = (LoxCallable) callee;
+			checkArity(callable, argCount);
+			Object result = callNative(callable, argCount);
+			sp -= argCount + 1;
+			push(result);
+			return false;
+		}
+		throw error("Can only call functions and classes.");
+	}
+
+	private Object callNative(LoxCallable callable, int argCount) {
+		int first = sp - argCount;
+		try {
+			switch (argCount) {
+				case 0:
+					return callable.call0(interpreter);
+				case 1:
+					return callable.call1(interpreter, stack[first]);
+				case 2:
+					return callable.call2(interpreter, stack[first], stack[first + 1]);
+				case 3:
+					return callable.call3(interpreter, stack[first], stack[first + 1], stack[first + 2]);
+				default:
+					return callable.call(interpreter, Arrays.copyOfRange(stack, first, sp));
+			}
+		} catch (BuiltinError e) {
+			throw error(e.getMessage());
+		}
+	}
+
+	private boolean callClosure(VmClosure closure, int argCount, LoxCallable callee) {
+		checkArity(callee != null ? callee : closure, argCount);
+		if (frameCount == MAX_FRAMES) {
+			throw error("Stack overflow.");
+		}
+		if (frameCount == frames.length) {
+			frames = Arrays.copyOf(frames, frameCount * 2);
+		}
+		if (sp + STACK_HEADROOM > stack.length) {
+			stack = Arrays.copyOf(stack, stack.length * 2);
+		}
+
+		Frame frame = frames[frameCount];
+		if (frame == null) {
+			frame = frames[frameCount] = new Frame();
+		}
+		frame.closure = closure;
+		frame.ip = 0;
+		frame.base = sp - argCount - 1;
+		frameCount++;
+		return true;
+	}
+
+	private void checkArity(LoxCallable callee, int argCount) {
+		if (callee.arity() != argCount) {
+			throw error(String.format("Wrong number of arguments, when calling %s. " +
+							                          "Expected %s, was %s",
+			                          callee, callee.arity(), argCount));
+		}
+	}
+
+	private VmInstance instance(Frame frame, int ip, Object value) {
+		if (!(value instanceof VmInstance)) {
+			throw error(frame, ip, "Only instances have fields.");
+		}
+		return (VmInstance) value;
+	}
+
+	private VmClosure method(Frame frame, int ip, VmInstance instance, PropertyReadCache property) {
+		VmClosure method = property.method(instance);
+		if (method == null) {
+			throw error(frame, ip, "Undefined property: " + property.name);
+		}
+		return method;
+	}
+
+	/**
+	 * Looks up the cell of a global on its first access, and keeps it.
+	 */
+	private Cell globalCell(Frame frame, int ip, GlobalRef global) {
+		Cell cell = globals.findCell(global.symbol);
+		if (cell == null) {
+			throw error(frame, ip, String.format("Undefined variable '%s'.", global.name));
+		}
+		global.cell = cell;
+		return cell;
+	}
+
+	private VmClosure superMethod(Frame frame, int ip, VmClass superClass, Property property) {
+		VmClosure method = superClass.methods.get(property.symbol);
+		if (method == null) {
+			throw error(frame, ip, String.format("Undefined property %s.", property.name));
+		}
+		return method;
+	}
+
+	private Upvalue captureUpvalue(int slot) {
+		Upvalue prev = null;
+		Upvalue upvalue = openUpvalues;
+		while (upvalue != null && upvalue.slot > slot) {
+			prev = upvalue;
+			upvalue = upvalue.next;
+		}
+		if (upvalue != null && upvalue.slot == slot) {
+			return upvalue;
+		}
+
+		Upvalue created = new Upvalue(this, slot, upvalue);
+		if (prev == null) {
+			openUpvalues = created;
+		} else {
+			prev.next = created;
+		}
+		return created;
+	}
+
+	private void closeUpvalues(int lastSlot) {
+		while (openUpvalues != null && openUpvalues.slot >= lastSlot) {
+			openUpvalues.close();
+			openUpvalues = openUpvalues.next;
+		}
+	}
+
+	private void checkNumbers(Frame frame, int ip, String operator) {
+		if (!(stack[sp - 2] instanceof Double))
+			throw error(frame, ip, String.format("First operand of %s must be a number.", operator));
+		if (!(stack[sp - 1] instanceof Double))
+			throw error(frame, ip, String.format("Second operand of %s must be a number.", operator));
+	}
+
+	private void push(Object value) {
+		stack[sp++] = value;
+	}
+
+	private static int readShort(byte[] code, int ip) {
+		return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+	}
+
+	private RuntimeError error(Frame frame, int ip, String msg) {
+		return new RuntimeError(frame.closure.function.chunk.getLine(ip - 1), msg);
+	}
+
+	/**
+	 * Error at the instruction the current frame was suspended at.
+	 */
+	private RuntimeError error(String msg) {
+		if (frameCount == 0) {
+			return new RuntimeError(0, msg);
+		}
+		Frame frame = frames[frameCount - 1];
+		return error(frame, frame.ip, msg);
+	}
+
+	private static class Frame {
+		VmClosure closure;
+		int ip;
+		int base;
+	}
+}
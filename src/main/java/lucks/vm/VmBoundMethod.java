@@ -0,0 +1,34 @@
+package lucks.vm;
+
+import lucks.LoxCallable;
+import lucks.visitors.Interpreter;
+
+/**
+ * A method taken as a value, e.g. {@code var m = obj.method;}. Direct
+ * invocations {@code obj.method()} never create one.
+ */
+public class VmBoundMethod implements LoxCallable {
+
+	final VmInstance receiver;
+	final VmClosure method;
+
+	VmBoundMethod(VmInstance receiver, VmClosure method) {
+		this.receiver = receiver;
+		this.method = method;
+	}
+
+	@Override
+	public int arity() {
+		return method.arity();
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		return interpreter.getVm().call(this, arguments);
+	}
+
+	@Override
+	public String toString() {
+		return method.toString();
+	}
+}
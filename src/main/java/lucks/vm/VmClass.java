@@ -0,0 +1,57 @@
+package lucks.vm;
+
+import lucks.LoxCallable;
+import lucks.Shape;
+import lucks.SymbolMap;
+import lucks.Symbols;
+import lucks.visitors.Interpreter;
+
+/**
+ * Runtime representation of a class in the {@link VM}. Inherited methods are
+ * copied into the subclass when it is created, so method lookup is a single
+ * map access by symbol. The shapes of the instances are rooted at the class.
+ */
+public class VmClass implements LoxCallable {
+
+	final String name;
+	final SymbolMap<VmClosure> methods = new SymbolMap<>();
+	final Shape instanceShape = Shape.root();
+	VmClosure initializer;
+
+	VmClass(String name) {
+		this.name = name;
+	}
+
+	void addMethod(int symbol, VmClosure method) {
+		methods.put(symbol, method);
+		if (symbol == Symbols.INIT) {
+			initializer = method;
+		}
+	}
+
+	/**
+	 * Copies the methods of {@code superClass}. Its initializer is not taken
+	 * over, as with the classes of the tree-walking interpreter: a subclass
+	 * without an "init" of its own is constructed without arguments.
+	 */
+	void inherit(VmClass superClass) {
+		superClass.methods.forEach(methods::put);
+	}
+
+	@Override
+	public int arity() {
+		return initializer != null ? initializer.arity() : 0;
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		return interpreter.getVm().call(this, arguments);
+	}
+
+	@Override
+	public String toString() {
+		return "LoxClass{" +
+						"name='" + name + '\'' +
+						'}';
+	}
+}
@@ -0,0 +1,30 @@
+package lucks.vm;
+
+import lucks.LoxCallable;
+import lucks.visitors.Interpreter;
+
+public class VmClosure implements LoxCallable {
+
+	final CompiledFunction function;
+	final Upvalue[] upvalues;
+
+	VmClosure(CompiledFunction function) {
+		this.function = function;
+		this.upvalues = new Upvalue[function.upvalueCount];
+	}
+
+	@Override
+	public int arity() {
+		return function.arity;
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		return interpreter.getVm().call(this, arguments);
+	}
+
+	@Override
+	public String toString() {
+		return function.toString();
+	}
+}
@@ -0,0 +1,100 @@
+package lucks.vm;
+
+import java.util.Arrays;
+
+import lucks.Shape;
+import lucks.SymbolMap;
+
+/**
+ * Fields are stored in an array laid out by the instance's {@link Shape}, as
+ * for the instances of the tree-walking interpreter. Past
+ * {@link Shape#MAX_FIELDS} fields the instance switches to a hash map and no
+ * longer has a shape.
+ */
+public class VmInstance {
+
+	private static final Object[] NO_VALUES = new Object[0];
+
+	final VmClass vmClass;
+	private Shape shape;
+	private Object[] values;
+	private SymbolMap<Object> dictionary;
+
+	VmInstance(VmClass vmClass) {
+		this.vmClass = vmClass;
+		this.shape = vmClass.instanceShape;
+		int capacity = shape.capacity();
+		this.values = capacity > 0 ? new Object[capacity] : NO_VALUES;
+	}
+
+	/**
+	 * The current shape, or null once the fields are kept in a hash map.
+	 */
+	Shape getShape() {
+		return shape;
+	}
+
+	Object getField(int index) {
+		return values[index];
+	}
+
+	void setField(int index, Object value) {
+		values[index] = value;
+	}
+
+	/**
+	 * Adds the field at {@code index}, moving the instance to {@code next}, which
+	 * must be the transition of the current shape for that field.
+	 */
+	void addField(Shape next, int index, Object value) {
+		if (index >= values.length) {
+			values = Arrays.copyOf(values, next.capacity());
+		}
+		values[index] = value;
+		shape = next;
+	}
+
+	/**
+	 * The value of the field {@code symbol}, null if it is not set or nil.
+	 */
+	Object get(int symbol) {
+		if (dictionary != null) return dictionary.get(symbol);
+
+		int index = shape.indexOf(symbol);
+		return index >= 0 ? values[index] : null;
+	}
+
+	void put(int symbol, Object value) {
+		if (dictionary != null) {
+			dictionary.put(symbol, value);
+			return;
+		}
+
+		int index = shape.indexOf(symbol);
+		if (index >= 0) {
+			values[index] = value;
+		} else if (shape.size() < Shape.MAX_FIELDS) {
+			addField(shape.withField(symbol), shape.size(), value);
+		} else {
+			toDictionary();
+			dictionary.put(symbol, value);
+		}
+	}
+
+	private void toDictionary() {
+		int[] symbols = shape.symbols();
+		dictionary = new SymbolMap<>();
+		for (int i = 0; i < symbols.length; i++) {
+			dictionary.put(symbols[i], values[i]);
+		}
+		shape = null;
+		values = NO_VALUES;
+	}
+
+	@Override
+	public String toString() {
+		return "LoxInstance{" +
+						"loxClass=" + vmClass +
+						'}';
+	}
+}